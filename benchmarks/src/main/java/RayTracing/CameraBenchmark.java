@@ -0,0 +1,64 @@
+package RayTracing;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Camera ray generation for a block of pixels, one ray at a time with
+ * `Camera.pixelRay` and with the per-frame tables of `CameraRays`, which the
+ * renderer uses. Times are per ray.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CameraBenchmark {
+    private static final int SIZE = 64; // The width and height of the block, and of the image
+
+    @Param({ "basic", "fisheye" })
+    public String scene;
+
+    private Camera camera;
+    private CameraRays cameraRays;
+    private final double[] dx = new double[SIZE * SIZE];
+    private final double[] dy = new double[SIZE * SIZE];
+    private final double[] dz = new double[SIZE * SIZE];
+    private final int[] pixels = new int[SIZE * SIZE];
+
+    @Setup
+    public void setup() throws Exception {
+        this.camera = Scenes.load(this.scene, Scenes.tracer(SIZE, SIZE, 1)).camera;
+        this.cameraRays = new CameraRays(this.camera, SIZE, SIZE);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE * SIZE)
+    public void pixelRay(Blackhole blackhole) {
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                blackhole.consume(this.camera.pixelRay(((double) x) / SIZE - 0.5, ((double) y) / SIZE - 0.5));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE * SIZE)
+    public int cameraRays() {
+        return this.cameraRays.generate(0, 0, SIZE, SIZE, this.dx, this.dy, this.dz, this.pixels);
+    }
+}
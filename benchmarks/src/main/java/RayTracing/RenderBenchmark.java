@@ -0,0 +1,65 @@
+package RayTracing;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end renders of the reference scenes with `RayTracer.renderScene`,
+ * parsed once per trial. The image is saved as PPM unless `format` says
+ * otherwise, so that the time is the renderer's rather than the encoder's.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderBenchmark {
+
+    @Param({ "basic", "soft", "fisheye", "many" })
+    public String scene;
+
+    @Param({ "200" })
+    public int size; // The width and height of the image
+
+    @Param({ "1" })
+    public int threads;
+
+    @Param({ "ppm" })
+    public String format; // The image file's extension
+
+    private RayTracer tracer;
+    private Scene loaded;
+    private Path output;
+
+    @Setup
+    public void setup() throws Exception {
+        this.tracer = Scenes.tracer(this.size, this.size, this.threads);
+        this.loaded = Scenes.load(this.scene, this.tracer);
+        this.output = Files.createTempFile("render", "." + this.format);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(this.output);
+    }
+
+    @Benchmark
+    public void renderScene() throws Exception {
+        this.tracer.renderScene(this.loaded, this.output.toString());
+    }
+}
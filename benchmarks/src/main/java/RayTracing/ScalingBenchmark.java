@@ -0,0 +1,310 @@
+package RayTracing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.ToDoubleFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Renders generated scenes (see `SceneGenerator`) over a matrix of object
+ * counts, light counts, shadow rays, recursion depths and resolutions, and
+ * reports the time per frame and the rays traced per second of every
+ * combination, followed by how the time scales with each dimension: the
+ * exponent k of time ~ value^k, averaged over the pairs of combinations that
+ * differ only in that dimension (its smallest and largest value). Expect about
+ * 1 for the resolution (in pixels) and the lights, about 2 for the shadow rays
+ * (a grid of N^2 per light) and much less than 1 for the objects.
+ *
+ * Run it from the benchmarks jar:
+ *
+ * java -cp benchmarks.jar RayTracing.ScalingBenchmark --objects=1000,100000 --lights=1,4
+ *
+ * Every option takes a comma separated list: `--objects` (a quarter of them
+ * boxes, the rest spheres), `--lights`, `--shadow-rays`, `--depth` and
+ * `--resolutions` (as WIDTHxHEIGHT). The other options are `--light-radius=R`,
+ * `--threads=N`, `--warmup=N` and `--frames=N` (renders per combination, the
+ * median of the timed frames is reported), `--csv=FILE` to save the results,
+ * and `--no-count` to skip counting the rays.
+ *
+ * The frames are timed in this JVM with the renderer's counters off. The rays
+ * of every combination are counted by rendering it once more in a child JVM
+ * with `--stats` (see `RenderStats`).
+ */
+public class ScalingBenchmark {
+
+    /**
+     * The results of one combination.
+     */
+    private static class Result {
+        int objects;
+        int lights;
+        int shadowRays;
+        int depth;
+        int width;
+        int height;
+        double millis; // The median time per frame
+        long rays = -1; // The rays per frame, or -1 if not counted
+
+        double raysPerSecond() {
+            return this.rays < 0 ? Double.NaN : this.rays / (this.millis / 1000);
+        }
+    }
+
+    private int[] objects = { 1000, 10000, 100000 };
+    private int[] lights = { 1, 4 };
+    private int[] shadowRays = { 1, 3 };
+    private int[] depths = { 1, 3 };
+    private int[][] resolutions = { { 200, 200 }, { 400, 400 } };
+    private double lightRadius = 1;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int warmup = 1;
+    private int frames = 3;
+    private String csvFileName;
+    private boolean count = true;
+
+    public static void main(String[] args) {
+        try {
+            ScalingBenchmark benchmark = new ScalingBenchmark();
+            for (String arg : args) {
+                if (arg.startsWith("--objects=")) {
+                    benchmark.objects = parseList(arg.substring("--objects=".length()));
+                } else if (arg.startsWith("--lights=")) {
+                    benchmark.lights = parseList(arg.substring("--lights=".length()));
+                } else if (arg.startsWith("--shadow-rays=")) {
+                    benchmark.shadowRays = parseList(arg.substring("--shadow-rays=".length()));
+                } else if (arg.startsWith("--depth=")) {
+                    benchmark.depths = parseList(arg.substring("--depth=".length()));
+                } else if (arg.startsWith("--resolutions=")) {
+                    String[] values = arg.substring("--resolutions=".length()).split(",");
+                    benchmark.resolutions = new int[values.length][];
+                    for (int i = 0; i < values.length; i++) {
+                        String[] size = values[i].toLowerCase().split("x");
+                        if (size.length != 2)
+                            throw new RayTracer.RayTracerException("Resolutions are WIDTHxHEIGHT: " + values[i]);
+                        benchmark.resolutions[i] = new int[] { Integer.parseInt(size[0]), Integer.parseInt(size[1]) };
+                    }
+                } else if (arg.startsWith("--light-radius=")) {
+                    benchmark.lightRadius = Double.parseDouble(arg.substring("--light-radius=".length()));
+                } else if (arg.startsWith("--threads=")) {
+                    benchmark.threads = Integer.parseInt(arg.substring("--threads=".length()));
+                } else if (arg.startsWith("--warmup=")) {
+                    benchmark.warmup = Integer.parseInt(arg.substring("--warmup=".length()));
+                } else if (arg.startsWith("--frames=")) {
+                    benchmark.frames = Integer.parseInt(arg.substring("--frames=".length()));
+                } else if (arg.startsWith("--csv=")) {
+                    benchmark.csvFileName = arg.substring("--csv=".length());
+                } else if (arg.equals("--no-count")) {
+                    benchmark.count = false;
+                } else {
+                    throw new RayTracer.RayTracerException("Unknown option: " + arg);
+                }
+            }
+            if (benchmark.frames < 1 || benchmark.warmup < 0 || benchmark.threads < 1)
+                throw new RayTracer.RayTracerException("The frames and threads must be positive.");
+
+            benchmark.run();
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    private static int[] parseList(String list) throws RayTracer.RayTracerException {
+        int[] values = Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+        for (int value : values) {
+            if (value < 1)
+                throw new RayTracer.RayTracerException("The values of the matrix must be positive: " + list);
+        }
+        return values;
+    }
+
+    /**
+     * Render every combination, print the results and the scaling of every
+     * dimension, and save them if asked to.
+     */
+    private void run() throws Exception {
+        System.out.println(String.format(Locale.ROOT, "%8s %6s %6s %5s %11s %12s %14s %10s", "objects", "lights",
+                "shadow", "depth", "resolution", "ms/frame", "rays/frame", "Mrays/s"));
+        List<Result> results = new ArrayList<>();
+        Path scene = Files.createTempFile("scaling", ".txt");
+        Path image = Files.createTempFile("scaling", ".ppm");
+        Path stats = Files.createTempFile("scaling", ".json");
+        try {
+            for (int objects : this.objects) {
+                for (int lights : this.lights) {
+                    for (int shadowRays : this.shadowRays) {
+                        for (int depth : this.depths) {
+                            SceneGenerator generator = new SceneGenerator();
+                            generator.spheres = objects - objects / 4;
+                            generator.boxes = objects / 4;
+                            generator.lights = lights;
+                            generator.lightRadius = this.lightRadius;
+                            generator.shadowRays = shadowRays;
+                            generator.recursionDepth = depth;
+                            generator.write(scene);
+                            for (int[] resolution : this.resolutions) {
+                                Result result = new Result();
+                                result.objects = objects;
+                                result.lights = lights;
+                                result.shadowRays = shadowRays;
+                                result.depth = depth;
+                                result.width = resolution[0];
+                                result.height = resolution[1];
+                                result.millis = this.time(scene, image, result.width, result.height);
+                                if (this.count) {
+                                    result.rays = this.countRays(scene, image, stats, result.width, result.height);
+                                }
+                                results.add(result);
+                                System.out.println(String.format(Locale.ROOT, "%8d %6d %6d %5d %11s %12.1f %14s %10s",
+                                        objects, lights, shadowRays, depth, result.width + "x" + result.height,
+                                        result.millis, result.rays < 0 ? "-" : Long.toString(result.rays),
+                                        result.rays < 0 ? "-"
+                                                : String.format(Locale.ROOT, "%.2f", result.raysPerSecond() / 1e6)));
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            Files.deleteIfExists(scene);
+            Files.deleteIfExists(image);
+            Files.deleteIfExists(stats);
+        }
+
+        System.out.println();
+        System.out.println("Scaling of the time per frame, time ~ value^k:");
+        this.printScaling(results, "objects", r -> r.objects);
+        this.printScaling(results, "lights", r -> r.lights);
+        this.printScaling(results, "shadow rays", r -> r.shadowRays);
+        this.printScaling(results, "depth", r -> r.depth);
+        this.printScaling(results, "pixels", r -> (double) r.width * r.height);
+
+        if (this.csvFileName != null) {
+            StringBuilder csv = new StringBuilder("objects,lights,shadowRays,depth,width,height,msPerFrame,raysPerFrame,raysPerSecond\n");
+            for (Result r : results) {
+                csv.append(String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%d,%.3f,", r.objects, r.lights, r.shadowRays,
+                        r.depth, r.width, r.height, r.millis));
+                // Blank if the rays weren't counted
+                csv.append(r.rays < 0 ? "," : String.format(Locale.ROOT, "%d,%.0f", r.rays, r.raysPerSecond()));
+                csv.append('\n');
+            }
+            Files.write(Paths.get(this.csvFileName), csv.toString().getBytes(StandardCharsets.UTF_8));
+            System.out.println("Saved results " + this.csvFileName);
+        }
+    }
+
+    /**
+     * Render a scene `warmup` + `frames` times.
+     *
+     * @return The median time of the timed frames, in milliseconds.
+     */
+    private double time(Path scene, Path image, int width, int height) throws Exception {
+        double[] millis = new double[this.frames];
+        PrintStream out = System.out;
+        // The parser and the renderer report every scene and frame, keep the table readable
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            RayTracer tracer = Scenes.tracer(width, height, this.threads);
+            Scene loaded = tracer.parseScene(scene.toString());
+            loaded.sampler = tracer.sampler;
+            loaded.freeze();
+            for (int i = -this.warmup; i < this.frames; i++) {
+                long start = System.nanoTime();
+                tracer.renderScene(loaded, image.toString());
+                if (i >= 0) {
+                    millis[i] = (System.nanoTime() - start) / 1e6;
+                }
+            }
+        } finally {
+            System.setOut(out);
+        }
+        Arrays.sort(millis);
+        return millis[millis.length / 2];
+    }
+
+    private static final Pattern RAYS = Pattern.compile("\"(primary|shadow|reflection|transparency)\": (\\d+)");
+
+    /**
+     * Count the rays of a frame, by rendering it in a child JVM with the
+     * renderer's counters on.
+     *
+     * @return The number of rays of every kind in the frame.
+     */
+    private long countRays(Path scene, Path image, Path stats, int width, int height) throws Exception {
+        Process process = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "RayTracing.RayTracer", scene.toString(),
+                image.toString(), Integer.toString(width), Integer.toString(height), "--threads=" + this.threads,
+                "--quiet", "--stats=" + stats).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        if (process.waitFor() != 0) {
+            throw new IOException("Counting the rays failed");
+        }
+        Matcher matcher = RAYS.matcher(new String(Files.readAllBytes(stats), StandardCharsets.UTF_8));
+        long rays = 0;
+        int kinds = 0;
+        while (matcher.find()) {
+            rays += Long.parseLong(matcher.group(2));
+            kinds++;
+        }
+        if (kinds != 4) {
+            throw new IOException("Counting the rays failed");
+        }
+        return rays;
+    }
+
+    /**
+     * Print the scaling exponent of a dimension: for every pair of results that
+     * differ only in the dimension, at its smallest and largest value, the k in
+     * time ~ value^k, and their mean.
+     */
+    private void printScaling(List<Result> results, String name, ToDoubleFunction<Result> dimension) {
+        double min = results.stream().mapToDouble(dimension).min().orElse(0);
+        double max = results.stream().mapToDouble(dimension).max().orElse(0);
+        if (min == max) {
+            return;
+        }
+        double sum = 0;
+        int pairs = 0;
+        for (Result low : results) {
+            if (dimension.applyAsDouble(low) != min) {
+                continue;
+            }
+            for (Result high : results) {
+                if (dimension.applyAsDouble(high) == max && this.sameExcept(low, high, dimension)) {
+                    sum += Math.log(high.millis / low.millis) / Math.log(max / min);
+                    pairs++;
+                }
+            }
+        }
+        System.out.println(String.format(Locale.ROOT, "  %-12s k = %.2f (from %s to %s, %d pairs)", name,
+                sum / pairs, format(min), format(max), pairs));
+    }
+
+    /**
+     * Check if two results differ in nothing but the given dimension.
+     */
+    private boolean sameExcept(Result a, Result b, ToDoubleFunction<Result> dimension) {
+        // Setting the dimension's value aside, compare the rest
+        double[] keysA = { a.objects, a.lights, a.shadowRays, a.depth, (double) a.width * a.height };
+        double[] keysB = { b.objects, b.lights, b.shadowRays, b.depth, (double) b.width * b.height };
+        int differing = 0;
+        for (int i = 0; i < keysA.length; i++) {
+            differing += keysA[i] != keysB[i] ? 1 : 0;
+        }
+        return differing == 1 && a.width * b.height == b.width * a.height
+                && dimension.applyAsDouble(a) != dimension.applyAsDouble(b);
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+    }
+}
@@ -0,0 +1,126 @@
+package RayTracing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Queries against a whole reference scene: the closest collision of the camera
+ * rays of a grid of pixels (`Ray.closestCollision`, and the renderer's
+ * `Scene.closestHit`, and `Scene.closestHits` for 8x8 packets of them), the
+ * occlusion of shadow rays from the points those rays hit to the scene's first
+ * light (`Scene.occluded`), and the intensity of that light at the points
+ * (`Light.lightIntensity`). Times are per ray and per point.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SceneBenchmark {
+    private static final int GRID = 32; // The width and height of the grid of pixels
+    private static final int PACKET = 8; // The width and height of a packet of rays
+
+    @Param({ "many", "soft" })
+    public String scene;
+
+    private Scene loaded;
+    private Ray[] rays;
+    private Ray[][] packets; // The rays, in blocks of PACKET x PACKET pixels
+    private Vector[] points; // Points the rays hit
+    private final Hit hit = new Hit();
+    private final Hit[] hits = new Hit[PACKET * PACKET];
+
+    @Setup
+    public void setup() throws Exception {
+        this.loaded = Scenes.load(this.scene, Scenes.tracer(GRID, GRID, 1));
+        this.rays = new Ray[GRID * GRID];
+        List<Vector> points = new ArrayList<>();
+        for (int y = 0; y < GRID; y++) {
+            for (int x = 0; x < GRID; x++) {
+                Ray ray = this.loaded.camera.pixelRay(((double) x) / GRID - 0.5, ((double) y) / GRID - 0.5).get();
+                this.rays[y * GRID + x] = ray;
+                ray.closestCollision(this.loaded).ifPresent(collision -> points.add(collision.second()));
+            }
+        }
+        this.packets = new Ray[(GRID / PACKET) * (GRID / PACKET)][PACKET * PACKET];
+        for (int y = 0; y < GRID; y++) {
+            for (int x = 0; x < GRID; x++) {
+                int packet = (y / PACKET) * (GRID / PACKET) + x / PACKET;
+                this.packets[packet][(y % PACKET) * PACKET + x % PACKET] = this.rays[y * GRID + x];
+            }
+        }
+        for (int i = 0; i < this.hits.length; i++) {
+            this.hits[i] = new Hit();
+        }
+        // As many points as rays, repeating the hit points
+        this.points = new Vector[GRID * GRID];
+        for (int i = 0; i < this.points.length; i++) {
+            this.points[i] = points.get(i % points.size());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GRID * GRID)
+    public void closestCollision(Blackhole blackhole) {
+        for (Ray ray : this.rays) {
+            Optional<Triple<Surface, Vector, Vector>> collision = ray.closestCollision(this.loaded);
+            blackhole.consume(collision);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GRID * GRID)
+    public void closestHit(Blackhole blackhole) {
+        for (Ray ray : this.rays) {
+            this.hit.reset(ray, Double.POSITIVE_INFINITY);
+            blackhole.consume(this.loaded.closestHit(ray, 0, this.hit));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GRID * GRID)
+    public void closestHits(Blackhole blackhole) {
+        for (Ray[] packet : this.packets) {
+            for (int i = 0; i < packet.length; i++) {
+                this.hits[i].reset(packet[i], Double.POSITIVE_INFINITY);
+            }
+            this.loaded.closestHits(packet, packet.length, 0, this.hits);
+            blackhole.consume(this.hits);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GRID * GRID)
+    public void occluded(Blackhole blackhole) {
+        Vector target = this.loaded.lights.get(0).position;
+        for (Vector point : this.points) {
+            blackhole.consume(this.loaded.occluded(point, target));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GRID * GRID)
+    public void lightIntensity(Blackhole blackhole) {
+        Light light = this.loaded.lights.get(0);
+        for (int i = 0; i < this.points.length; i++) {
+            blackhole.consume(light.lightIntensity(this.points[i], this.loaded, i));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package RayTracing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.Deflater;
+
+/**
+ * The reference scenes of the benchmarks, packaged as resources:
+ *
+ * - `basic`: a few primitives of every type, hard shadows.
+ * - `soft`: the basic scene with soft shadows.
+ * - `fisheye`: the basic scene through a fisheye lens.
+ * - `many`: 400 random spheres and boxes.
+ */
+final class Scenes {
+
+    private Scenes() {
+    }
+
+    /**
+     * Copy a reference scene to a temporary file, since the ray tracer reads
+     * scenes from files.
+     *
+     * @param name The scene's name.
+     * @return The scene file, deleted when the JVM exits.
+     */
+    static Path extract(String name) throws IOException {
+        Path file = Files.createTempFile("scene-" + name, ".txt");
+        file.toFile().deleteOnExit();
+        try (InputStream in = Scenes.class.getResourceAsStream("/scenes/" + name + ".txt")) {
+            if (in == null) {
+                throw new IOException("No reference scene named " + name);
+            }
+            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return file;
+    }
+
+    /**
+     * Create a ray tracer with the command line's default settings.
+     *
+     * @param width   The width of the image, in pixels.
+     * @param height  The height of the image, in pixels.
+     * @param threads The number of rendering threads.
+     * @return The ray tracer.
+     */
+    static RayTracer tracer(int width, int height, int threads) {
+        RayTracer tracer = new RayTracer();
+        tracer.imageWidth = width;
+        tracer.imageHeight = height;
+        tracer.threads = threads;
+        tracer.seed = 0;
+        tracer.sampler = new SobolSampler();
+        tracer.minWeight = 0;
+        tracer.rouletteDepth = Integer.MAX_VALUE;
+        tracer.packets = true;
+        tracer.quiet = true;
+        tracer.pngLevel = Deflater.DEFAULT_COMPRESSION;
+        return tracer;
+    }
+
+    /**
+     * Load and freeze a reference scene.
+     *
+     * @param name   The scene's name.
+     * @param tracer The ray tracer, for the image's aspect ratio.
+     * @return The scene, ready for rendering.
+     */
+    static Scene load(String name, RayTracer tracer) throws IOException, RayTracer.RayTracerException {
+        Scene scene = tracer.parseScene(extract(name).toString());
+        scene.sampler = tracer.sampler;
+        scene.freeze();
+        return scene;
+    }
+}
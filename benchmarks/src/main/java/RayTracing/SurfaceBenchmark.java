@@ -0,0 +1,111 @@
+package RayTracing;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The intersection tests of the surfaces, for rays from random points aimed
+ * near the surfaces, so that about half of them hit: `Surface.intersection`,
+ * and the allocation-free `Surface.intersect` the renderer uses, into a reused
+ * hit record. Times are per ray.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SurfaceBenchmark {
+    private static final int RAYS = 1024;
+
+    private Sphere sphere;
+    private Box box;
+    private Plane plane;
+    private Ray[] rays;
+    private final Hit hit = new Hit();
+
+    @Setup
+    public void setup() {
+        Material material = new Material(new Vector(1, 1, 1), new Vector(0, 0, 0), 1, new Vector(0, 0, 0), 0);
+        this.sphere = new Sphere(new Vector(0, 0, 0), 1, material);
+        this.box = new Box(new Vector(0, 0, 0), 2, material);
+        this.plane = new Plane(new Vector(0, 1, 0), 0, material);
+
+        Random random = new Random(1);
+        this.rays = new Ray[RAYS];
+        for (int i = 0; i < RAYS; i++) {
+            Vector origin = randomVector(random, 20);
+            Vector target = randomVector(random, 3);
+            this.rays[i] = new Ray(origin, target.sub(origin));
+        }
+    }
+
+    private static Vector randomVector(Random random, double scale) {
+        return new Vector(scale * (random.nextDouble() - 0.5), scale * (random.nextDouble() - 0.5),
+                scale * (random.nextDouble() - 0.5));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RAYS)
+    public void sphereIntersection(Blackhole blackhole) {
+        for (Ray ray : this.rays) {
+            blackhole.consume(this.sphere.intersection(ray));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RAYS)
+    public void boxIntersection(Blackhole blackhole) {
+        for (Ray ray : this.rays) {
+            blackhole.consume(this.box.intersection(ray));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RAYS)
+    public void planeIntersection(Blackhole blackhole) {
+        for (Ray ray : this.rays) {
+            blackhole.consume(this.plane.intersection(ray));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RAYS)
+    public void sphereIntersect(Blackhole blackhole) {
+        for (Ray ray : this.rays) {
+            this.hit.reset(ray, Double.POSITIVE_INFINITY);
+            blackhole.consume(this.sphere.intersect(ray, 0, Double.POSITIVE_INFINITY, this.hit));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RAYS)
+    public void boxIntersect(Blackhole blackhole) {
+        for (Ray ray : this.rays) {
+            this.hit.reset(ray, Double.POSITIVE_INFINITY);
+            blackhole.consume(this.box.intersect(ray, 0, Double.POSITIVE_INFINITY, this.hit));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RAYS)
+    public void planeIntersect(Blackhole blackhole) {
+        for (Ray ray : this.rays) {
+            this.hit.reset(ray, Double.POSITIVE_INFINITY);
+            blackhole.consume(this.plane.intersect(ray, 0, Double.POSITIVE_INFINITY, this.hit));
+        }
+    }
+}
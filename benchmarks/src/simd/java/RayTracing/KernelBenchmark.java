@@ -0,0 +1,151 @@
+package RayTracing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The intersection kernels of compiled scenes, SIMD (`SimdKernels`) against
+ * scalar (`ScalarKernels`), and the `Sphere`/`Box` objects they replace, for
+ * random rays against a block of spheres and a block of boxes. Only built with
+ * `-Psimd`. Before timing, the setup checks that both kernels find the same
+ * closest primitive for every ray. Times are per ray.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+public class KernelBenchmark {
+    private static final int RAYS = 4096;
+
+    @Param({ "8", "64" })
+    public int primitives;
+
+    private List<Surface> spheres;
+    private List<Surface> boxes;
+    private CompiledScene sphereScene;
+    private CompiledScene boxScene;
+    private Ray[] rays;
+    private final IntersectionKernels scalar = new ScalarKernels();
+    private final IntersectionKernels simd = new SimdKernels();
+    private final Hit hit = new Hit();
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        Material material = new Material(new Vector(1, 1, 1), new Vector(0, 0, 0), 1, new Vector(0, 0, 0), 0);
+        this.spheres = new ArrayList<>();
+        this.boxes = new ArrayList<>();
+        for (int i = 0; i < this.primitives; i++) {
+            this.spheres.add(new Sphere(randomVector(random, 10), 0.2 + random.nextDouble(), material));
+            this.boxes.add(new Box(randomVector(random, 10), 0.2 + random.nextDouble(), material));
+        }
+        this.sphereScene = new CompiledScene(this.spheres);
+        this.boxScene = new CompiledScene(this.boxes);
+        this.rays = new Ray[RAYS];
+        for (int i = 0; i < RAYS; i++) {
+            this.rays[i] = new Ray(randomVector(random, 20), randomVector(random, 1));
+        }
+
+        for (int i = 0; i < RAYS; i++) {
+            int expected = closestSphere(this.scalar, this.sphereScene, this.rays[i]);
+            int actual = closestSphere(this.simd, this.sphereScene, this.rays[i]);
+            if (actual != expected) {
+                throw new IllegalStateException(String.format(
+                        "Ray %d hits sphere %d with the scalar kernel but %d with the SIMD kernel", i, expected, actual));
+            }
+            expected = closestBox(this.scalar, this.boxScene, this.rays[i]);
+            actual = closestBox(this.simd, this.boxScene, this.rays[i]);
+            if (actual != expected) {
+                throw new IllegalStateException(String.format(
+                        "Ray %d hits box %d with the scalar kernel but %d with the SIMD kernel", i, expected, actual));
+            }
+        }
+    }
+
+    private static Vector randomVector(Random random, double scale) {
+        return new Vector(scale * (random.nextDouble() - 0.5), scale * (random.nextDouble() - 0.5),
+                scale * (random.nextDouble() - 0.5));
+    }
+
+    private static int closestSphere(IntersectionKernels kernels, CompiledScene scene, Ray ray) {
+        return kernels.closestSphere(scene, 0, scene.sphereCount, ray.origin.x, ray.origin.y, ray.origin.z,
+                ray.direction.x, ray.direction.y, ray.direction.z, 0, Double.POSITIVE_INFINITY);
+    }
+
+    private static int closestBox(IntersectionKernels kernels, CompiledScene scene, Ray ray) {
+        return kernels.closestBox(scene, 0, scene.boxCount, ray.origin.x, ray.origin.y, ray.origin.z,
+                1 / ray.direction.x, 1 / ray.direction.y, 1 / ray.direction.z, 0, Double.POSITIVE_INFINITY);
+    }
+
+    private void closestSurface(List<Surface> surfaces, Blackhole blackhole) {
+        for (Ray ray : this.rays) {
+            this.hit.reset(ray, Double.POSITIVE_INFINITY);
+            for (Surface surface : surfaces) {
+                surface.intersect(ray, 0, this.hit.t, this.hit);
+            }
+            blackhole.consume(this.hit.isPresent());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RAYS)
+    public void sphereObjects(Blackhole blackhole) {
+        this.closestSurface(this.spheres, blackhole);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RAYS)
+    public void sphereScalar(Blackhole blackhole) {
+        for (Ray ray : this.rays) {
+            blackhole.consume(closestSphere(this.scalar, this.sphereScene, ray));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RAYS)
+    public void sphereSimd(Blackhole blackhole) {
+        for (Ray ray : this.rays) {
+            blackhole.consume(closestSphere(this.simd, this.sphereScene, ray));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RAYS)
+    public void boxObjects(Blackhole blackhole) {
+        this.closestSurface(this.boxes, blackhole);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RAYS)
+    public void boxScalar(Blackhole blackhole) {
+        for (Ray ray : this.rays) {
+            blackhole.consume(closestBox(this.scalar, this.boxScene, ray));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RAYS)
+    public void boxSimd(Blackhole blackhole) {
+        for (Ray ray : this.rays) {
+            blackhole.consume(closestBox(this.simd, this.boxScene, ray));
+        }
+    }
+}
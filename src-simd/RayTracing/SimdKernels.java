@@ -0,0 +1,131 @@
+package RayTracing;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Intersection tests of a ray against several spheres or boxes at once, one
+ * primitive per SIMD lane (4 doubles with AVX2, 8 with AVX-512). The lanes
+ * evaluate the same expressions as the scalar tests, in the same order, so the
+ * results are identical.
+ *
+ * Every lane keeps the closest intersection it has seen and its index; the
+ * lanes are only reduced once, at the end of the range.
+ *
+ * Needs the incubating `jdk.incubator.vector` module; `IntersectionKernels`
+ * only loads this class if the module is present.
+ */
+public class SimdKernels implements IntersectionKernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final DoubleVector LANES = DoubleVector.zero(SPECIES).addIndex(1); // 0, 1, 2, ...
+
+    @Override
+    public int width() {
+        return SPECIES.length();
+    }
+
+    @Override
+    public int closestSphere(CompiledScene scene, int start, int end, double ox, double oy, double oz, double dx,
+            double dy, double dz, double tMin, double tMax) {
+        DoubleVector closest = DoubleVector.broadcast(SPECIES, tMax);
+        DoubleVector closestIndex = DoubleVector.broadcast(SPECIES, -1);
+        for (int i = start; i < end; i += SPECIES.length()) {
+            VectorMask<Double> inRange = SPECIES.indexInRange(i, end);
+            DoubleVector cx, cy, cz, radius;
+            if (inRange.allTrue()) {
+                cx = DoubleVector.fromArray(SPECIES, scene.sphereCx, i);
+                cy = DoubleVector.fromArray(SPECIES, scene.sphereCy, i);
+                cz = DoubleVector.fromArray(SPECIES, scene.sphereCz, i);
+                radius = DoubleVector.fromArray(SPECIES, scene.sphereR, i);
+            } else {
+                cx = DoubleVector.fromArray(SPECIES, scene.sphereCx, i, inRange);
+                cy = DoubleVector.fromArray(SPECIES, scene.sphereCy, i, inRange);
+                cz = DoubleVector.fromArray(SPECIES, scene.sphereCz, i, inRange);
+                radius = DoubleVector.fromArray(SPECIES, scene.sphereR, i, inRange);
+            }
+            DoubleVector diffX = cx.sub(ox);
+            DoubleVector diffY = cy.sub(oy);
+            DoubleVector diffZ = cz.sub(oz);
+
+            DoubleVector projection = diffX.mul(dx).add(diffY.mul(dy)).add(diffZ.mul(dz));
+            DoubleVector squaredDistance = diffX.mul(diffX).add(diffY.mul(diffY)).add(diffZ.mul(diffZ))
+                    .sub(projection.mul(projection));
+            DoubleVector squaredLength = radius.mul(radius).sub(squaredDistance);
+            VectorMask<Double> valid = inRange.and(squaredLength.compare(VectorOperators.GE, 0));
+
+            DoubleVector length = squaredLength.lanewise(VectorOperators.SQRT);
+            DoubleVector near = projection.sub(length);
+            DoubleVector t = near.blend(projection.add(length), near.compare(VectorOperators.LT, tMin));
+            VectorMask<Double> closer = valid.and(t.compare(VectorOperators.GE, tMin))
+                    .and(t.compare(VectorOperators.LT, closest));
+
+            closest = closest.blend(t, closer);
+            closestIndex = closestIndex.blend(LANES.add(i), closer);
+        }
+        return reduce(closest, closestIndex, tMax);
+    }
+
+    @Override
+    public int closestBox(CompiledScene scene, int start, int end, double ox, double oy, double oz, double invX,
+            double invY, double invZ, double tMin, double tMax) {
+        DoubleVector closest = DoubleVector.broadcast(SPECIES, tMax);
+        DoubleVector closestIndex = DoubleVector.broadcast(SPECIES, -1);
+        for (int i = start; i < end; i += SPECIES.length()) {
+            VectorMask<Double> inRange = SPECIES.indexInRange(i, end);
+            DoubleVector minX, minY, minZ, maxX, maxY, maxZ;
+            if (inRange.allTrue()) {
+                minX = DoubleVector.fromArray(SPECIES, scene.boxMinX, i);
+                minY = DoubleVector.fromArray(SPECIES, scene.boxMinY, i);
+                minZ = DoubleVector.fromArray(SPECIES, scene.boxMinZ, i);
+                maxX = DoubleVector.fromArray(SPECIES, scene.boxMaxX, i);
+                maxY = DoubleVector.fromArray(SPECIES, scene.boxMaxY, i);
+                maxZ = DoubleVector.fromArray(SPECIES, scene.boxMaxZ, i);
+            } else {
+                minX = DoubleVector.fromArray(SPECIES, scene.boxMinX, i, inRange);
+                minY = DoubleVector.fromArray(SPECIES, scene.boxMinY, i, inRange);
+                minZ = DoubleVector.fromArray(SPECIES, scene.boxMinZ, i, inRange);
+                maxX = DoubleVector.fromArray(SPECIES, scene.boxMaxX, i, inRange);
+                maxY = DoubleVector.fromArray(SPECIES, scene.boxMaxY, i, inRange);
+                maxZ = DoubleVector.fromArray(SPECIES, scene.boxMaxZ, i, inRange);
+            }
+            DoubleVector t1 = minX.sub(ox).mul(invX);
+            DoubleVector t2 = maxX.sub(ox).mul(invX);
+            DoubleVector near = t1.min(t2);
+            DoubleVector far = t1.max(t2);
+            t1 = minY.sub(oy).mul(invY);
+            t2 = maxY.sub(oy).mul(invY);
+            near = near.max(t1.min(t2));
+            far = far.min(t1.max(t2));
+            t1 = minZ.sub(oz).mul(invZ);
+            t2 = maxZ.sub(oz).mul(invZ);
+            near = near.max(t1.min(t2));
+            far = far.min(t1.max(t2));
+
+            VectorMask<Double> valid = inRange.and(near.compare(VectorOperators.LE, far));
+            DoubleVector t = far.blend(near, near.compare(VectorOperators.GE, tMin));
+            VectorMask<Double> closer = valid.and(t.compare(VectorOperators.GE, tMin))
+                    .and(t.compare(VectorOperators.LT, closest));
+
+            closest = closest.blend(t, closer);
+            closestIndex = closestIndex.blend(LANES.add(i), closer);
+        }
+        return reduce(closest, closestIndex, tMax);
+    }
+
+    /**
+     * Reduce the per lane results of a kernel.
+     *
+     * @return The lowest index holding the smallest distance, or -1 if no lane
+     *         found a distance below `tMax`.
+     */
+    private static int reduce(DoubleVector closest, DoubleVector closestIndex, double tMax) {
+        double minimum = closest.reduceLanes(VectorOperators.MIN);
+        if (!(minimum < tMax)) {
+            return -1;
+        }
+        VectorMask<Double> minimal = closest.compare(VectorOperators.EQ, minimum);
+        return (int) closestIndex.reduceLanes(VectorOperators.MIN, minimal);
+    }
+}
@@ -0,0 +1,733 @@
+package RayTracing;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A bounding volume hierarchy over the bounded primitives of a scene, built with
+ * the surface area heuristic (SAH).
+ *
+ * The hierarchy only knows the bounds of the primitives. It orders them so that
+ * every leaf covers a contiguous range of positions, and leaves the
+ * intersection tests of a leaf's primitives to the owner of the primitives.
+ *
+ * The tree is flattened into arrays in depth-first order: the left child of an
+ * interior node directly follows it, and `nodeFirst` holds the index of the
+ * right child. For a leaf, `nodeFirst` is the position of its first primitive
+ * and `nodeCount` is the number of primitives in it.
+ */
+public class BVH {
+    private static final int BIN_COUNT = 16; // The number of candidate split positions per node
+    private static final int MAX_LEAF_SIZE = 4; // Larger nodes are always split, for single primitive tests
+    private static final double TRAVERSAL_COST = 1; // The cost of visiting a node, relative to a primitive test
+
+    /**
+     * The buffers of a traversal: the nodes waiting to be visited, with the
+     * distances at which the rays enter them, and the origins and inverse
+     * directions of a packet's rays. Kept per thread and reused between queries,
+     * so that queries don't allocate.
+     */
+    private static class Traversal {
+        int[] stack = new int[64];
+        double[] entries = new double[64];
+        final double[] origin = new double[6]; // The bounds of a packet's origins
+        final double[] inverse = new double[6]; // The bounds of a packet's inverse directions
+        double[] ox = new double[0], oy = new double[0], oz = new double[0];
+        double[] invX = new double[0], invY = new double[0], invZ = new double[0];
+
+        /**
+         * Double the capacity of the stack.
+         */
+        void grow() {
+            this.stack = Arrays.copyOf(this.stack, 2 * this.stack.length);
+            this.entries = Arrays.copyOf(this.entries, 2 * this.entries.length);
+        }
+
+        /**
+         * Make room for the rays of a packet.
+         */
+        void reserve(int count) {
+            if (this.ox.length < count) {
+                this.ox = new double[count];
+                this.oy = new double[count];
+                this.oz = new double[count];
+                this.invX = new double[count];
+                this.invY = new double[count];
+                this.invZ = new double[count];
+            }
+        }
+    }
+
+    private static final ThreadLocal<Traversal> TRAVERSALS = ThreadLocal.withInitial(Traversal::new);
+
+    private final int width; // The number of primitives a leaf test handles at once
+    private final int maxLeafSize;
+
+    private final int[] order; // The primitives' indices, in leaf order
+    private double[] nodeBounds; // min x, y, z and max x, y, z of every node
+    private int[] nodeFirst;
+    private int[] nodeCount;
+    private int nodes;
+
+    // Per primitive bounds and centroids, only used while building
+    private double[] primitiveBounds;
+    private double[] centroids;
+
+    /**
+     * The intersection tests of the primitives in a leaf.
+     */
+    public interface Leaves {
+        /**
+         * Intersect a ray with the primitives in positions `first` to `first` +
+         * `count` of the hierarchy's order.
+         *
+         * @param ray    The traced ray.
+         * @param tMin   The smallest accepted distance from the ray's origin.
+         * @param tMax   Intersections at this distance or farther are ignored.
+         * @param hit    The closest intersection is recorded here.
+         * @param anyHit If true, may return after the first intersection found.
+         * @return If an intersection with `tMin` <= t < `tMax` was found.
+         */
+        boolean intersect(int first, int count, Ray ray, double tMin, double tMax, Hit hit, boolean anyHit);
+    }
+
+    /**
+     * Build the hierarchy, for leaf tests that handle one primitive at a time.
+     *
+     * @param bounds The bounds of the primitives: min x, y, z and max x, y, z of
+     *               every primitive.
+     */
+    public BVH(double[] bounds) {
+        this(bounds, 1);
+    }
+
+    /**
+     * Build the hierarchy.
+     *
+     * @param bounds The bounds of the primitives: min x, y, z and max x, y, z of
+     *               every primitive.
+     * @param width  The number of primitives the leaf tests handle at once (the
+     *               SIMD width). Wider tests make larger leaves cheaper.
+     */
+    public BVH(double[] bounds, int width) {
+        this.width = width;
+        this.maxLeafSize = Math.max(MAX_LEAF_SIZE, 2 * width);
+        int count = bounds.length / 6;
+        this.primitiveBounds = bounds;
+        this.centroids = new double[3 * count];
+        for (int i = 0; i < count; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                this.centroids[3 * i + axis] = (bounds[6 * i + axis] + bounds[6 * i + 3 + axis]) / 2;
+            }
+        }
+
+        int capacity = Math.max(1, 2 * count - 1);
+        this.nodeBounds = new double[6 * capacity];
+        this.nodeFirst = new int[capacity];
+        this.nodeCount = new int[capacity];
+        this.nodes = 0;
+
+        this.order = new int[count];
+        for (int i = 0; i < count; i++) {
+            this.order[i] = i;
+        }
+        if (count > 0) {
+            this.build(this.order, 0, count);
+        }
+        this.primitiveBounds = null;
+        this.centroids = null;
+    }
+
+    /**
+     * Load a hierarchy saved by `write`, over primitives that are already laid out
+     * in its leaf order.
+     *
+     * @param in         The compiled scene file, at the start of the hierarchy.
+     * @param primitives The number of primitives in the hierarchy.
+     * @throws RayTracer.RayTracerException If the nodes don't form a tree over
+     *                                      the primitives.
+     */
+    BVH(SceneFile.Input in, int primitives) throws IOException, RayTracer.RayTracerException {
+        this.width = in.readInt();
+        this.maxLeafSize = Math.max(MAX_LEAF_SIZE, 2 * this.width);
+        this.nodes = in.readInt();
+        if (this.width < 1 || this.nodes < 0 || (6L * Double.BYTES + 2 * Integer.BYTES) * this.nodes > in.remaining()) {
+            throw in.corrupt();
+        }
+        this.nodeBounds = in.readDoubles(6 * this.nodes);
+        this.nodeFirst = in.readInts(this.nodes);
+        this.nodeCount = in.readInts(this.nodes);
+        this.order = null;
+
+        // Children follow their parents, and leaves hold existing primitives
+        for (int node = 0; node < this.nodes; node++) {
+            int first = this.nodeFirst[node];
+            int count = this.nodeCount[node];
+            boolean valid = count > 0 ? first >= 0 && first <= primitives - count
+                    : count == 0 && node + 1 < this.nodes && first > node + 1 && first < this.nodes;
+            if (!valid) {
+                throw in.corrupt();
+            }
+        }
+    }
+
+    /**
+     * Save the hierarchy's nodes, to be loaded by `BVH(SceneFile.Input)`. The
+     * primitives' order isn't saved.
+     *
+     * @param out The compiled scene file.
+     */
+    void write(SceneFile.Output out) throws IOException {
+        out.writeInt(this.width);
+        out.writeInt(this.nodes);
+        out.writeDoubles(this.nodeBounds, 6 * this.nodes);
+        out.writeInts(this.nodeFirst, this.nodes);
+        out.writeInts(this.nodeCount, this.nodes);
+    }
+
+    /**
+     * @return The primitives' indices in leaf order: the primitives of every leaf
+     *         are consecutive in it. Null for a hierarchy loaded from a file.
+     */
+    public int[] order() {
+        return this.order;
+    }
+
+    /**
+     * @return The number of nodes in the hierarchy.
+     */
+    public int size() {
+        return this.nodes;
+    }
+
+    /**
+     * Refit the hierarchy to primitives that moved: recompute the bounds of every
+     * node, bottom up, keeping the tree as it is. Much cheaper than building it
+     * again, but the tree fits the primitives worse the farther they move from
+     * where it was built for (see `cost`).
+     *
+     * @param bounds The bounds of the primitives, in leaf order: min x, y, z and
+     *               max x, y, z of the primitive at every position.
+     */
+    public void refit(double[] bounds) {
+        // Children follow their parents, so going backwards visits them first
+        for (int node = this.nodes - 1; node >= 0; node--) {
+            int offset = 6 * node;
+            emptyBounds(this.nodeBounds, offset);
+            if (this.nodeCount[node] > 0) {
+                for (int position = this.nodeFirst[node]; position < this.nodeFirst[node]
+                        + this.nodeCount[node]; position++) {
+                    this.growNode(offset, bounds, 6 * position);
+                }
+            } else {
+                this.growNode(offset, this.nodeBounds, 6 * (node + 1));
+                this.growNode(offset, this.nodeBounds, 6 * this.nodeFirst[node]);
+            }
+        }
+    }
+
+    /**
+     * Grow the bounds of the node at `offset` in `nodeBounds` to contain the
+     * bounds at `otherOffset` in `other`.
+     */
+    private void growNode(int offset, double[] other, int otherOffset) {
+        for (int axis = 0; axis < 3; axis++) {
+            this.nodeBounds[offset + axis] = Math.min(this.nodeBounds[offset + axis], other[otherOffset + axis]);
+            this.nodeBounds[offset + 3 + axis] = Math.max(this.nodeBounds[offset + 3 + axis],
+                    other[otherOffset + 3 + axis]);
+        }
+    }
+
+    /**
+     * Calculate the hierarchy's SAH cost: the expected cost of finding a ray's
+     * intersection through it, in primitive tests, for a ray that hits the root.
+     * Comparing it after refits with the cost after building tells how much the
+     * tree degraded.
+     *
+     * @return The cost.
+     */
+    public double cost() {
+        double rootArea = this.nodes > 0 ? area(this.nodeBounds, 0) : 0;
+        if (rootArea <= 0) {
+            return 0;
+        }
+        double cost = 0;
+        for (int node = 0; node < this.nodes; node++) {
+            double probability = area(this.nodeBounds, 6 * node) / rootArea;
+            cost += probability * (this.nodeCount[node] > 0 ? this.testCost(this.nodeCount[node]) : TRAVERSAL_COST);
+        }
+        return cost;
+    }
+
+    /**
+     * Grow `bounds` (min x, y, z and max x, y, z) to contain the bounds of a
+     * primitive.
+     */
+    private void growBounds(double[] bounds, int offset, int primitive) {
+        for (int axis = 0; axis < 3; axis++) {
+            bounds[offset + axis] = Math.min(bounds[offset + axis], this.primitiveBounds[6 * primitive + axis]);
+            bounds[offset + 3 + axis] = Math.max(bounds[offset + 3 + axis],
+                    this.primitiveBounds[6 * primitive + 3 + axis]);
+        }
+    }
+
+    private static double area(double[] bounds, int offset) {
+        double dx = bounds[offset + 3] - bounds[offset];
+        double dy = bounds[offset + 4] - bounds[offset + 1];
+        double dz = bounds[offset + 5] - bounds[offset + 2];
+        return 2 * (dx * dy + dy * dz + dz * dx);
+    }
+
+    private static void emptyBounds(double[] bounds, int offset) {
+        Arrays.fill(bounds, offset, offset + 3, Double.POSITIVE_INFINITY);
+        Arrays.fill(bounds, offset + 3, offset + 6, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Build the subtree of the primitives `order[start:end]`, reordering them so
+     * that every leaf refers to a contiguous range.
+     *
+     * @return The index of the subtree's root node.
+     */
+    private int build(int[] order, int start, int end) {
+        int node = this.nodes++;
+        int count = end - start;
+
+        emptyBounds(this.nodeBounds, 6 * node);
+        double[] centroidBounds = new double[6];
+        emptyBounds(centroidBounds, 0);
+        for (int i = start; i < end; i++) {
+            this.growBounds(this.nodeBounds, 6 * node, order[i]);
+            for (int axis = 0; axis < 3; axis++) {
+                double c = this.centroids[3 * order[i] + axis];
+                centroidBounds[axis] = Math.min(centroidBounds[axis], c);
+                centroidBounds[3 + axis] = Math.max(centroidBounds[3 + axis], c);
+            }
+        }
+
+        // Split along the axis in which the centroids are spread the most
+        int axis = 0;
+        for (int a = 1; a < 3; a++) {
+            if (centroidBounds[3 + a] - centroidBounds[a] > centroidBounds[3 + axis] - centroidBounds[axis]) {
+                axis = a;
+            }
+        }
+        double low = centroidBounds[axis];
+        double extent = centroidBounds[3 + axis] - low;
+        if (count == 1 || extent <= 0) {
+            return this.leaf(node, start, count);
+        }
+
+        // Bin the centroids and find the split with the lowest SAH cost
+        int[] binCounts = new int[BIN_COUNT];
+        double[] binBounds = new double[6 * BIN_COUNT];
+        for (int b = 0; b < BIN_COUNT; b++) {
+            emptyBounds(binBounds, 6 * b);
+        }
+        for (int i = start; i < end; i++) {
+            int bin = bin(this.centroids[3 * order[i] + axis], low, extent);
+            binCounts[bin]++;
+            this.growBounds(binBounds, 6 * bin, order[i]);
+        }
+        double[] rightAreas = new double[BIN_COUNT];
+        int[] rightCounts = new int[BIN_COUNT];
+        double[] accumulated = new double[6];
+        emptyBounds(accumulated, 0);
+        int accumulatedCount = 0;
+        for (int b = BIN_COUNT - 1; b > 0; b--) {
+            accumulatedCount += binCounts[b];
+            mergeBounds(accumulated, binBounds, 6 * b);
+            rightCounts[b] = accumulatedCount;
+            rightAreas[b] = accumulatedCount > 0 ? area(accumulated, 0) : 0;
+        }
+        emptyBounds(accumulated, 0);
+        accumulatedCount = 0;
+        double bestCost = Double.POSITIVE_INFINITY;
+        int bestSplit = -1;
+        for (int b = 1; b < BIN_COUNT; b++) {
+            accumulatedCount += binCounts[b - 1];
+            mergeBounds(accumulated, binBounds, 6 * (b - 1));
+            if (accumulatedCount == 0 || rightCounts[b] == 0) {
+                continue;
+            }
+            double cost = area(accumulated, 0) * this.testCost(accumulatedCount)
+                    + rightAreas[b] * this.testCost(rightCounts[b]);
+            if (cost < bestCost) {
+                bestCost = cost;
+                bestSplit = b;
+            }
+        }
+        double nodeArea = area(this.nodeBounds, 6 * node);
+        bestCost = TRAVERSAL_COST + (nodeArea > 0 ? bestCost / nodeArea : 0);
+        if (count <= this.maxLeafSize && (bestSplit < 0 || bestCost >= this.testCost(count))) {
+            return this.leaf(node, start, count);
+        }
+
+        // Partition the primitives around the split (or the middle, if binning failed)
+        int middle = start;
+        if (bestSplit >= 0) {
+            for (int i = start; i < end; i++) {
+                if (bin(this.centroids[3 * order[i] + axis], low, extent) < bestSplit) {
+                    int swap = order[i];
+                    order[i] = order[middle];
+                    order[middle++] = swap;
+                }
+            }
+        }
+        if (middle == start || middle == end) {
+            middle = start + count / 2;
+        }
+
+        this.build(order, start, middle);
+        this.nodeFirst[node] = this.build(order, middle, end);
+        this.nodeCount[node] = 0;
+        return node;
+    }
+
+    /**
+     * @return The cost of testing `count` primitives in a leaf, relative to a
+     *         single primitive test.
+     */
+    private int testCost(int count) {
+        return (count + this.width - 1) / this.width;
+    }
+
+    private int leaf(int node, int start, int count) {
+        this.nodeFirst[node] = start;
+        this.nodeCount[node] = count;
+        return node;
+    }
+
+    private static int bin(double centroid, double low, double extent) {
+        return Math.min(BIN_COUNT - 1, (int) (BIN_COUNT * (centroid - low) / extent));
+    }
+
+    private static void mergeBounds(double[] bounds, double[] other, int offset) {
+        for (int axis = 0; axis < 3; axis++) {
+            bounds[axis] = Math.min(bounds[axis], other[offset + axis]);
+            bounds[3 + axis] = Math.max(bounds[3 + axis], other[offset + 3 + axis]);
+        }
+    }
+
+    /**
+     * Calculate the distance at which a ray enters a node's bounds (slab test).
+     *
+     * @return The entry distance, or infinity if the ray misses the node before
+     *         `maxDistance`.
+     */
+    private double entry(int node, double ox, double oy, double oz, double invX, double invY, double invZ,
+            double maxDistance) {
+        int offset = 6 * node;
+        double t1 = (this.nodeBounds[offset] - ox) * invX;
+        double t2 = (this.nodeBounds[offset + 3] - ox) * invX;
+        double near = Math.min(t1, t2);
+        double far = Math.max(t1, t2);
+        t1 = (this.nodeBounds[offset + 1] - oy) * invY;
+        t2 = (this.nodeBounds[offset + 4] - oy) * invY;
+        near = Math.max(near, Math.min(t1, t2));
+        far = Math.min(far, Math.max(t1, t2));
+        t1 = (this.nodeBounds[offset + 2] - oz) * invZ;
+        t2 = (this.nodeBounds[offset + 5] - oz) * invZ;
+        near = Math.max(near, Math.min(t1, t2));
+        far = Math.min(far, Math.max(t1, t2));
+        if (far < Math.max(near, 0) || near > maxDistance) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return near;
+    }
+
+    /**
+     * Find the intersection of a ray with the primitives in the hierarchy that is
+     * closest to the ray's origin. Nodes are visited nearest first, and nodes
+     * farther than the closest intersection found so far are skipped.
+     *
+     * @param ray    The traced ray.
+     * @param tMin   The smallest accepted distance from the ray's origin.
+     * @param hit    The closest intersection found so far; intersections at
+     *               `hit.t` or farther are ignored. Updated if a closer one is
+     *               found.
+     * @param leaves The intersection tests of the primitives.
+     * @return If a closer intersection was found.
+     */
+    public boolean closestHit(Ray ray, double tMin, Hit hit, Leaves leaves) {
+        if (this.nodes == 0) {
+            return false;
+        }
+        double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+        double invX = 1 / ray.direction.x, invY = 1 / ray.direction.y, invZ = 1 / ray.direction.z;
+
+        boolean found = false;
+        // Nodes waiting to be visited, with the distances at which the ray enters them
+        Traversal traversal = TRAVERSALS.get();
+        int[] stack = traversal.stack;
+        double[] entries = traversal.entries;
+        int size = 0;
+        double rootEntry = this.entry(0, ox, oy, oz, invX, invY, invZ, hit.t);
+        if (rootEntry != Double.POSITIVE_INFINITY) {
+            stack[size] = 0;
+            entries[size++] = rootEntry;
+        }
+        while (size > 0) {
+            int node = stack[--size];
+            if (entries[size] > hit.t) {
+                // A closer intersection was found after the node was pushed
+                continue;
+            }
+            if (this.nodeCount[node] > 0) {
+                found |= leaves.intersect(this.nodeFirst[node], this.nodeCount[node], ray, tMin, hit.t, hit, false);
+                continue;
+            }
+            int left = node + 1;
+            int right = this.nodeFirst[node];
+            double leftEntry = this.entry(left, ox, oy, oz, invX, invY, invZ, hit.t);
+            double rightEntry = this.entry(right, ox, oy, oz, invX, invY, invZ, hit.t);
+            if (size + 2 > stack.length) {
+                traversal.grow();
+                stack = traversal.stack;
+                entries = traversal.entries;
+            }
+            // Push the farther child first, so the nearer one is visited first
+            boolean leftFirst = leftEntry <= rightEntry;
+            int far = leftFirst ? right : left;
+            int near = leftFirst ? left : right;
+            double farEntry = leftFirst ? rightEntry : leftEntry;
+            double nearEntry = leftFirst ? leftEntry : rightEntry;
+            if (farEntry != Double.POSITIVE_INFINITY) {
+                stack[size] = far;
+                entries[size++] = farEntry;
+            }
+            if (nearEntry != Double.POSITIVE_INFINITY) {
+                stack[size] = near;
+                entries[size++] = nearEntry;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Find the closest intersections of a packet of coherent rays (such as the
+     * camera rays of a block of neighbouring pixels) with the primitives in the
+     * hierarchy. The packet is traversed as a whole: a node is culled if none of
+     * the packet's rays can enter it, by testing the node against the interval
+     * of the packet's origins and inverse directions (the packet's frustum).
+     * Only at the leaves are the rays tested separately.
+     *
+     * Packets whose rays don't point the same way along every axis have no
+     * useful frustum, so their rays are traced separately.
+     *
+     * @param rays   The traced rays.
+     * @param count  The number of rays in the packet, at the start of `rays`.
+     * @param tMin   The smallest accepted distance from the rays' origins.
+     * @param hits   The closest intersection of every ray found so far, updated
+     *               like the hit of `closestHit`.
+     * @param leaves The intersection tests of the primitives.
+     */
+    public void closestHits(Ray[] rays, int count, double tMin, Hit[] hits, Leaves leaves) {
+        if (this.nodes == 0) {
+            return;
+        }
+        // The bounds of the packet's origins and inverse directions, per axis (min x, y,
+        // z and max x, y, z)
+        Traversal traversal = TRAVERSALS.get();
+        traversal.reserve(count);
+        double[] origin = traversal.origin;
+        double[] inverse = traversal.inverse;
+        double[] ox = traversal.ox, oy = traversal.oy, oz = traversal.oz;
+        double[] invX = traversal.invX, invY = traversal.invY, invZ = traversal.invZ;
+        emptyBounds(origin, 0);
+        emptyBounds(inverse, 0);
+        for (int i = 0; i < count; i++) {
+            Ray ray = rays[i];
+            ox[i] = ray.origin.x;
+            oy[i] = ray.origin.y;
+            oz[i] = ray.origin.z;
+            invX[i] = 1 / ray.direction.x;
+            invY[i] = 1 / ray.direction.y;
+            invZ[i] = 1 / ray.direction.z;
+            include(origin, ox[i], oy[i], oz[i]);
+            include(inverse, invX[i], invY[i], invZ[i]);
+        }
+        for (int axis = 0; axis < 3; axis++) {
+            boolean sameSign = inverse[axis] > 0 || inverse[axis + 3] < 0;
+            if (!sameSign || Double.isInfinite(inverse[axis]) || Double.isInfinite(inverse[axis + 3])) {
+                for (int i = 0; i < count; i++) {
+                    this.closestHit(rays[i], tMin, hits[i], leaves);
+                }
+                return;
+            }
+        }
+
+        int[] stack = traversal.stack;
+        double[] entries = traversal.entries;
+        int size = 0;
+        double maxT = maxT(hits, count);
+        double rootEntry = this.packetEntry(0, origin, inverse, maxT);
+        if (rootEntry != Double.POSITIVE_INFINITY) {
+            stack[size] = 0;
+            entries[size++] = rootEntry;
+        }
+        while (size > 0) {
+            int node = stack[--size];
+            if (entries[size] > maxT) {
+                // Closer intersections were found for all the rays after the node was pushed
+                continue;
+            }
+            if (this.nodeCount[node] > 0) {
+                for (int i = 0; i < count; i++) {
+                    if (this.entry(node, ox[i], oy[i], oz[i], invX[i], invY[i], invZ[i],
+                            hits[i].t) != Double.POSITIVE_INFINITY) {
+                        leaves.intersect(this.nodeFirst[node], this.nodeCount[node], rays[i], tMin, hits[i].t, hits[i],
+                                false);
+                    }
+                }
+                maxT = maxT(hits, count);
+                continue;
+            }
+            int left = node + 1;
+            int right = this.nodeFirst[node];
+            double leftEntry = this.packetEntry(left, origin, inverse, maxT);
+            double rightEntry = this.packetEntry(right, origin, inverse, maxT);
+            if (size + 2 > stack.length) {
+                traversal.grow();
+                stack = traversal.stack;
+                entries = traversal.entries;
+            }
+            // Push the farther child first, so the nearer one is visited first
+            boolean leftFirst = leftEntry <= rightEntry;
+            int far = leftFirst ? right : left;
+            int near = leftFirst ? left : right;
+            double farEntry = leftFirst ? rightEntry : leftEntry;
+            double nearEntry = leftFirst ? leftEntry : rightEntry;
+            if (farEntry != Double.POSITIVE_INFINITY) {
+                stack[size] = far;
+                entries[size++] = farEntry;
+            }
+            if (nearEntry != Double.POSITIVE_INFINITY) {
+                stack[size] = near;
+                entries[size++] = nearEntry;
+            }
+        }
+    }
+
+    /**
+     * Grow bounds (min x, y, z and max x, y, z) to include a point.
+     */
+    private static void include(double[] bounds, double x, double y, double z) {
+        bounds[0] = Math.min(bounds[0], x);
+        bounds[1] = Math.min(bounds[1], y);
+        bounds[2] = Math.min(bounds[2], z);
+        bounds[3] = Math.max(bounds[3], x);
+        bounds[4] = Math.max(bounds[4], y);
+        bounds[5] = Math.max(bounds[5], z);
+    }
+
+    /**
+     * @return The largest distance of the closest intersections of a packet's
+     *         rays.
+     */
+    private static double maxT(Hit[] hits, int count) {
+        double maxT = 0;
+        for (int i = 0; i < count; i++) {
+            maxT = Math.max(maxT, hits[i].t);
+        }
+        return maxT;
+    }
+
+    /**
+     * Compute a lower bound of the distances at which the rays of a packet enter
+     * a node, from the intervals of their origins and inverse directions (see
+     * `closestHits`). Rounding is monotonic, so the bound holds for the
+     * distances computed by `entry` for every ray.
+     *
+     * @param origin      The bounds of the packet's origins.
+     * @param inverse     The bounds of the packet's inverse directions, all of
+     *                    the same sign along every axis.
+     * @param maxDistance The largest distance at which an intersection is still
+     *                    of use to any of the rays.
+     * @return The lower bound, or infinity if none of the rays can intersect the
+     *         node before `maxDistance`.
+     */
+    private double packetEntry(int node, double[] origin, double[] inverse, double maxDistance) {
+        int offset = 6 * node;
+        double near = Double.NEGATIVE_INFINITY;
+        double far = Double.POSITIVE_INFINITY;
+        for (int axis = 0; axis < 3; axis++) {
+            double low = this.nodeBounds[offset + axis];
+            double high = this.nodeBounds[offset + axis + 3];
+            // The slab is entered at its low side by rays going up the axis
+            boolean up = inverse[axis] > 0;
+            double enter = up ? low : high;
+            double exit = up ? high : low;
+            near = Math.max(near, lowerProduct(enter - origin[axis + 3], enter - origin[axis], inverse[axis],
+                    inverse[axis + 3]));
+            far = Math.min(far, upperProduct(exit - origin[axis + 3], exit - origin[axis], inverse[axis],
+                    inverse[axis + 3]));
+        }
+        if (far < Math.max(near, 0) || near > maxDistance) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return near;
+    }
+
+    /**
+     * @return The smallest product of a value in [`a0`, `a1`] and a value in
+     *         [`b0`, `b1`].
+     */
+    private static double lowerProduct(double a0, double a1, double b0, double b1) {
+        return Math.min(Math.min(a0 * b0, a0 * b1), Math.min(a1 * b0, a1 * b1));
+    }
+
+    /**
+     * @return The largest product of a value in [`a0`, `a1`] and a value in
+     *         [`b0`, `b1`].
+     */
+    private static double upperProduct(double a0, double a1, double b0, double b1) {
+        return Math.max(Math.max(a0 * b0, a0 * b1), Math.max(a1 * b0, a1 * b1));
+    }
+
+    /**
+     * Check if a ray intersects any of the primitives in the hierarchy in a range
+     * of distances. Returns as soon as such an intersection is found.
+     *
+     * @param ray    The traced ray.
+     * @param tMin   The smallest accepted distance from the ray's origin.
+     * @param tMax   Intersections at this distance or farther are ignored.
+     * @param hit    A scratch record for the intersection tests.
+     * @param leaves The intersection tests of the primitives.
+     * @return If there is an intersection with `tMin` <= t < `tMax`.
+     */
+    public boolean anyHit(Ray ray, double tMin, double tMax, Hit hit, Leaves leaves) {
+        if (this.nodes == 0) {
+            return false;
+        }
+        double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+        double invX = 1 / ray.direction.x, invY = 1 / ray.direction.y, invZ = 1 / ray.direction.z;
+
+        Traversal traversal = TRAVERSALS.get();
+        int[] stack = traversal.stack;
+        int size = 0;
+        if (this.entry(0, ox, oy, oz, invX, invY, invZ, tMax) != Double.POSITIVE_INFINITY) {
+            stack[size++] = 0;
+        }
+        while (size > 0) {
+            int node = stack[--size];
+            if (this.nodeCount[node] > 0) {
+                if (leaves.intersect(this.nodeFirst[node], this.nodeCount[node], ray, tMin, tMax, hit, true)) {
+                    return true;
+                }
+                continue;
+            }
+            if (size + 2 > stack.length) {
+                traversal.grow();
+                stack = traversal.stack;
+            }
+            if (this.entry(node + 1, ox, oy, oz, invX, invY, invZ, tMax) != Double.POSITIVE_INFINITY) {
+                stack[size++] = node + 1;
+            }
+            if (this.entry(this.nodeFirst[node], ox, oy, oz, invX, invY, invZ, tMax) != Double.POSITIVE_INFINITY) {
+                stack[size++] = this.nodeFirst[node];
+            }
+        }
+        return false;
+    }
+}
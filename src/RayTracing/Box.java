@@ -1,117 +1,96 @@
 package RayTracing;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Optional;
-
 public class Box extends Surface {
-    private Vector position;
-    private double length;
+    Vector position;
+    double length;
+
+    // The corners of the box, precomputed for the intersection test
+    final double minX, minY, minZ;
+    final double maxX, maxY, maxZ;
 
     public Box(Vector position, double length, Material material) {
         super(material);
         this.position = position;
         this.length = length;
+        this.minX = position.x - length / 2;
+        this.minY = position.y - length / 2;
+        this.minZ = position.z - length / 2;
+        this.maxX = position.x + length / 2;
+        this.maxY = position.y + length / 2;
+        this.maxZ = position.z + length / 2;
     }
 
-    /**
-     * An enum representation of the three 3D axes x, y and z.
-     */
-    private enum Axis {
-        X(new Vector(1, 0, 0)), Y(new Vector(0, 1, 0)), Z(new Vector(0, 0, 1));
-
-        public final Vector axis;
-
-        private Axis(Vector axis) {
-            this.axis = axis;
+    @Override
+    public boolean intersect(Ray ray, double tMin, double tMax, Hit hit) {
+        // The slab method: intersect the ray with the three slabs between each pair
+        // of parallel faces, the box is the intersection of the slabs
+        double invX = 1 / ray.direction.x;
+        double invY = 1 / ray.direction.y;
+        double invZ = 1 / ray.direction.z;
+
+        double t1 = (this.minX - ray.origin.x) * invX;
+        double t2 = (this.maxX - ray.origin.x) * invX;
+        double near = Math.min(t1, t2);
+        double far = Math.max(t1, t2);
+        t1 = (this.minY - ray.origin.y) * invY;
+        t2 = (this.maxY - ray.origin.y) * invY;
+        near = Math.max(near, Math.min(t1, t2));
+        far = Math.min(far, Math.max(t1, t2));
+        t1 = (this.minZ - ray.origin.z) * invZ;
+        t2 = (this.maxZ - ray.origin.z) * invZ;
+        near = Math.max(near, Math.min(t1, t2));
+        far = Math.min(far, Math.max(t1, t2));
+
+        if (!(near <= far)) {
+            return false;
         }
-
-        public double pointAxis(Vector point) {
-            switch (this) {
-            case X: {
-                return point.x;
-            }
-            case Y: {
-                return point.y;
-            }
-            default: {
-                // case Z:
-                return point.z;
-            }
-
-            }
+        // If the entry point is behind the ray's origin, the ray starts inside the
+        // box and hits it on the way out
+        double offset = near >= tMin ? near : far;
+        if (offset < tMin || offset >= tMax) {
+            return false;
         }
+        hit.record(this, offset, 0);
+        return true;
     }
 
     /**
-     * Get the two faces perpendicular to a given axis (the box is axis aligned).
-     * 
-     * @param axis The axis which identifies the faces (x, y or z).
-     * @return The planes which extend the two faces perpendicular to `axis`.
-     */
-    private Pair<Plane, Plane> faces(Axis axis) {
-        double position = axis.pointAxis(this.position);
-
-        return new Pair<Plane, Plane>(new Plane(axis.axis, position - this.length / 2, this.material),
-                new Plane(axis.axis, position + this.length / 2, this.material));
-    }
-
-    /**
-     * Calculate the distance of a point from the box's center position in a single
-     * axis.
+     * Find the face of the box a point on its surface lies on.
      * 
-     * @param point A point in space.
-     * @param axis  The axis (x, y or z) that the distance is calculated relative
-     *              to.
-     * @return The absolute distance between `this.position` and `point` in the
-     *         `axis` axis.
+     * @param point A point on the box's surface.
+     * @return The face index: 2 * axis for the lower face perpendicular to the
+     *         axis (0 for x, 1 for y and 2 for z), and 2 * axis + 1 for the upper
+     *         face.
      */
-    private double distanceFromAxis(Vector point, Axis axis) {
-        return Math.abs(axis.pointAxis(point) - axis.pointAxis(this.position));
+    private int face(Vector point) {
+        // The point is on the face whose axis it is farthest from the center in
+        double dx = point.x - this.position.x;
+        double dy = point.y - this.position.y;
+        double dz = point.z - this.position.z;
+        if (Math.abs(dx) >= Math.abs(dy) && Math.abs(dx) >= Math.abs(dz)) {
+            return dx < 0 ? 0 : 1;
+        } else if (Math.abs(dy) >= Math.abs(dz)) {
+            return dy < 0 ? 2 : 3;
+        }
+        return dz < 0 ? 4 : 5;
     }
 
-    /**
-     * Check if a point is in the bounds defined by a box face. Notice that the
-     * bounds of two parallel faces are equal, and thus the bounds are defined by a
-     * single axis (the one perpendicular to the two faces).
-     * 
-     * If the point is on one of the planes perpendicular to the axis, and also in
-     * bounds, then the point is on the box's surface.
-     * 
-     * @param point A point in space.
-     * @param axis  The axis (x, y or z) perpendicular to the face(s) that defines
-     *              the bounds.
-     * @return If the point is in the bounds of the faces defined by `axis`.
-     */
-    private boolean inFaceBounds(Vector point, Axis axis) {
-        boolean xBounds = distanceFromAxis(point, Axis.X) <= this.length / 2;
-        boolean yBounds = distanceFromAxis(point, Axis.Y) <= this.length / 2;
-        boolean zBounds = distanceFromAxis(point, Axis.Z) <= this.length / 2;
-
-        switch (axis) {
-        case X: {
-            return yBounds && zBounds;
+    @Override
+    public Vector normal(Hit hit) {
+        int face = this.face(hit.point());
+        double sign = face % 2 == 0 ? -1 : 1;
+        switch (face / 2) {
+        case 0: {
+            return new Vector(sign, 0, 0);
         }
-        case Y: {
-            return xBounds && zBounds;
+        case 1: {
+            return new Vector(0, sign, 0);
         }
         default: {
-            // case Z:
-            return xBounds && yBounds;
+            // case 2:
+            return new Vector(0, 0, sign);
         }
 
         }
     }
-
-    @Override
-    public Optional<Pair<Vector, Vector>> intersection(Ray ray) {
-        return Arrays.stream(Axis.values())
-                .flatMap(axis -> Pair.stream(this.faces(axis)).map(face -> face.intersection(ray))
-                        .filter(intersection -> intersection.isPresent()
-                                && this.inFaceBounds(intersection.get().first(), axis)))
-                .map((Optional<Pair<Vector, Vector>> intersection) -> intersection.get())
-                .min((Pair<Vector, Vector> intersection1, Pair<Vector, Vector> intersection2) -> ray.origin
-                        .compareDistances(intersection1.first(), intersection2.first()));
-
-    }
 }
@@ -17,9 +17,17 @@ public class Camera {
     public final boolean fisheye;
     public final double fisheye_param;
 
+    // The parameters as given, before normalization, for saving the camera
+    public final Vector lookAt;
+    public final Vector requestedUp;
+
+    private final Vector center; // The center of the screen
+
     public Camera(Vector pos, Vector lookAt, Vector up, double screenDist, double screenWidth, double aspectRatio,
             boolean fisheye, double fisheye_param) {
         this.position = pos;
+        this.lookAt = lookAt;
+        this.requestedUp = up;
         this.towards = lookAt.sub(pos).normalize();
         this.right = this.towards.cross(up).normalize();
         this.upVector = fixUpVector(up, this.towards, this.right);
@@ -28,6 +36,7 @@ public class Camera {
         this.screenHeight = screenWidth * aspectRatio;
         this.fisheye = fisheye;
         this.fisheye_param = fisheye_param;
+        this.center = this.position.add(this.towards.mul(this.screenDist));
     }
 
     public Camera(Vector pos, Vector lookAt, Vector up, double screenDist, double screenWidth, double aspectRatio,
@@ -39,6 +48,17 @@ public class Camera {
         this(pos, lookAt, up, screenDist, screenWidth, aspectRatio, false, 0.5);
     }
 
+    /**
+     * Create the same camera for an image of another aspect ratio.
+     *
+     * @param aspectRatio The aspect ratio (height / width) of the rendered image.
+     * @return The camera.
+     */
+    public Camera withAspectRatio(double aspectRatio) {
+        return new Camera(this.position, this.lookAt, this.requestedUp, this.screenDist, this.screenWidth, aspectRatio,
+                this.fisheye, this.fisheye_param);
+    }
+
     /**
      * Fix the up vector to be perpendicular to the looking direction of the camera
      * 
@@ -67,7 +87,6 @@ public class Camera {
     }
 
     public Optional<Ray> pixelRay(double xRatio, double yRatio) {
-        Vector center = this.position.add(this.towards.mul(this.screenDist));
         if (fisheye) {
             double newR = Math.sqrt(xRatio * this.screenWidth * xRatio * this.screenWidth
                     + yRatio * this.screenHeight * yRatio * this.screenHeight);
@@ -80,7 +99,7 @@ public class Camera {
                 return Optional.empty();
             }
         }
-        Vector P = mapPixel(center, xRatio, yRatio);
+        Vector P = mapPixel(this.center, xRatio, yRatio);
         return Optional.of(new Ray(this.position, P.sub(position)));
     }
 }
@@ -0,0 +1,181 @@
+package RayTracing;
+
+/**
+ * Generates the directions of a camera's rays for the pixels of an image,
+ * prepared once per frame so that generating a ray costs a few multiplications
+ * and one square root.
+ *
+ * The offsets of the image plane's rows and columns from its center are
+ * tabulated, so the direction of a pixel's ray is a sum of its row's and its
+ * column's offsets, computed exactly as by `Camera.pixelRay`. For fisheye
+ * cameras, the remapping of a pixel's distance from the center of the image is
+ * interpolated from a table indexed by the squared distance, instead of being
+ * computed with `tan` and `atan` (or `asin`) for every pixel. Where the lens
+ * has no image, the scale is undefined, so in the table's cells that reach
+ * past the edge of the lens's image, the scale is computed exactly.
+ *
+ * The tables aren't changed after construction, so a generator can be shared
+ * by the rendering threads.
+ */
+public class CameraRays {
+    private static final int FISHEYE_TABLE_SIZE = 4096; // The number of entries of the radial remapping table
+
+    private final Camera camera;
+    private final int imageWidth;
+    private final int imageHeight;
+
+    // The center of the image plane, relative to the camera's position
+    private final double centerX, centerY, centerZ;
+    private final double[] rowOffsets; // x, y and z of the offset of every row from the center, along `up`
+    private final double[] columnOffsets; // x, y and z of the offset of every column from the center, along `right`
+
+    // The factor by which the fisheye lens scales the distance of a point on the
+    // image plane from its center, by the squared distance, or NaN where the lens
+    // has no image
+    private final double[] fisheyeScales;
+    private final double fisheyeStep; // The squared distance between entries of `fisheyeScales`
+
+    /**
+     * @param camera      The camera.
+     * @param imageWidth  The width of the image, in pixels.
+     * @param imageHeight The height of the image, in pixels.
+     */
+    public CameraRays(Camera camera, int imageWidth, int imageHeight) {
+        this.camera = camera;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        Vector center = camera.position.add(camera.towards.mul(camera.screenDist));
+        this.centerX = center.x;
+        this.centerY = center.y;
+        this.centerZ = center.z;
+
+        this.rowOffsets = new double[3 * imageHeight];
+        for (int row = 0; row < imageHeight; row++) {
+            double yRatio = ((double) row) / imageHeight - 0.5;
+            this.rowOffsets[3 * row] = camera.upVector.x * (yRatio * camera.screenHeight);
+            this.rowOffsets[3 * row + 1] = camera.upVector.y * (yRatio * camera.screenHeight);
+            this.rowOffsets[3 * row + 2] = camera.upVector.z * (yRatio * camera.screenHeight);
+        }
+        this.columnOffsets = new double[3 * imageWidth];
+        for (int column = 0; column < imageWidth; column++) {
+            double xRatio = ((double) column) / imageWidth - 0.5;
+            this.columnOffsets[3 * column] = camera.right.x * (xRatio * camera.screenWidth);
+            this.columnOffsets[3 * column + 1] = camera.right.y * (xRatio * camera.screenWidth);
+            this.columnOffsets[3 * column + 2] = camera.right.z * (xRatio * camera.screenWidth);
+        }
+
+        if (camera.fisheye) {
+            // The corners of the image are the farthest from its center
+            double maxSquaredRadius = 0.25 * (camera.screenWidth * camera.screenWidth
+                    + camera.screenHeight * camera.screenHeight);
+            this.fisheyeScales = new double[FISHEYE_TABLE_SIZE + 1];
+            this.fisheyeStep = maxSquaredRadius / FISHEYE_TABLE_SIZE;
+            for (int i = 0; i <= FISHEYE_TABLE_SIZE; i++) {
+                // The center itself is remapped to itself, use the limit of the scale there
+                double newR = Math.sqrt(Math.max(i, 1e-6) * this.fisheyeStep);
+                double oldR = camera.screenDist * Math.tan(camera.reverseFishEye(newR));
+                this.fisheyeScales[i] = oldR / newR >= 1 ? oldR / newR : Double.NaN;
+            }
+        } else {
+            this.fisheyeScales = null;
+            this.fisheyeStep = 0;
+        }
+    }
+
+    /**
+     * @return The origin of all the rays.
+     */
+    public Vector origin() {
+        return this.camera.position;
+    }
+
+    /**
+     * Generate the normalized directions of the rays of a block of pixels, row by
+     * row. Pixels the camera has no ray for (outside the image of a fisheye lens)
+     * are skipped.
+     *
+     * @param x      The column of the block's top left pixel.
+     * @param y      The row of the block's top left pixel.
+     * @param width  The width of the block.
+     * @param height The height of the block.
+     * @param dx     The x coordinates of the directions.
+     * @param dy     The y coordinates of the directions.
+     * @param dz     The z coordinates of the directions.
+     * @param pixels The index in the image of every ray's pixel.
+     * @return The number of rays generated, at the start of the buffers.
+     */
+    public int generate(int x, int y, int width, int height, double[] dx, double[] dy, double[] dz, int[] pixels) {
+        int count = 0;
+        for (int row = y; row < y + height; row++) {
+            for (int column = x; column < x + width; column++) {
+                double directionX, directionY, directionZ;
+                if (this.fisheyeScales == null) {
+                    directionX = (this.centerX - (this.rowOffsets[3 * row] + this.columnOffsets[3 * column]))
+                            - this.camera.position.x;
+                    directionY = (this.centerY - (this.rowOffsets[3 * row + 1] + this.columnOffsets[3 * column + 1]))
+                            - this.camera.position.y;
+                    directionZ = (this.centerZ - (this.rowOffsets[3 * row + 2] + this.columnOffsets[3 * column + 2]))
+                            - this.camera.position.z;
+                } else {
+                    double xRatio = ((double) column) / this.imageWidth - 0.5;
+                    double yRatio = ((double) row) / this.imageHeight - 0.5;
+                    double scale = this.fisheyeScale(xRatio * this.camera.screenWidth * xRatio * this.camera.screenWidth
+                            + yRatio * this.camera.screenHeight * yRatio * this.camera.screenHeight);
+                    if (!(scale >= 1)) {
+                        continue;
+                    }
+                    xRatio *= scale;
+                    yRatio *= scale;
+                    Vector up = this.camera.upVector;
+                    Vector right = this.camera.right;
+                    directionX = (this.centerX - (up.x * (yRatio * this.camera.screenHeight)
+                            + right.x * (xRatio * this.camera.screenWidth))) - this.camera.position.x;
+                    directionY = (this.centerY - (up.y * (yRatio * this.camera.screenHeight)
+                            + right.y * (xRatio * this.camera.screenWidth))) - this.camera.position.y;
+                    directionZ = (this.centerZ - (up.z * (yRatio * this.camera.screenHeight)
+                            + right.z * (xRatio * this.camera.screenWidth))) - this.camera.position.z;
+                }
+                double inverseLength = 1 / Math.sqrt(
+                        directionX * directionX + directionY * directionY + directionZ * directionZ);
+                dx[count] = directionX * inverseLength;
+                dy[count] = directionY * inverseLength;
+                dz[count] = directionZ * inverseLength;
+                pixels[count] = row * this.imageWidth + column;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Interpolate the fisheye lens's scale at a squared distance from the center
+     * of the image plane. In the cells of the table that reach past the edge of
+     * the lens's image, the scale is computed exactly instead, as by
+     * `Camera.pixelRay`, so that exactly its pixels have no ray.
+     *
+     * @return The scale, or NaN if the lens has no image there.
+     */
+    private double fisheyeScale(double squaredRadius) {
+        if (squaredRadius == 0) {
+            // Like `Camera.pixelRay`, which can't remap the center
+            return Double.NaN;
+        }
+        double position = Math.min(squaredRadius / this.fisheyeStep, FISHEYE_TABLE_SIZE);
+        int i = Math.min((int) position, FISHEYE_TABLE_SIZE - 1);
+        double fraction = position - i;
+        double scale = this.fisheyeScales[i] + (this.fisheyeScales[i + 1] - this.fisheyeScales[i]) * fraction;
+        return Double.isNaN(scale) ? this.exactFisheyeScale(squaredRadius) : scale;
+    }
+
+    /**
+     * Compute the fisheye lens's scale at a squared distance from the center of
+     * the image plane, the same calculation as `Camera.pixelRay`.
+     *
+     * @return The scale, or NaN if the lens has no image there.
+     */
+    private double exactFisheyeScale(double squaredRadius) {
+        double newR = Math.sqrt(squaredRadius);
+        double oldR = this.camera.screenDist * Math.tan(this.camera.reverseFishEye(newR));
+        return oldR / newR >= 1 ? oldR / newR : Double.NaN;
+    }
+}
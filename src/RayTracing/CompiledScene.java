@@ -0,0 +1,615 @@
+package RayTracing;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A frozen, flattened form of the scene's surfaces used for rendering. Every
+ * primitive type is stored as a structure of arrays, so the intersection tests
+ * run as tight loops over primitive arrays instead of chasing `Surface` and
+ * `Vector` objects through virtual calls.
+ *
+ * Spheres and boxes are bounded by a BVH; their arrays are kept in the
+ * hierarchy's leaf order, so the spheres (and the boxes) of every leaf are
+ * consecutive. Planes are unbounded and tested on every query.
+ *
+ * A primitive is identified by an int: its index in the arrays of its type,
+ * shifted left by 2, with its type (`SPHERE`, `BOX` or `PLANE`) in the lower
+ * bits.
+ */
+public class CompiledScene implements BVH.Leaves {
+    public static final int SPHERE = 0;
+    public static final int BOX = 1;
+    public static final int PLANE = 2;
+
+    // The sphere and box tests, picked once for all scenes
+    static final IntersectionKernels KERNELS = IntersectionKernels.select();
+
+    public final Material[] materials;
+
+    public final int sphereCount;
+    public final double[] sphereCx, sphereCy, sphereCz, sphereR;
+    public final int[] sphereMaterial; // Indices in `materials`
+
+    public final int boxCount;
+    public final double[] boxMinX, boxMinY, boxMinZ, boxMaxX, boxMaxY, boxMaxZ;
+    public final int[] boxMaterial;
+
+    public final int planeCount;
+    public final double[] planeNx, planeNy, planeNz, planeDistance;
+    public final int[] planeMaterial;
+
+    public final BVH bvh;
+
+    private final Surface[] others; // Surfaces of types unknown to the compiler, tested through `Surface`
+    // The number of spheres before every position in the BVH order, and after the last
+    private final int[] spheresBefore;
+    // The original surfaces, by primitive type and index
+    private final List<Surface> surfaces;
+    private final int[] sphereSource, boxSource, planeSource;
+
+    /**
+     * Compile a list of surfaces.
+     *
+     * @param surfaces The scene's surfaces. The list must not change afterwards.
+     */
+    public CompiledScene(List<Surface> surfaces) {
+        this.surfaces = surfaces;
+
+        List<Integer> spheres = new ArrayList<>();
+        List<Integer> boxes = new ArrayList<>();
+        List<Integer> planes = new ArrayList<>();
+        List<Surface> others = new ArrayList<>();
+        Map<Material, Integer> materialIndices = new IdentityHashMap<>();
+        List<Material> materials = new ArrayList<>();
+        for (int i = 0; i < surfaces.size(); i++) {
+            Surface surface = surfaces.get(i);
+            if (surface instanceof Sphere) {
+                spheres.add(i);
+            } else if (surface instanceof Box) {
+                boxes.add(i);
+            } else if (surface instanceof Plane) {
+                planes.add(i);
+            } else {
+                others.add(surface);
+                continue;
+            }
+            if (!materialIndices.containsKey(surface.material)) {
+                materialIndices.put(surface.material, materials.size());
+                materials.add(surface.material);
+            }
+        }
+        this.materials = materials.toArray(new Material[materials.size()]);
+        this.others = others.toArray(new Surface[others.size()]);
+
+        // Build the hierarchy over the spheres followed by the boxes
+        this.sphereCount = spheres.size();
+        this.boxCount = boxes.size();
+        double[] bounds = new double[6 * (this.sphereCount + this.boxCount)];
+        for (int i = 0; i < this.sphereCount; i++) {
+            Sphere sphere = (Sphere) surfaces.get(spheres.get(i));
+            bounds[6 * i] = sphere.center.x - sphere.radius;
+            bounds[6 * i + 1] = sphere.center.y - sphere.radius;
+            bounds[6 * i + 2] = sphere.center.z - sphere.radius;
+            bounds[6 * i + 3] = sphere.center.x + sphere.radius;
+            bounds[6 * i + 4] = sphere.center.y + sphere.radius;
+            bounds[6 * i + 5] = sphere.center.z + sphere.radius;
+        }
+        for (int i = 0; i < this.boxCount; i++) {
+            Box box = (Box) surfaces.get(boxes.get(i));
+            int offset = 6 * (this.sphereCount + i);
+            bounds[offset] = box.minX;
+            bounds[offset + 1] = box.minY;
+            bounds[offset + 2] = box.minZ;
+            bounds[offset + 3] = box.maxX;
+            bounds[offset + 4] = box.maxY;
+            bounds[offset + 5] = box.maxZ;
+        }
+        this.bvh = new BVH(bounds, KERNELS.width());
+
+        // Lay the spheres and boxes out in leaf order
+        int[] order = this.bvh.order();
+        this.spheresBefore = new int[order.length + 1];
+        this.sphereSource = new int[this.sphereCount];
+        this.boxSource = new int[this.boxCount];
+        int sphere = 0;
+        int box = 0;
+        for (int i = 0; i < order.length; i++) {
+            this.spheresBefore[i] = sphere;
+            if (order[i] < this.sphereCount) {
+                this.sphereSource[sphere++] = spheres.get(order[i]);
+            } else {
+                this.boxSource[box++] = boxes.get(order[i] - this.sphereCount);
+            }
+        }
+        this.spheresBefore[order.length] = sphere;
+
+        this.sphereCx = new double[this.sphereCount];
+        this.sphereCy = new double[this.sphereCount];
+        this.sphereCz = new double[this.sphereCount];
+        this.sphereR = new double[this.sphereCount];
+        this.sphereMaterial = new int[this.sphereCount];
+        for (int i = 0; i < this.sphereCount; i++) {
+            Sphere s = (Sphere) surfaces.get(this.sphereSource[i]);
+            this.sphereCx[i] = s.center.x;
+            this.sphereCy[i] = s.center.y;
+            this.sphereCz[i] = s.center.z;
+            this.sphereR[i] = s.radius;
+            this.sphereMaterial[i] = materialIndices.get(s.material);
+        }
+
+        this.boxMinX = new double[this.boxCount];
+        this.boxMinY = new double[this.boxCount];
+        this.boxMinZ = new double[this.boxCount];
+        this.boxMaxX = new double[this.boxCount];
+        this.boxMaxY = new double[this.boxCount];
+        this.boxMaxZ = new double[this.boxCount];
+        this.boxMaterial = new int[this.boxCount];
+        for (int i = 0; i < this.boxCount; i++) {
+            Box b = (Box) surfaces.get(this.boxSource[i]);
+            this.boxMinX[i] = b.minX;
+            this.boxMinY[i] = b.minY;
+            this.boxMinZ[i] = b.minZ;
+            this.boxMaxX[i] = b.maxX;
+            this.boxMaxY[i] = b.maxY;
+            this.boxMaxZ[i] = b.maxZ;
+            this.boxMaterial[i] = materialIndices.get(b.material);
+        }
+
+        this.planeCount = planes.size();
+        this.planeSource = new int[this.planeCount];
+        this.planeNx = new double[this.planeCount];
+        this.planeNy = new double[this.planeCount];
+        this.planeNz = new double[this.planeCount];
+        this.planeDistance = new double[this.planeCount];
+        this.planeMaterial = new int[this.planeCount];
+        for (int i = 0; i < this.planeCount; i++) {
+            this.planeSource[i] = planes.get(i);
+            Plane p = (Plane) surfaces.get(this.planeSource[i]);
+            this.planeNx[i] = p.normal.x;
+            this.planeNy[i] = p.normal.y;
+            this.planeNz[i] = p.normal.z;
+            this.planeDistance[i] = p.distance;
+            this.planeMaterial[i] = materialIndices.get(p.material);
+        }
+    }
+
+    /**
+     * Use the primitives of a compiled scene file, laid out in the leaf order of
+     * the hierarchy saved with them.
+     *
+     * @param primitives    The primitives.
+     * @param bvh           The hierarchy.
+     * @param spheresBefore The number of spheres before every position in the
+     *                      hierarchy's order, and after the last.
+     */
+    CompiledScene(SceneFile.Primitives primitives, BVH bvh, int[] spheresBefore) {
+        this.surfaces = primitives;
+        this.materials = primitives.materials;
+        this.others = new Surface[0];
+        this.bvh = bvh;
+        this.spheresBefore = spheresBefore;
+
+        this.sphereCount = primitives.sphereCx.length;
+        this.sphereCx = primitives.sphereCx;
+        this.sphereCy = primitives.sphereCy;
+        this.sphereCz = primitives.sphereCz;
+        this.sphereR = primitives.sphereR;
+        this.sphereMaterial = primitives.sphereMaterial;
+
+        this.boxCount = primitives.boxMinX.length;
+        this.boxMinX = primitives.boxMinX;
+        this.boxMinY = primitives.boxMinY;
+        this.boxMinZ = primitives.boxMinZ;
+        this.boxMaxX = primitives.boxMaxX;
+        this.boxMaxY = primitives.boxMaxY;
+        this.boxMaxZ = primitives.boxMaxZ;
+        this.boxMaterial = primitives.boxMaterial;
+
+        this.planeCount = primitives.planeNx.length;
+        this.planeNx = primitives.planeNx;
+        this.planeNy = primitives.planeNy;
+        this.planeNz = primitives.planeNz;
+        this.planeDistance = primitives.planeDistance;
+        this.planeMaterial = primitives.planeMaterial;
+
+        this.sphereSource = new int[this.sphereCount];
+        this.boxSource = new int[this.boxCount];
+        this.planeSource = new int[this.planeCount];
+        for (int i = 0; i < primitives.size(); i++) {
+            int primitive = primitives.primitive(i);
+            switch (type(primitive)) {
+            case SPHERE: {
+                this.sphereSource[index(primitive)] = i;
+                break;
+            }
+            case BOX: {
+                this.boxSource[index(primitive)] = i;
+                break;
+            }
+            default: {
+                // case PLANE:
+                this.planeSource[index(primitive)] = i;
+                break;
+            }
+
+            }
+        }
+    }
+
+    static int primitive(int index, int type) {
+        return (index << 2) | type;
+    }
+
+    /**
+     * @return The type of a primitive: `SPHERE`, `BOX` or `PLANE`.
+     */
+    public static int type(int primitive) {
+        return primitive & 3;
+    }
+
+    /**
+     * @return The index of a primitive in the arrays of its type.
+     */
+    public static int index(int primitive) {
+        return primitive >>> 2;
+    }
+
+    /**
+     * Find the intersection of a ray with the scene's surfaces that is closest to
+     * the ray's origin.
+     *
+     * @param ray  The traced ray.
+     * @param tMin The smallest accepted distance from the ray's origin.
+     * @param hit  The closest intersection found so far; updated if a closer one
+     *             is found.
+     * @return If a closer intersection was found.
+     */
+    public boolean closestHit(Ray ray, double tMin, Hit hit) {
+        boolean found = this.intersectPlanes(ray, tMin, hit.t, hit, false);
+        if (RenderStats.ENABLED) {
+            RenderStats.counters().otherTests += this.others.length;
+        }
+        for (Surface surface : this.others) {
+            found |= surface.intersect(ray, tMin, hit.t, hit);
+        }
+        return this.bvh.closestHit(ray, tMin, hit, this) || found;
+    }
+
+    /**
+     * Find the closest intersections of a packet of coherent rays with the
+     * scene's surfaces; the same as `closestHit` for every ray, but the
+     * acceleration structure is traversed by the packet as a whole (see
+     * `BVH.closestHits`).
+     *
+     * @param rays  The traced rays.
+     * @param count The number of rays in the packet, at the start of `rays`.
+     * @param tMin  The smallest accepted distance from the rays' origins.
+     * @param hits  The closest intersection of every ray found so far, updated if
+     *              a closer one is found.
+     */
+    public void closestHits(Ray[] rays, int count, double tMin, Hit[] hits) {
+        if (RenderStats.ENABLED) {
+            RenderStats.counters().otherTests += (long) count * this.others.length;
+        }
+        for (int i = 0; i < count; i++) {
+            this.intersectPlanes(rays[i], tMin, hits[i].t, hits[i], false);
+            for (Surface surface : this.others) {
+                surface.intersect(rays[i], tMin, hits[i].t, hits[i]);
+            }
+        }
+        this.bvh.closestHits(rays, count, tMin, hits, this);
+    }
+
+    /**
+     * Check if a ray intersects any of the scene's surfaces in a range of
+     * distances. Returns as soon as such an intersection is found.
+     *
+     * @param ray  The traced ray.
+     * @param tMin The smallest accepted distance from the ray's origin.
+     * @param tMax Intersections at this distance or farther are ignored.
+     * @param hit  A scratch record for the intersection tests.
+     * @return If there is an intersection with `tMin` <= t < `tMax`.
+     */
+    public boolean anyHit(Ray ray, double tMin, double tMax, Hit hit) {
+        if (this.intersectPlanes(ray, tMin, tMax, hit, true)) {
+            return true;
+        }
+        for (Surface surface : this.others) {
+            if (RenderStats.ENABLED) {
+                RenderStats.counters().otherTests++;
+            }
+            if (surface.intersect(ray, tMin, tMax, hit)) {
+                return true;
+            }
+        }
+        return this.bvh.anyHit(ray, tMin, tMax, hit, this);
+    }
+
+    private boolean intersectPlanes(Ray ray, double tMin, double tMax, Hit hit, boolean anyHit) {
+        double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+        double dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+        boolean found = false;
+        if (RenderStats.ENABLED) {
+            RenderStats.counters().planeTests += this.planeCount;
+        }
+        for (int i = 0; i < this.planeCount; i++) {
+            double denominator = this.planeNx[i] * dx + this.planeNy[i] * dy + this.planeNz[i] * dz;
+            if (Math.abs(denominator) > 0) {
+                double t = (this.planeDistance[i] - (ox * this.planeNx[i] + oy * this.planeNy[i] + oz * this.planeNz[i]))
+                        / denominator;
+                if (t >= tMin && t < tMax) {
+                    hit.record(this, primitive(i, PLANE), t);
+                    if (anyHit) {
+                        return true;
+                    }
+                    tMax = t;
+                    found = true;
+                }
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public boolean intersect(int first, int count, Ray ray, double tMin, double tMax, Hit hit, boolean anyHit) {
+        double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+        double dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+        boolean found = false;
+
+        int sphereStart = this.spheresBefore[first];
+        int sphereEnd = this.spheresBefore[first + count];
+        if (sphereStart < sphereEnd) {
+            if (RenderStats.ENABLED) {
+                RenderStats.counters().sphereTests += sphereEnd - sphereStart;
+            }
+            int sphere = KERNELS.closestSphere(this, sphereStart, sphereEnd, ox, oy, oz, dx, dy, dz, tMin, tMax);
+            if (sphere >= 0) {
+                tMax = this.sphereDistance(sphere, ox, oy, oz, dx, dy, dz, tMin);
+                hit.record(this, primitive(sphere, SPHERE), tMax);
+                if (anyHit) {
+                    return true;
+                }
+                found = true;
+            }
+        }
+
+        int boxStart = first - sphereStart;
+        int boxEnd = first + count - sphereEnd;
+        if (boxStart < boxEnd) {
+            if (RenderStats.ENABLED) {
+                RenderStats.counters().boxTests += boxEnd - boxStart;
+            }
+            double invX = 1 / dx, invY = 1 / dy, invZ = 1 / dz;
+            int box = KERNELS.closestBox(this, boxStart, boxEnd, ox, oy, oz, invX, invY, invZ, tMin, tMax);
+            if (box >= 0) {
+                hit.record(this, primitive(box, BOX), this.boxDistance(box, ox, oy, oz, invX, invY, invZ, tMin));
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Intersect a ray with a sphere, the same calculation as `Sphere.intersect`.
+     *
+     * @return The distance of the intersection from the ray's origin, or infinity
+     *         if there is no intersection at `tMin` or farther.
+     */
+    double sphereDistance(int i, double ox, double oy, double oz, double dx, double dy, double dz, double tMin) {
+        double diffX = this.sphereCx[i] - ox;
+        double diffY = this.sphereCy[i] - oy;
+        double diffZ = this.sphereCz[i] - oz;
+        double projection = diffX * dx + diffY * dy + diffZ * dz;
+        double squaredDistance = diffX * diffX + diffY * diffY + diffZ * diffZ - projection * projection;
+        double squaredLength = this.sphereR[i] * this.sphereR[i] - squaredDistance;
+        if (squaredLength < 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double length = Math.sqrt(squaredLength);
+        double t = projection - length;
+        if (t < tMin) {
+            t = projection + length;
+        }
+        return t >= tMin ? t : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Intersect a ray with a box, the same calculation as `Box.intersect`.
+     *
+     * @return The distance of the intersection from the ray's origin, or infinity
+     *         if there is no intersection at `tMin` or farther.
+     */
+    double boxDistance(int i, double ox, double oy, double oz, double invX, double invY, double invZ, double tMin) {
+        double t1 = (this.boxMinX[i] - ox) * invX;
+        double t2 = (this.boxMaxX[i] - ox) * invX;
+        double near = Math.min(t1, t2);
+        double far = Math.max(t1, t2);
+        t1 = (this.boxMinY[i] - oy) * invY;
+        t2 = (this.boxMaxY[i] - oy) * invY;
+        near = Math.max(near, Math.min(t1, t2));
+        far = Math.min(far, Math.max(t1, t2));
+        t1 = (this.boxMinZ[i] - oz) * invZ;
+        t2 = (this.boxMaxZ[i] - oz) * invZ;
+        near = Math.max(near, Math.min(t1, t2));
+        far = Math.min(far, Math.max(t1, t2));
+        if (!(near <= far)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double t = near >= tMin ? near : far;
+        return t >= tMin ? t : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Calculate the normal at an intersection found by the compiled scene.
+     *
+     * @param hit The intersection.
+     * @return The normal to the intersected primitive at `hit.point()`.
+     */
+    public Vector normal(Hit hit) {
+        int i = index(hit.primitive);
+        switch (type(hit.primitive)) {
+        case SPHERE: {
+            return hit.point().sub(new Vector(this.sphereCx[i], this.sphereCy[i], this.sphereCz[i])).normalize();
+        }
+        case BOX: {
+            // The point is on the face whose axis it is farthest from the center in
+            Vector point = hit.point();
+            double dx = point.x - (this.boxMinX[i] + this.boxMaxX[i]) / 2;
+            double dy = point.y - (this.boxMinY[i] + this.boxMaxY[i]) / 2;
+            double dz = point.z - (this.boxMinZ[i] + this.boxMaxZ[i]) / 2;
+            if (Math.abs(dx) >= Math.abs(dy) && Math.abs(dx) >= Math.abs(dz)) {
+                return new Vector(dx < 0 ? -1 : 1, 0, 0);
+            } else if (Math.abs(dy) >= Math.abs(dz)) {
+                return new Vector(0, dy < 0 ? -1 : 1, 0);
+            }
+            return new Vector(0, 0, dz < 0 ? -1 : 1);
+        }
+        default: {
+            // case PLANE:
+            return new Vector(this.planeNx[i], this.planeNy[i], this.planeNz[i]);
+        }
+
+        }
+    }
+
+    /**
+     * @return The material of a primitive.
+     */
+    public Material material(int primitive) {
+        int i = index(primitive);
+        switch (type(primitive)) {
+        case SPHERE: {
+            return this.materials[this.sphereMaterial[i]];
+        }
+        case BOX: {
+            return this.materials[this.boxMaterial[i]];
+        }
+        default: {
+            // case PLANE:
+            return this.materials[this.planeMaterial[i]];
+        }
+
+        }
+    }
+
+    /**
+     * @return The index of the surface a primitive was compiled from, in the
+     *         scene's list of surfaces.
+     */
+    int source(int primitive) {
+        int i = index(primitive);
+        switch (type(primitive)) {
+        case SPHERE: {
+            return this.sphereSource[i];
+        }
+        case BOX: {
+            return this.boxSource[i];
+        }
+        default: {
+            // case PLANE:
+            return this.planeSource[i];
+        }
+
+        }
+    }
+
+    /**
+     * Move a sphere or a box, for animating a scene. The hierarchy isn't updated
+     * until `refit`, and the surface the primitive was compiled from isn't
+     * changed. Not safe while the scene is being rendered.
+     *
+     * @param primitive The moved sphere or box.
+     * @param moved     The surface at its new place: a `Sphere` for a sphere and
+     *                  a `Box` for a box.
+     */
+    public void move(int primitive, Surface moved) {
+        int i = index(primitive);
+        if (type(primitive) == SPHERE) {
+            Sphere sphere = (Sphere) moved;
+            this.sphereCx[i] = sphere.center.x;
+            this.sphereCy[i] = sphere.center.y;
+            this.sphereCz[i] = sphere.center.z;
+            this.sphereR[i] = sphere.radius;
+        } else {
+            Box box = (Box) moved;
+            this.boxMinX[i] = box.minX;
+            this.boxMinY[i] = box.minY;
+            this.boxMinZ[i] = box.minZ;
+            this.boxMaxX[i] = box.maxX;
+            this.boxMaxY[i] = box.maxY;
+            this.boxMaxZ[i] = box.maxZ;
+        }
+    }
+
+    /**
+     * Refit the hierarchy to the spheres and boxes where they are now (see
+     * `move` and `BVH.refit`).
+     *
+     * @return The hierarchy's SAH cost after refitting (see `BVH.cost`).
+     */
+    public double refit() {
+        int count = this.sphereCount + this.boxCount;
+        double[] bounds = new double[6 * count];
+        for (int position = 0; position < count; position++) {
+            int offset = 6 * position;
+            int sphere = this.spheresBefore[position];
+            if (this.spheresBefore[position + 1] > sphere) {
+                bounds[offset] = this.sphereCx[sphere] - this.sphereR[sphere];
+                bounds[offset + 1] = this.sphereCy[sphere] - this.sphereR[sphere];
+                bounds[offset + 2] = this.sphereCz[sphere] - this.sphereR[sphere];
+                bounds[offset + 3] = this.sphereCx[sphere] + this.sphereR[sphere];
+                bounds[offset + 4] = this.sphereCy[sphere] + this.sphereR[sphere];
+                bounds[offset + 5] = this.sphereCz[sphere] + this.sphereR[sphere];
+            } else {
+                int box = position - sphere;
+                bounds[offset] = this.boxMinX[box];
+                bounds[offset + 1] = this.boxMinY[box];
+                bounds[offset + 2] = this.boxMinZ[box];
+                bounds[offset + 3] = this.boxMaxX[box];
+                bounds[offset + 4] = this.boxMaxY[box];
+                bounds[offset + 5] = this.boxMaxZ[box];
+            }
+        }
+        this.bvh.refit(bounds);
+        return this.bvh.cost();
+    }
+
+    /**
+     * @return If every surface was compiled into primitive arrays, none is tested
+     *         through `Surface`.
+     */
+    boolean isFlat() {
+        return this.others.length == 0;
+    }
+
+    /**
+     * @return The number of spheres before every position in the hierarchy's
+     *         order, and after the last.
+     */
+    int[] spheresBefore() {
+        return this.spheresBefore;
+    }
+
+    /**
+     * @return The scene surface a primitive was compiled from.
+     */
+    public Surface surface(int primitive) {
+        int i = index(primitive);
+        switch (type(primitive)) {
+        case SPHERE: {
+            return this.surfaces.get(this.sphereSource[i]);
+        }
+        case BOX: {
+            return this.surfaces.get(this.boxSource[i]);
+        }
+        default: {
+            // case PLANE:
+            return this.surfaces.get(this.planeSource[i]);
+        }
+
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package RayTracing;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A cache of the closest hits of an image's camera rays (a G-buffer), for
+ * relighting: rendering the image again with other lights or materials, but
+ * the same geometry and camera, only shades the hits and traces the secondary
+ * rays, without tracing the camera rays again.
+ *
+ * Every pixel holds the hit primitive (see `CompiledScene`), or -1 if the ray
+ * missed, and the hit's distance, point and normal. The buffer is keyed by a
+ * hash of the geometry, the camera and the image's size (see `key`), so a
+ * buffer of other geometry is never used. The first render with an empty
+ * buffer fills it, and once the render is done, the buffer is complete and
+ * later renders reuse it.
+ *
+ * The buffer lives in memory or in a memory mapped file, which keeps it
+ * between runs. The file starts with a header (`HEADER_SIZE` bytes: "RTGB",
+ * the version, the width, the height, if the buffer is complete, and the key),
+ * followed by `BYTES_PER_PIXEL` bytes per pixel, in native byte order.
+ */
+public class GBuffer implements Closeable {
+    static final int MAGIC = 0x42475452; // "RTGB", little endian
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int BYTES_PER_PIXEL = 64; // The primitive, padding, and 7 doubles: t, the point and the normal
+    private static final int SEGMENT_PIXELS = 1 << 24; // Pixels per buffer, under the 2 GB limit of a buffer
+    private static final int COMPLETE_OFFSET = 16;
+    private static final int KEY_OFFSET = 24;
+
+    public final byte[] key;
+    public final int width;
+    public final int height;
+
+    private final ByteBuffer header;
+    private final ByteBuffer[] segments;
+    private final FileChannel channel; // The mapped file, or null in memory
+    private volatile boolean complete; // If it holds the hits of every pixel
+
+    private GBuffer(byte[] key, int width, int height, FileChannel channel) throws IOException {
+        this.key = key;
+        this.width = width;
+        this.height = height;
+        this.channel = channel;
+        long pixels = (long) width * height;
+        this.segments = new ByteBuffer[(int) ((pixels + SEGMENT_PIXELS - 1) / SEGMENT_PIXELS)];
+        if (channel == null) {
+            this.header = ByteBuffer.allocate(HEADER_SIZE);
+            for (int i = 0; i < this.segments.length; i++) {
+                this.segments[i] = ByteBuffer.allocate(this.segmentPixels(i) * BYTES_PER_PIXEL);
+            }
+        } else {
+            this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            for (int i = 0; i < this.segments.length; i++) {
+                this.segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_SIZE + (long) i * SEGMENT_PIXELS * BYTES_PER_PIXEL,
+                        (long) this.segmentPixels(i) * BYTES_PER_PIXEL);
+            }
+        }
+        this.header.order(ByteOrder.LITTLE_ENDIAN);
+        for (ByteBuffer segment : this.segments) {
+            segment.order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private int segmentPixels(int segment) {
+        return (int) Math.min(SEGMENT_PIXELS, (long) this.width * this.height - (long) segment * SEGMENT_PIXELS);
+    }
+
+    /**
+     * Create an empty buffer in memory.
+     *
+     * @param key    The key of the geometry and camera (see `key`).
+     * @param width  The width of the image, in pixels.
+     * @param height The height of the image, in pixels.
+     * @return The buffer.
+     */
+    public static GBuffer inMemory(byte[] key, int width, int height) throws IOException {
+        GBuffer buffer = new GBuffer(key, width, height, null);
+        buffer.writeHeader();
+        return buffer;
+    }
+
+    /**
+     * Open a buffer in a memory mapped file. If the file holds a complete buffer
+     * of the same key and size, it is reused, and otherwise it is emptied.
+     *
+     * @param file   The file.
+     * @param key    The key of the geometry and camera (see `key`).
+     * @param width  The width of the image, in pixels.
+     * @param height The height of the image, in pixels.
+     * @return The buffer, complete if it was reused.
+     */
+    public static GBuffer open(Path file, byte[] key, int width, int height) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long size = HEADER_SIZE + (long) width * height * BYTES_PER_PIXEL;
+            boolean reused = false;
+            if (channel.size() == size) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                channel.read(header, 0);
+                byte[] fileKey = new byte[key.length];
+                header.get(KEY_OFFSET, fileKey);
+                reused = !header.hasRemaining() && header.getInt(0) == MAGIC && header.getInt(4) == VERSION
+                        && header.getInt(8) == width && header.getInt(12) == height && header.getInt(COMPLETE_OFFSET) == 1
+                        && Arrays.equals(fileKey, key);
+            }
+            if (!reused) {
+                channel.truncate(0);
+            }
+            GBuffer buffer = new GBuffer(key, width, height, channel);
+            if (reused) {
+                buffer.complete = true;
+            } else {
+                buffer.writeHeader();
+            }
+            return buffer;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void writeHeader() {
+        this.header.putInt(0, MAGIC);
+        this.header.putInt(4, VERSION);
+        this.header.putInt(8, this.width);
+        this.header.putInt(12, this.height);
+        this.header.putInt(COMPLETE_OFFSET, this.complete ? 1 : 0);
+        this.header.put(KEY_OFFSET, this.key);
+    }
+
+    /**
+     * Compute the key of a scene's G-buffer: a SHA-256 hash of its compiled
+     * geometry (without the materials), its camera and the image's size.
+     *
+     * @param scene  The frozen scene.
+     * @param width  The width of the image, in pixels.
+     * @param height The height of the image, in pixels.
+     * @return The key.
+     */
+    public static byte[] key(Scene scene, int width, int height) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new DigestOutputStream(OutputStream.nullOutputStream(), digest))) {
+            out.writeInt(VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            Camera camera = scene.camera;
+            for (Vector v : new Vector[] { camera.position, camera.towards, camera.upVector, camera.right }) {
+                out.writeDouble(v.x);
+                out.writeDouble(v.y);
+                out.writeDouble(v.z);
+            }
+            out.writeDouble(camera.screenDist);
+            out.writeDouble(camera.screenWidth);
+            out.writeDouble(camera.screenHeight);
+            out.writeBoolean(camera.fisheye);
+            out.writeDouble(camera.fisheye_param);
+
+            // The primitives' order matters too, hits refer to them by their position
+            CompiledScene compiled = scene.compiled;
+            for (double[] values : new double[][] { compiled.sphereCx, compiled.sphereCy, compiled.sphereCz,
+                    compiled.sphereR, compiled.boxMinX, compiled.boxMinY, compiled.boxMinZ, compiled.boxMaxX,
+                    compiled.boxMaxY, compiled.boxMaxZ, compiled.planeNx, compiled.planeNy, compiled.planeNz,
+                    compiled.planeDistance }) {
+                out.writeInt(values.length);
+                for (double value : values) {
+                    out.writeDouble(value);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Never thrown by a digest
+        }
+        return digest.digest();
+    }
+
+    /**
+     * @return If the buffer holds the hits of every pixel.
+     */
+    public boolean isComplete() {
+        return this.complete;
+    }
+
+    /**
+     * Mark the buffer complete, once the hits of every pixel were recorded, and
+     * save it if it is in a file.
+     */
+    public void markComplete() throws IOException {
+        if (this.channel != null) {
+            for (ByteBuffer segment : this.segments) {
+                ((MappedByteBuffer) segment).force();
+            }
+        }
+        this.complete = true;
+        this.writeHeader();
+        if (this.channel != null) {
+            ((MappedByteBuffer) this.header).force();
+        }
+    }
+
+    /**
+     * Record the closest hit of a pixel's camera ray. Pixels may be recorded by
+     * several threads at once.
+     *
+     * @param pixel The index of the pixel in the image.
+     * @param hit   The ray's closest hit in a compiled scene, or no hit.
+     */
+    public void record(int pixel, Hit hit) {
+        ByteBuffer segment = this.segments[pixel / SEGMENT_PIXELS];
+        int offset = (pixel % SEGMENT_PIXELS) * BYTES_PER_PIXEL;
+        if (!hit.isPresent()) {
+            segment.putInt(offset, -1);
+            return;
+        }
+        Vector point = hit.point();
+        Vector normal = hit.normal();
+        segment.putInt(offset, hit.primitive);
+        segment.putDouble(offset + 8, hit.t);
+        segment.putDouble(offset + 16, point.x);
+        segment.putDouble(offset + 24, point.y);
+        segment.putDouble(offset + 32, point.z);
+        segment.putDouble(offset + 40, normal.x);
+        segment.putDouble(offset + 48, normal.y);
+        segment.putDouble(offset + 56, normal.z);
+    }
+
+    /**
+     * Restore the closest hit of a pixel's camera ray.
+     *
+     * @param pixel The index of the pixel in the image.
+     * @param ray   The pixel's camera ray.
+     * @param scene The compiled scene the hit was recorded in, or one of the
+     *              same geometry.
+     * @param hit   Receives the hit, or no hit.
+     */
+    public void restore(int pixel, Ray ray, CompiledScene scene, Hit hit) {
+        ByteBuffer segment = this.segments[pixel / SEGMENT_PIXELS];
+        int offset = (pixel % SEGMENT_PIXELS) * BYTES_PER_PIXEL;
+        int primitive = segment.getInt(offset);
+        if (primitive < 0) {
+            hit.reset(ray, Double.POSITIVE_INFINITY);
+            return;
+        }
+        hit.restore(ray, scene, primitive, segment.getDouble(offset + 8),
+                new Vector(segment.getDouble(offset + 16), segment.getDouble(offset + 24),
+                        segment.getDouble(offset + 32)),
+                new Vector(segment.getDouble(offset + 40), segment.getDouble(offset + 48),
+                        segment.getDouble(offset + 56)));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.channel != null) {
+            this.channel.close();
+        }
+    }
+}
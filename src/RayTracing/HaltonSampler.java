@@ -0,0 +1,36 @@
+package RayTracing;
+
+/**
+ * The Halton sequence in bases 2 and 3, randomized per sequence by a
+ * Cranley-Patterson rotation (a random shift modulo 1).
+ */
+public class HaltonSampler implements Sampler {
+
+    @Override
+    public double sample(long seed, int index, int dimension) {
+        double value = dimension == 0 ? radicalInverse2(index) : radicalInverse3(index);
+        value += Sampler.toUnit(Sampler.mix(seed, dimension));
+        return value >= 1 ? value - 1 : value;
+    }
+
+    /**
+     * @return The digits of `index` in base 2, mirrored around the binary point.
+     */
+    private static double radicalInverse2(int index) {
+        return (Integer.reverse(index) & 0xFFFFFFFFL) * 0x1.0p-32;
+    }
+
+    /**
+     * @return The digits of `index` in base 3, mirrored around the point.
+     */
+    private static double radicalInverse3(int index) {
+        double value = 0;
+        double scale = 1.0 / 3;
+        while (index > 0) {
+            value += (index % 3) * scale;
+            index /= 3;
+            scale /= 3;
+        }
+        return value;
+    }
+}
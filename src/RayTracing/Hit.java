@@ -0,0 +1,141 @@
+package RayTracing;
+
+/**
+ * A mutable record of the closest intersection of a ray found so far. Owned by
+ * the caller and reused, so that intersection tests don't allocate.
+ *
+ * Only the distance along the ray is computed while searching for the closest
+ * intersection; the point and normal are computed once, when first requested.
+ */
+public class Hit {
+    public Ray ray; // The traced ray
+    public double t; // The distance of the intersection from the ray's origin
+    public Surface surface; // The intersected surface, if it was found by testing a `Surface`
+    public CompiledScene scene; // The compiled scene, if the intersection was found in it
+    public int primitive; // The intersected primitive of `scene`, or -1
+    public int face; // Identifies the part of the surface that was hit, for surfaces made of several parts
+
+    private Vector point;
+    private Vector normal;
+
+    public Hit() {
+        this.reset(null, Double.POSITIVE_INFINITY);
+    }
+
+    public Hit(Ray ray) {
+        this.reset(ray, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Clear the record for a new search.
+     *
+     * @param ray  The ray that will be traced.
+     * @param tMax Intersections at this distance or farther are ignored.
+     */
+    public void reset(Ray ray, double tMax) {
+        this.ray = ray;
+        this.t = tMax;
+        this.surface = null;
+        this.scene = null;
+        this.primitive = -1;
+        this.face = 0;
+        this.point = null;
+        this.normal = null;
+    }
+
+    /**
+     * Record a closer intersection.
+     *
+     * @param surface The intersected surface.
+     * @param t       The distance of the intersection from the ray's origin.
+     * @param face    The part of the surface that was hit.
+     */
+    public void record(Surface surface, double t, int face) {
+        this.surface = surface;
+        this.primitive = -1;
+        this.t = t;
+        this.face = face;
+        this.point = null;
+        this.normal = null;
+    }
+
+    /**
+     * Record a closer intersection with a primitive of a compiled scene.
+     *
+     * @param scene     The compiled scene.
+     * @param primitive The intersected primitive.
+     * @param t         The distance of the intersection from the ray's origin.
+     */
+    public void record(CompiledScene scene, int primitive, double t) {
+        this.surface = null;
+        this.scene = scene;
+        this.primitive = primitive;
+        this.t = t;
+        this.face = 0;
+        this.point = null;
+        this.normal = null;
+    }
+
+    /**
+     * Restore an intersection with a primitive of a compiled scene that was found
+     * before, with its point and normal (see `GBuffer`).
+     *
+     * @param ray       The traced ray.
+     * @param scene     The compiled scene.
+     * @param primitive The intersected primitive.
+     * @param t         The distance of the intersection from the ray's origin.
+     * @param point     The point of intersection.
+     * @param normal    The normal at the point of intersection, facing the ray's
+     *                  origin.
+     */
+    public void restore(Ray ray, CompiledScene scene, int primitive, double t, Vector point, Vector normal) {
+        this.reset(ray, t);
+        this.scene = scene;
+        this.primitive = primitive;
+        this.point = point;
+        this.normal = normal;
+    }
+
+    /**
+     * @return If an intersection was recorded.
+     */
+    public boolean isPresent() {
+        return this.surface != null || this.primitive >= 0;
+    }
+
+    /**
+     * @return The intersected surface.
+     */
+    public Surface surface() {
+        return this.surface != null ? this.surface : this.scene.surface(this.primitive);
+    }
+
+    /**
+     * @return The material of the intersected surface.
+     */
+    public Material material() {
+        return this.surface != null ? this.surface.material : this.scene.material(this.primitive);
+    }
+
+    /**
+     * @return The point of intersection.
+     */
+    public Vector point() {
+        if (this.point == null) {
+            this.point = this.ray.point(this.t);
+        }
+        return this.point;
+    }
+
+    /**
+     * @return The normal to the surface at the point of intersection, facing the
+     *         ray's origin.
+     */
+    public Vector normal() {
+        if (this.normal == null) {
+            Vector normal = this.surface != null ? this.surface.normal(this) : this.scene.normal(this);
+            this.normal = normal.dot(this.ray.direction) > 0 ? normal.neg() : normal;
+        }
+        return this.normal;
+    }
+}
@@ -0,0 +1,50 @@
+package RayTracing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The destination of a rendered image, which receives the image's rows in
+ * order, top to bottom, while the rest of the image is still being rendered.
+ * The image is complete once all its rows were written and the sink is closed.
+ */
+public interface ImageSink extends Closeable {
+    /**
+     * Write the next rows of the image.
+     *
+     * @param rgbData The RGB data of the rows, 3 bytes per pixel, row by row.
+     * @param rows    The number of rows, at the start of `rgbData`.
+     */
+    void write(byte[] rgbData, int rows) throws IOException;
+
+    /**
+     * Open a sink that saves an image to a file, in the format its extension
+     * names: `.ppm` for a binary PPM image, `.raw` for bare RGB data, and PNG
+     * for anything else.
+     *
+     * @param fileName         The file's name.
+     * @param width            The width of the image, in pixels.
+     * @param height           The height of the image, in pixels.
+     * @param threads          The number of threads compressing a PNG image.
+     * @param compressionLevel The compression level of a PNG image, 0-9, or
+     *                         `Deflater.DEFAULT_COMPRESSION`.
+     * @return The sink.
+     * @throws IllegalArgumentException If the image's size isn't positive.
+     */
+    static ImageSink open(String fileName, int width, int height, int threads, int compressionLevel)
+            throws IOException {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("The image's size must be positive.");
+        }
+        Path path = Paths.get(fileName);
+        String name = fileName.toLowerCase();
+        if (name.endsWith(".ppm")) {
+            return new PpmImageSink(path, width, height, true);
+        } else if (name.endsWith(".raw")) {
+            return new PpmImageSink(path, width, height, false);
+        }
+        return new PngImageSink(path, width, height, threads, compressionLevel);
+    }
+}
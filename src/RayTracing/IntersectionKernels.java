@@ -0,0 +1,64 @@
+package RayTracing;
+
+/**
+ * The intersection tests of a ray against a range of a compiled scene's
+ * spheres or boxes. The scalar implementation is always available; a SIMD
+ * implementation, built on the incubating JDK Vector API, is used when it was
+ * compiled in and the `jdk.incubator.vector` module is present at runtime.
+ *
+ * The SIMD implementation lives in the separate `src-simd` source folder,
+ * because it only compiles with the module added:
+ * 
+ * <pre>
+ * javac --add-modules jdk.incubator.vector -d out src/RayTracing/*.java src-simd/RayTracing/*.java
+ * java --add-modules jdk.incubator.vector -cp out RayTracing.RayTracer ...
+ * </pre>
+ */
+public interface IntersectionKernels {
+    /**
+     * @return The number of primitives tested at once.
+     */
+    int width();
+
+    /**
+     * Find the sphere closest to a ray's origin among the spheres `start` to
+     * `end` of a compiled scene.
+     *
+     * @return The index of the sphere with the smallest intersection distance t,
+     *         such that `tMin` <= t < `tMax`, or -1 if there is none. On ties,
+     *         the lowest index.
+     */
+    int closestSphere(CompiledScene scene, int start, int end, double ox, double oy, double oz, double dx,
+            double dy, double dz, double tMin, double tMax);
+
+    /**
+     * Find the box closest to a ray's origin among the boxes `start` to `end` of
+     * a compiled scene.
+     *
+     * @param invX The inverse of the ray direction's x coordinate (and so on).
+     * @return The index of the box with the smallest intersection distance t,
+     *         such that `tMin` <= t < `tMax`, or -1 if there is none. On ties,
+     *         the lowest index.
+     */
+    int closestBox(CompiledScene scene, int start, int end, double ox, double oy, double oz, double invX,
+            double invY, double invZ, double tMin, double tMax);
+
+    /**
+     * Pick the fastest kernels available. The SIMD kernels can be turned off with
+     * the `raytracer.simd=false` system property.
+     *
+     * @return The SIMD kernels if available, and the scalar kernels otherwise.
+     */
+    static IntersectionKernels select() {
+        if (!"false".equals(System.getProperty("raytracer.simd"))
+                && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (IntersectionKernels) Class.forName("RayTracing.SimdKernels").getDeclaredConstructor()
+                        .newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // Not compiled in, fall back to the scalar kernels
+            }
+        }
+        return new ScalarKernels();
+    }
+}
@@ -0,0 +1,230 @@
+package RayTracing;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The keyframes of an animation of a scene: where the camera, spheres, boxes
+ * and lights are at some of the frames. In between keyframes, positions are
+ * interpolated linearly; before the first keyframe of an entity and after its
+ * last, it stays where that keyframe puts it. Entities without keyframes stay
+ * where the scene file puts them.
+ *
+ * A keyframes file is written like a scene file, a line per keyframe:
+ *
+ * <pre>
+ * # The number of frames (by default, up to the last keyframe)
+ * frm 120
+ * # At frame 0, the camera is at (0, 2, -8), looks at (0, 0, 0), up is (0, 1, 0)
+ * cam 0 0 2 -8 0 0 0 0 1 0
+ * # At frame 60, the 2nd sphere of the scene file is at (1, 0.5, 0)
+ * sph 60 2 1 0.5 0
+ * # At frame 119, the 1st box is at (-1, 0.5, 2) and the 1st light at (0, 5, 0)
+ * box 119 1 -1 0.5 2
+ * lgt 119 1 0 5 0
+ * </pre>
+ *
+ * Spheres, boxes and lights are numbered from 1, in the order of the scene
+ * file, like materials. Frames are numbered from 0.
+ */
+public class Keyframes {
+
+    /**
+     * A keyframe of an entity.
+     */
+    private static class Key {
+        final int frame;
+        final double[] values;
+
+        Key(int frame, double[] values) {
+            this.frame = frame;
+            this.values = values;
+        }
+    }
+
+    public final int frames; // The number of frames
+
+    private final List<Key> camera; // Position, look at and up vector, by frame
+    // The keyframes of every animated entity, by its index (from 0), by frame
+    private final Map<Integer, List<Key>> spheres;
+    private final Map<Integer, List<Key>> boxes;
+    private final Map<Integer, List<Key>> lights;
+
+    private Keyframes(int frames, List<Key> camera, Map<Integer, List<Key>> spheres, Map<Integer, List<Key>> boxes,
+            Map<Integer, List<Key>> lights) {
+        this.frames = frames;
+        this.camera = camera;
+        this.spheres = spheres;
+        this.boxes = boxes;
+        this.lights = lights;
+    }
+
+    /**
+     * Parse a keyframes file.
+     *
+     * @param fileName The file.
+     * @return The keyframes.
+     */
+    public static Keyframes parse(String fileName) throws IOException, RayTracer.RayTracerException {
+        int frames = -1;
+        int lastFrame = 0;
+        List<Key> camera = new ArrayList<>();
+        Map<Integer, List<Key>> spheres = new TreeMap<>();
+        Map<Integer, List<Key>> boxes = new TreeMap<>();
+        Map<Integer, List<Key>> lights = new TreeMap<>();
+        try (BufferedReader r = Files.newBufferedReader(Paths.get(fileName))) {
+            String line;
+            int lineNum = 0;
+            while ((line = r.readLine()) != null) {
+                ++lineNum;
+                line = line.trim();
+                if (line.isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+                String[] params = line.toLowerCase().split("\\s+");
+                try {
+                    String code = params[0];
+                    if (code.equals("frm")) {
+                        frames = Integer.parseInt(params[1]);
+                        continue;
+                    }
+                    int frame = Integer.parseInt(params[1]);
+                    if (frame < 0)
+                        throw new RayTracer.RayTracerException(
+                                String.format("Negative frame number (line %d)", lineNum));
+                    lastFrame = Math.max(lastFrame, frame);
+                    if (code.equals("cam")) {
+                        add(camera, frame, values(params, 2, 9, lineNum));
+                    } else if (code.equals("sph") || code.equals("box") || code.equals("lgt")) {
+                        int index = Integer.parseInt(params[2]) - 1;
+                        if (index < 0)
+                            throw new RayTracer.RayTracerException(
+                                    String.format("Entities are numbered from 1 (line %d)", lineNum));
+                        Map<Integer, List<Key>> track = code.equals("sph") ? spheres
+                                : code.equals("box") ? boxes : lights;
+                        add(track.computeIfAbsent(index, i -> new ArrayList<>()), frame,
+                                values(params, 3, 3, lineNum));
+                    } else {
+                        throw new RayTracer.RayTracerException(
+                                String.format("Did not recognize keyframe: %s (line %d)", code, lineNum));
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    throw new RayTracer.RayTracerException(String.format("Bad keyframe (line %d)", lineNum));
+                }
+            }
+        }
+        if (frames < 0) {
+            frames = lastFrame + 1;
+        }
+        if (frames < 1)
+            throw new RayTracer.RayTracerException("The number of frames must be positive.");
+        return new Keyframes(frames, camera, spheres, boxes, lights);
+    }
+
+    private static double[] values(String[] params, int first, int count, int lineNum)
+            throws RayTracer.RayTracerException {
+        if (params.length != first + count)
+            throw new RayTracer.RayTracerException(
+                    String.format("Expected %d values after the frame (line %d)", count + first - 2, lineNum));
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = Double.parseDouble(params[first + i]);
+        }
+        return values;
+    }
+
+    /**
+     * Add a keyframe to a track, in frame order, replacing a keyframe of the
+     * same frame.
+     */
+    private static void add(List<Key> track, int frame, double[] values) {
+        int i = 0;
+        while (i < track.size() && track.get(i).frame < frame) {
+            i++;
+        }
+        if (i < track.size() && track.get(i).frame == frame) {
+            track.set(i, new Key(frame, values));
+        } else {
+            track.add(i, new Key(frame, values));
+        }
+    }
+
+    /**
+     * Interpolate a track at a frame.
+     */
+    private static double[] at(List<Key> track, int frame) {
+        Key previous = track.get(0);
+        if (frame <= previous.frame) {
+            return previous.values;
+        }
+        for (Key next : track) {
+            if (frame <= next.frame) {
+                double weight = (double) (frame - previous.frame) / (next.frame - previous.frame);
+                double[] values = new double[next.values.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = previous.values[i] + (next.values[i] - previous.values[i]) * weight;
+                }
+                return values;
+            }
+            previous = next;
+        }
+        return previous.values;
+    }
+
+    private static Map<Integer, Vector> positions(Map<Integer, List<Key>> tracks, int frame) {
+        Map<Integer, Vector> positions = new TreeMap<>();
+        for (Map.Entry<Integer, List<Key>> track : tracks.entrySet()) {
+            double[] values = at(track.getValue(), frame);
+            positions.put(track.getKey(), new Vector(values[0], values[1], values[2]));
+        }
+        return positions;
+    }
+
+    /**
+     * Get the camera at a frame.
+     *
+     * @param base        The scene's camera, whose screen and lens are kept.
+     * @param frame       The frame.
+     * @param aspectRatio The aspect ratio (height / width) of the rendered image.
+     * @return The camera, `base` if the camera isn't animated.
+     */
+    public Camera camera(Camera base, int frame, double aspectRatio) {
+        if (this.camera.isEmpty()) {
+            return base;
+        }
+        double[] values = at(this.camera, frame);
+        return new Camera(new Vector(values[0], values[1], values[2]), new Vector(values[3], values[4], values[5]),
+                new Vector(values[6], values[7], values[8]), base.screenDist, base.screenWidth, aspectRatio,
+                base.fisheye, base.fisheye_param);
+    }
+
+    /**
+     * @return The centers of the animated spheres at a frame, by their index
+     *         (from 0) among the scene's spheres.
+     */
+    public Map<Integer, Vector> spheres(int frame) {
+        return positions(this.spheres, frame);
+    }
+
+    /**
+     * @return The positions of the animated boxes at a frame, by their index
+     *         (from 0) among the scene's boxes.
+     */
+    public Map<Integer, Vector> boxes(int frame) {
+        return positions(this.boxes, frame);
+    }
+
+    /**
+     * @return The positions of the animated lights at a frame, by their index
+     *         (from 0) among the scene's lights.
+     */
+    public Map<Integer, Vector> lights(int frame) {
+        return positions(this.lights, frame);
+    }
+}
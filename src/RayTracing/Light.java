@@ -1,7 +1,7 @@
 package RayTracing;
 
-import java.util.Optional;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * A class representing a light source in the scene
@@ -30,10 +30,7 @@ public class Light {
      * @return If there are no surfaces between `point` and `origin`.
      */
     private static boolean isLit(Vector point, Vector origin, Scene scene) {
-        Vector direction = origin.sub(point);
-        Ray lightRay = new Ray(point.add(direction.mul(0.00000001)), direction);
-        Optional<Triple<Surface, Vector, Vector>> closestCollision = lightRay.closestCollision(scene);
-        return closestCollision.isEmpty() || point.compareDistances(closestCollision.get().second(), origin) >= 0;
+        return !scene.occluded(point, origin);
     }
 
     /**
@@ -43,40 +40,263 @@ public class Light {
      * @return Light intensity at the given point.
      */
     public double lightIntensity(Vector point, Scene scene) {
+        return this.lightIntensity(point, scene, ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * Calculates the intensity of this light at given point
+     * 
+     * @param scene the Scene object
+     * @param seed  Identifies the sequence of the scene's sampler that jitters the
+     *              shadow rays. Rendering threads derive it from the pixel, the
+     *              ray's path and the light, so the result does not depend on
+     *              which thread renders the point.
+     * @return Light intensity at the given point.
+     */
+    public double lightIntensity(Vector point, Scene scene, long seed) {
+        Pair<Vector, Vector> axes = this.gridAxes(point);
+        Vector u = axes.first();
+        Vector v = axes.second();
+        int n = scene.shadowRays;
+        if (scene.shadowSamples > 0) {
+            return this.intensity(this.sampledLight(point, scene, u, v, seed), scene.shadowSamples);
+        }
+
+        // We shoot rays at the point from N^2 cells of a grid on the light source
+        double totalCollisions;
+        if (scene.adaptiveShadows && n >= 3) {
+            totalCollisions = this.adaptiveSamples(point, scene, u, v, seed, grid(n * n));
+        } else {
+            totalCollisions = 0;
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    // Check if there are surfaces between the point and the light source
+                    if (this.isLit(point, scene, u, v, i, j, seed)) {
+                        totalCollisions += 1;
+                    }
+                }
+            }
+        }
+        return this.intensity(totalCollisions, n * n);
+    }
+
+    /**
+     * @return The intensity of this light at a point lit by `lit` of the `rays`
+     *         shadow rays cast at it.
+     */
+    double intensity(double lit, int rays) {
+        return (1 - this.shadowIntensity) + (this.shadowIntensity * (lit / rays));
+    }
+
+    /**
+     * @return The axes of the grid of shadow ray origins on the light source, as
+     *         seen from `point`.
+     */
+    Pair<Vector, Vector> gridAxes(Vector point) {
         Vector lightVector = point.sub(this.position);
         Vector u = lightVector.getPerp().normalize();
-        Vector v = lightVector.cross(u).normalize();
-        Vector[][] originPoints = new Vector[scene.shadowRays][scene.shadowRays]; // A collection of N^2 points from
-                                                                                  // which we shoot rays at the target.
-        Random r = new Random();
-
-        for (int i = 0; i < scene.shadowRays; i++) {
-            for (int j = 0; j < scene.shadowRays; j++) {
-                // double t = (i + r.nextDouble() - (scene.shadowRays / 2.0)) * this.radius /
-                // scene.shadowRays;
-                // double s = (j + r.nextDouble() - (scene.shadowRays / 2.0)) * this.radius /
-                // scene.shadowRays;
-                double t = ((i + r.nextDouble()) / scene.shadowRays - 0.5) * this.radius;
-                double s = ((j + r.nextDouble()) / scene.shadowRays - 0.5) * this.radius;
-                originPoints[i][j] = this.position.add(u.mul(t)).add(v.mul(s));
-            }
+        return new Pair<>(u, lightVector.cross(u).normalize());
+    }
+
+    /**
+     * Get the (jittered) point of a cell of the grid on the light source, from
+     * which a shadow ray is cast.
+     * 
+     * @param u    The first axis of the grid
+     * @param v    The second axis of the grid
+     * @param i    The cell's index along `u`
+     * @param j    The cell's index along `v`
+     * @param seed The sequence of the scene's sampler to jitter the cell by
+     */
+    Vector cellPoint(Scene scene, Vector u, Vector v, int i, int j, long seed) {
+        int cell = i * scene.shadowRays + j;
+        double t = ((i + scene.sampler.sample(seed, cell, 0)) / scene.shadowRays - 0.5) * this.radius;
+        double s = ((j + scene.sampler.sample(seed, cell, 1)) / scene.shadowRays - 0.5) * this.radius;
+        return this.position.add(u.mul(t)).add(v.mul(s));
+    }
+
+    /**
+     * Get a point of the light source drawn from the scene's sampler, over the
+     * whole light source rather than within a cell of the grid, from which a
+     * shadow ray is cast (see `Scene.shadowSamples`).
+     * 
+     * @param u     The first axis of the grid
+     * @param v     The second axis of the grid
+     * @param index The sample's index in the sequence
+     * @param seed  The sequence of the scene's sampler
+     */
+    Vector samplePoint(Scene scene, Vector u, Vector v, int index, long seed) {
+        double t = (scene.sampler.sample(seed, index, 0) - 0.5) * this.radius;
+        double s = (scene.sampler.sample(seed, index, 1) - 0.5) * this.radius;
+        return this.position.add(u.mul(t)).add(v.mul(s));
+    }
+
+    // The number of samples cast first when sampling the light source adaptively
+    // from the sampler's sequence, like the corners and the center of the grid
+    static final int PROBE_SAMPLES = 5;
+
+    /**
+     * @return If the shadow rays of `scene.shadowSamples` are cast adaptively: the
+     *         first `PROBE_SAMPLES` ones first, and the rest only if they
+     *         disagree.
+     */
+    static boolean probesFirst(Scene scene) {
+        return scene.adaptiveShadows && scene.shadowSamples > PROBE_SAMPLES;
+    }
+
+    /**
+     * Count the samples of the light source that light a point, out of
+     * `scene.shadowSamples` points drawn from the sampler's sequence. The first
+     * points of a low discrepancy sequence already cover the light source
+     * evenly, so with adaptive shadows, if the first `PROBE_SAMPLES` of them
+     * agree, the point is assumed to be fully lit or fully in the umbra.
+     * 
+     * @return The number of samples that light the point.
+     */
+    private int sampledLight(Vector point, Scene scene, Vector u, Vector v, long seed) {
+        int count = scene.shadowSamples;
+        int probes = probesFirst(scene) ? PROBE_SAMPLES : count;
+        int lit = 0;
+        for (int k = 0; k < probes; k++) {
+            lit += isLit(point, this.samplePoint(scene, u, v, k, seed), scene) ? 1 : 0;
+        }
+        if (probes < count && (lit == 0 || lit == probes)) {
+            return lit == 0 ? 0 : count;
+        }
+        for (int k = probes; k < count; k++) {
+            lit += isLit(point, this.samplePoint(scene, u, v, k, seed), scene) ? 1 : 0;
+        }
+        return lit;
+    }
+
+    // The states of the cells of the adaptive sampling grid
+    private static final byte UNKNOWN = 0;
+    private static final byte LIT = 1;
+    private static final byte SHADOWED = 2;
+    // Per thread grids, reused between calls
+    private static final ThreadLocal<byte[]> SAMPLES = ThreadLocal.withInitial(() -> new byte[0]);
+
+    /**
+     * @return This thread's grid, with at least `cells` cells, all `UNKNOWN`.
+     */
+    private static byte[] grid(int cells) {
+        byte[] samples = SAMPLES.get();
+        if (samples.length < cells) {
+            samples = new byte[cells];
+            SAMPLES.set(samples);
+        }
+        Arrays.fill(samples, 0, cells, UNKNOWN);
+        return samples;
+    }
+
+    /**
+     * Check if a point is lit from a (jittered) cell of the grid on the light
+     * source.
+     * 
+     * @param u    The first axis of the grid
+     * @param v    The second axis of the grid
+     * @param i    The cell's index along `u`
+     * @param j    The cell's index along `v`
+     * @param seed The sequence of the scene's sampler to jitter the cell by
+     */
+    private boolean isLit(Vector point, Scene scene, Vector u, Vector v, int i, int j, long seed) {
+        return isLit(point, this.cellPoint(scene, u, v, i, j, seed), scene);
+    }
+
+    /**
+     * Count the cells of the grid on the light source that light a point,
+     * casting as few rays as possible. First casts rays from the corners and the
+     * center of the grid, and if they agree, the point is assumed to be fully lit
+     * or fully in the umbra. Otherwise, the grid is split in quarters, which are
+     * refined the same way (from their corners) down to single cells, so only the
+     * penumbra is sampled densely.
+     * 
+     * @param samples The state of every cell, all `UNKNOWN` at first
+     * @return The number of cells that light the point.
+     */
+    private int adaptiveSamples(Vector point, Scene scene, Vector u, Vector v, long seed, byte[] samples) {
+        int last = scene.shadowRays - 1;
+        byte center = this.sample(point, scene, u, v, last / 2, last / 2, seed, samples);
+        if (this.sample(point, scene, u, v, 0, 0, seed, samples) == center
+                && this.sample(point, scene, u, v, 0, last, seed, samples) == center
+                && this.sample(point, scene, u, v, last, 0, seed, samples) == center
+                && this.sample(point, scene, u, v, last, last, seed, samples) == center) {
+            return center == LIT ? scene.shadowRays * scene.shadowRays : 0;
         }
+        return this.refine(point, scene, u, v, seed, samples, 0, last, 0, last);
+    }
+
+    /**
+     * Count the cells of the grid on the light source that light a point, like
+     * `adaptiveSamples`, when the rays from the center and the corners of the
+     * grid were already cast (for example, in a batch by `WavefrontTracer`) and
+     * disagree. Only the rest of the penumbra's rays are cast.
+     * 
+     * @param probes If the rays from the center and from the corners (0, 0),
+     *               (0, last), (last, 0) and (last, last) light the point, in
+     *               that order, starting at `offset`
+     * @return The number of cells that light the point.
+     */
+    int refineProbed(Vector point, Scene scene, Vector u, Vector v, long seed, boolean[] probes, int offset) {
+        int n = scene.shadowRays;
+        int last = n - 1;
+        byte[] samples = grid(n * n);
+        samples[(last / 2) * n + last / 2] = probes[offset] ? LIT : SHADOWED;
+        samples[0] = probes[offset + 1] ? LIT : SHADOWED;
+        samples[last] = probes[offset + 2] ? LIT : SHADOWED;
+        samples[last * n] = probes[offset + 3] ? LIT : SHADOWED;
+        samples[last * n + last] = probes[offset + 4] ? LIT : SHADOWED;
+        return this.refine(point, scene, u, v, seed, samples, 0, last, 0, last);
+    }
 
-        // TODO: Test collisions
-        double totalCollisions = 0;
-        for (int i = 0; i < scene.shadowRays; i++) {
-            for (int j = 0; j < scene.shadowRays; j++) {
-                // Check if there are surfaces between the point and the light source
-                if (isLit(point, originPoints[i][j], scene)) {
-                    // The ray to the light source collides with a surface before it hits the light
-                    // source
-                    totalCollisions += 1;
+    /**
+     * Count the lighting cells in the block of cells `i0` to `i1` (inclusive) by
+     * `j0` to `j1`. If the block's corners agree, so does the whole block,
+     * otherwise its quarters are counted separately.
+     */
+    private int refine(Vector point, Scene scene, Vector u, Vector v, long seed, byte[] samples, int i0, int i1,
+            int j0, int j1) {
+        byte corner = this.sample(point, scene, u, v, i0, j0, seed, samples);
+        boolean agree = this.sample(point, scene, u, v, i0, j1, seed, samples) == corner
+                && this.sample(point, scene, u, v, i1, j0, seed, samples) == corner
+                && this.sample(point, scene, u, v, i1, j1, seed, samples) == corner;
+        if (agree) {
+            return corner == LIT ? (i1 - i0 + 1) * (j1 - j0 + 1) : 0;
+        }
+        if (i1 - i0 <= 1 && j1 - j0 <= 1) {
+            // A block of at most 2x2 cells, all of which are corners
+            int lit = 0;
+            for (int i = i0; i <= i1; i++) {
+                for (int j = j0; j <= j1; j++) {
+                    lit += samples[i * scene.shadowRays + j] == LIT ? 1 : 0;
                 }
             }
+            return lit;
+        }
+        int iMiddle = (i0 + i1) / 2;
+        int jMiddle = (j0 + j1) / 2;
+        int lit = this.refine(point, scene, u, v, seed, samples, i0, iMiddle, j0, jMiddle);
+        if (iMiddle < i1) {
+            lit += this.refine(point, scene, u, v, seed, samples, iMiddle + 1, i1, j0, jMiddle);
         }
-        // double totalCollisions = scene.shadowRays;
-        return (1 - this.shadowIntensity)
-                + (this.shadowIntensity * (totalCollisions / (scene.shadowRays * scene.shadowRays)));
+        if (jMiddle < j1) {
+            lit += this.refine(point, scene, u, v, seed, samples, i0, iMiddle, jMiddle + 1, j1);
+        }
+        if (iMiddle < i1 && jMiddle < j1) {
+            lit += this.refine(point, scene, u, v, seed, samples, iMiddle + 1, i1, jMiddle + 1, j1);
+        }
+        return lit;
+    }
+
+    /**
+     * Get the state of a cell of the adaptive grid, casting its ray the first time.
+     */
+    private byte sample(Vector point, Scene scene, Vector u, Vector v, int i, int j, long seed, byte[] samples) {
+        int cell = i * scene.shadowRays + j;
+        if (samples[cell] == UNKNOWN) {
+            samples[cell] = this.isLit(point, scene, u, v, i, j, seed) ? LIT : SHADOWED;
+        }
+        return samples[cell];
     }
 
     /**
@@ -91,12 +311,30 @@ public class Light {
      * @return The diffuse/specular color multiplier.
      */
     public static Vector lightAtPoint(Scene scene, Surface surface, Vector point, Vector normal, boolean specular) {
+        return lightAtPoint(scene, surface, point, normal, specular, ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * Calculates the RGB value of the light multiplier at a given ray collision
+     * 
+     * @param scene    The relevant scene
+     * @param surface  The surface intersected by the ray
+     * @param point    The point of collision
+     * @param normal   The normal to the surface at the point of collision
+     * @param specular Whether or not to calculate specular light; if true,
+     *                 multiplies each light by its' specular intensity
+     * @param seed     Identifies the sampling sequences of the shadow rays
+     * @return The diffuse/specular color multiplier.
+     */
+    public static Vector lightAtPoint(Scene scene, Surface surface, Vector point, Vector normal, boolean specular,
+            long seed) {
         Vector ret = new Vector(0, 0, 0);
-        for (Light light : scene.lights) {
+        for (int i = 0; i < scene.lights.size(); i++) {
+            Light light = scene.lights.get(i);
 
             // if (Light.isLit(point, light.position, scene)) {
             // Calculate brightness of light at point.
-            Vector baseLight = light.color.mul(light.lightIntensity(point, scene));
+            Vector baseLight = light.color.mul(light.lightIntensity(point, scene, Sampler.mix(seed, i)));
             Vector lightVector = light.position.sub(point).normalize();
             if (specular) {
                 // for specular light:
@@ -121,4 +359,50 @@ public class Light {
         return ret;
     }
 
+    /**
+     * Calculates the RGB values of both the diffuse and the specular light
+     * multipliers at a given ray collision. The intensity of every light (and so
+     * its shadow rays) is calculated once, and used for both.
+     * 
+     * @param scene    The relevant scene
+     * @param material The material of the surface intersected by the ray
+     * @param point    The point of collision
+     * @param normal   The normal to the surface at the point of collision
+     * @param seed     Identifies the sampling sequences of the shadow rays
+     * @return A pair of the diffuse and the specular color multipliers.
+     */
+    public static Pair<Vector, Vector> shade(Scene scene, Material material, Vector point, Vector normal,
+            long seed) {
+        double[] intensities = new double[scene.lights.size()];
+        for (int i = 0; i < intensities.length; i++) {
+            intensities[i] = scene.lights.get(i).lightIntensity(point, scene, Sampler.mix(seed, i));
+        }
+        return shade(scene, material, point, normal, intensities, 0);
+    }
+
+    /**
+     * Calculates the RGB values of both the diffuse and the specular light
+     * multipliers at a given ray collision, given the intensities of the lights
+     * at the point.
+     * 
+     * @param intensities The intensity of the `i`th light is at `offset + i`
+     * @return A pair of the diffuse and the specular color multipliers.
+     */
+    static Pair<Vector, Vector> shade(Scene scene, Material material, Vector point, Vector normal,
+            double[] intensities, int offset) {
+        Vector diffuse = new Vector(0, 0, 0);
+        Vector specular = new Vector(0, 0, 0);
+        Vector toCamera = scene.camera.position.sub(point).normalize();
+        for (int i = 0; i < scene.lights.size(); i++) {
+            Light light = scene.lights.get(i);
+            Vector baseLight = light.color.mul(intensities[offset + i]);
+            Vector lightVector = light.position.sub(point).normalize();
+            // diffuse light(R, G, B) = Color*intensity*dot(N,L)
+            diffuse = diffuse.add(baseLight.mul(lightVector.dot(normal)));
+            // specular light(R, G, B) = Color*intensity*specularIntensity*(dot(R,V)^phong)
+            double brightness = Math.pow(lightVector.reflect(normal).dot(toCamera), material.phong);
+            specular = specular.add(baseLight.mul(light.specularIntensity * brightness));
+        }
+        return new Pair<>(diffuse, specular);
+    }
 }
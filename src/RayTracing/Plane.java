@@ -1,34 +1,57 @@
 package RayTracing;
 
-import java.util.Optional;
 import java.util.stream.Stream;
 
 public class Plane extends Surface {
-    private Vector normal;
-    private double distance;
+    Vector normal;
+    double distance;
 
     public Plane(Vector normal, double distance, Material material) {
+        this(normal, distance, material, false);
+    }
+
+    /**
+     * @param normalized If `normal` is known to be of length 1 already, so it
+     *                   isn't normalized again.
+     */
+    private Plane(Vector normal, double distance, Material material, boolean normalized) {
         super(material);
-        this.normal = normal.normalize();
+        this.normal = normalized ? normal : normal.normalize();
         this.distance = distance;
     }
 
+    /**
+     * Create a plane whose normal is already normalized, such as a plane loaded
+     * from a compiled scene file, without normalizing it again.
+     * 
+     * @param normal   The plane's normal, of length 1.
+     * @param distance The plane's offset along its normal.
+     * @param material The plane's material.
+     * @return The plane.
+     */
+    public static Plane ofUnitNormal(Vector normal, double distance, Material material) {
+        return new Plane(normal, distance, material, true);
+    }
+
     public boolean onPlane(Vector point) {
         return point.dot(this.normal) == distance;
     }
 
     @Override
-    public Optional<Pair<Vector, Vector>> intersection(Ray ray) {
+    public boolean intersect(Ray ray, double tMin, double tMax, Hit hit) {
         double denominator = this.normal.dot(ray.direction);
         if (Math.abs(denominator) > 0) {
-            Vector diff = this.normal.mul(distance).sub(ray.origin);
-            double length = diff.dot(this.normal) / denominator;
-            if (length >= 0) {
-                Vector normal = Stream.of(this.normal, this.normal.neg())
-                        .min((u, v) -> ray.origin.compareDistances(u, v)).get();
-                return Optional.of(new Pair<Vector, Vector>(ray.point(length), normal));
+            double length = (this.distance - ray.origin.dot(this.normal)) / denominator;
+            if (length >= tMin && length < tMax) {
+                hit.record(this, length, 0);
+                return true;
             }
         }
-        return Optional.empty();
+        return false;
+    }
+
+    @Override
+    public Vector normal(Hit hit) {
+        return Stream.of(this.normal, this.normal.neg()).min((u, v) -> hit.ray.origin.compareDistances(u, v)).get();
     }
 }
@@ -0,0 +1,455 @@
+package RayTracing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Saves an image in the PNG format (8 bit RGB, not interlaced), compressing
+ * the rows as they arrive and writing the compressed data out in chunks.
+ *
+ * The rows are compressed in independent blocks of about `BLOCK_SIZE` bytes,
+ * concurrently, the way pigz does: every block is deflated on its own, with
+ * the 32KB of image data before it as the dictionary (so the compression ratio
+ * barely suffers), and ends with a sync flush, so the compressed blocks can
+ * simply be concatenated. The zlib stream is closed with an empty final block
+ * and the Adler-32 checksum, combined from the blocks' checksums. Blocks start
+ * at fixed rows of the image, whatever rows are written at once, so the file
+ * doesn't depend on how the image was split into bands: rows that don't fill a
+ * block wait for the next rows, or for the sink to be closed.
+ *
+ * Every row is filtered with the filter that minimizes the sum of the absolute
+ * values of its filtered bytes, the heuristic recommended by the PNG
+ * specification. Filtering is deterministic, so a block filters the rows of
+ * its dictionary again instead of waiting for the block before it.
+ */
+public class PngImageSink implements ImageSink {
+    private static final byte[] SIGNATURE = { (byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n' };
+    private static final int CHUNK_SIZE = 1 << 16; // The size of the image data in an IDAT chunk
+    private static final int BLOCK_SIZE = 1 << 17; // The amount of image data compressed at once
+    private static final int DICTIONARY_SIZE = 1 << 15; // The size of deflate's window
+    private static final int BYTES_PER_PIXEL = 3;
+    private static final int ADLER_BASE = 65521; // The modulus of Adler-32
+
+    // The row filters, by their type in the PNG format
+    private static final int NONE = 0;
+    private static final int SUB = 1;
+    private static final int UP = 2;
+    private static final int AVERAGE = 3;
+    private static final int PAETH = 4;
+
+    private final FileChannel channel;
+    private final int rowLength; // The length of a row's RGB data
+    private final int blockRows; // The number of rows in a block
+    private final int level; // The compression level
+    private final ForkJoinPool pool; // Compresses the blocks, or null to compress them on the caller's thread
+    private boolean closed; // Closing again does nothing
+
+    // The number of previous rows a block needs: its dictionary's and the one
+    // before them, to filter them with
+    private final int historySize;
+    // The last rows written, oldest first: the rows not compressed yet, and the
+    // `historySize` rows before them
+    private final byte[] history;
+    private int historyRows; // The number of rows in `history`
+    private int pendingRows; // The number of rows at the end of `history` not compressed yet
+    private final byte[] zeros; // The row before the first, for filtering it
+
+    private long adler = 1; // The Adler-32 checksum of the image data so far
+    private final byte[] compressed = new byte[CHUNK_SIZE]; // The compressed data of the next IDAT chunk
+    private int compressedLength;
+
+    /**
+     * @param path    The image file.
+     * @param width   The width of the image, in pixels.
+     * @param height  The height of the image, in pixels.
+     * @param threads The number of threads compressing the image.
+     * @param level   The compression level, 0-9, or
+     *                `Deflater.DEFAULT_COMPRESSION`.
+     */
+    public PngImageSink(Path path, int width, int height, int threads, int level) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.rowLength = width * BYTES_PER_PIXEL;
+        this.blockRows = Math.max(1, BLOCK_SIZE / (this.rowLength + 1));
+        this.level = level;
+        this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        this.historySize = (DICTIONARY_SIZE + this.rowLength) / (this.rowLength + 1) + 1;
+        this.history = new byte[(this.historySize + this.blockRows - 1) * this.rowLength];
+        this.zeros = new byte[this.rowLength];
+
+        this.writeFully(ByteBuffer.wrap(SIGNATURE));
+        ByteBuffer header = ByteBuffer.allocate(13);
+        header.putInt(width);
+        header.putInt(height);
+        header.put((byte) 8); // Bit depth
+        header.put((byte) 2); // Color type: RGB
+        header.put((byte) 0); // Compression method: deflate
+        header.put((byte) 0); // Filter method: adaptive
+        header.put((byte) 0); // Interlace method: none
+        this.writeChunk("IHDR", header.array(), header.position());
+
+        // The zlib header: deflate with a 32KB window, and the compression level
+        int flags;
+        if (level == Deflater.DEFAULT_COMPRESSION || level == 6) {
+            flags = 0x9C;
+        } else if (level <= 1) {
+            flags = 0x01;
+        } else if (level <= 5) {
+            flags = 0x5E;
+        } else {
+            flags = 0xDA;
+        }
+        this.append(new byte[] { 0x78, (byte) flags }, 2);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+    }
+
+    /**
+     * Write a chunk: its length, type, data and the CRC of its type and data.
+     */
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        ByteBuffer chunk = ByteBuffer.allocate(12 + length);
+        chunk.putInt(length);
+        chunk.put(typeBytes);
+        chunk.put(data, 0, length);
+        chunk.putInt((int) crc.getValue());
+        chunk.flip();
+        this.writeFully(chunk);
+    }
+
+    /**
+     * Append compressed data to the zlib stream, writing out every IDAT chunk that
+     * fills up.
+     */
+    private void append(byte[] data, int length) throws IOException {
+        for (int done = 0; done < length;) {
+            int n = Math.min(length - done, CHUNK_SIZE - this.compressedLength);
+            System.arraycopy(data, done, this.compressed, this.compressedLength, n);
+            this.compressedLength += n;
+            done += n;
+            if (this.compressedLength == CHUNK_SIZE) {
+                this.writeChunk("IDAT", this.compressed, this.compressedLength);
+                this.compressedLength = 0;
+            }
+        }
+    }
+
+    @Override
+    public void write(byte[] rgbData, int rows) throws IOException {
+        // The full blocks, starting with the rows not compressed yet
+        List<Block> blocks = new ArrayList<>();
+        int first = -this.pendingRows;
+        for (; rows - first >= this.blockRows; first += this.blockRows) {
+            blocks.add(new Block(rgbData, first, this.blockRows));
+        }
+        this.compress(blocks);
+
+        // Keep the last rows for the next blocks
+        int capacity = this.history.length / this.rowLength;
+        int kept = Math.min(this.historyRows, capacity - Math.min(rows, capacity));
+        System.arraycopy(this.history, (this.historyRows - kept) * this.rowLength, this.history, 0,
+                kept * this.rowLength);
+        int added = Math.min(rows, capacity);
+        System.arraycopy(rgbData, (rows - added) * this.rowLength, this.history, kept * this.rowLength,
+                added * this.rowLength);
+        this.historyRows = kept + added;
+        this.pendingRows = rows - first;
+    }
+
+    /**
+     * Compress blocks, and append them to the zlib stream in order.
+     */
+    private void compress(List<Block> blocks) throws IOException {
+        if (this.pool == null) {
+            for (Block block : blocks) {
+                block.call();
+            }
+        } else {
+            try {
+                for (Future<Block> done : this.pool.invokeAll(blocks)) {
+                    done.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while compressing the image", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to compress the image", e.getCause());
+            }
+        }
+
+        for (Block block : blocks) {
+            this.append(block.output, block.outputLength);
+            this.adler = combineAdler32(this.adler, block.adler, block.dataLength);
+        }
+    }
+
+    /**
+     * The compression of a block of rows.
+     */
+    private class Block implements Callable<Block> {
+        private final byte[] rgbData; // The rows written with the block
+        private final int first; // The block's first row in `rgbData`, negative if it starts in `history`
+        private final int rows;
+
+        byte[] output; // The compressed block, at the start
+        int outputLength;
+        long adler; // The Adler-32 checksum of the block's image data
+        int dataLength; // The length of the block's image data
+
+        Block(byte[] rgbData, int first, int rows) {
+            this.rgbData = rgbData;
+            this.first = first;
+            this.rows = rows;
+        }
+
+        /**
+         * @return The array holding a row, `row` relative to the rows written with
+         *         the block (negative for earlier rows).
+         */
+        private byte[] rowData(int row) {
+            if (row >= 0) {
+                return this.rgbData;
+            }
+            return PngImageSink.this.historyRows + row >= 0 ? PngImageSink.this.history : PngImageSink.this.zeros;
+        }
+
+        /**
+         * @return The offset of a row in the array returned by `rowData`.
+         */
+        private int rowOffset(int row) {
+            if (row >= 0) {
+                return row * PngImageSink.this.rowLength;
+            }
+            int index = PngImageSink.this.historyRows + row;
+            return index >= 0 ? index * PngImageSink.this.rowLength : 0;
+        }
+
+        @Override
+        public Block call() {
+            int rowLength = PngImageSink.this.rowLength;
+            // The rows of the dictionary, that are filtered again
+            int dictionaryRows = Math.min(PngImageSink.this.historySize - 1,
+                    this.first + PngImageSink.this.historyRows);
+            int start = this.first - dictionaryRows;
+            byte[] filtered = new byte[(dictionaryRows + this.rows) * (rowLength + 1)];
+            for (int row = start; row < this.first + this.rows; row++) {
+                filterRow(this.rowData(row), this.rowOffset(row), this.rowData(row - 1), this.rowOffset(row - 1),
+                        rowLength, filtered, (row - start) * (rowLength + 1));
+            }
+            int dataStart = dictionaryRows * (rowLength + 1);
+            this.dataLength = this.rows * (rowLength + 1);
+
+            Adler32 checksum = new Adler32();
+            checksum.update(filtered, dataStart, this.dataLength);
+            this.adler = checksum.getValue();
+
+            Deflater deflater = new Deflater(PngImageSink.this.level, true);
+            try {
+                int dictionaryLength = Math.min(DICTIONARY_SIZE, dataStart);
+                if (dictionaryLength > 0) {
+                    deflater.setDictionary(filtered, dataStart - dictionaryLength, dictionaryLength);
+                }
+                deflater.setInput(filtered, dataStart, this.dataLength);
+                this.output = new byte[this.dataLength / 2 + 64];
+                while (true) {
+                    int n = deflater.deflate(this.output, this.outputLength, this.output.length - this.outputLength,
+                            Deflater.SYNC_FLUSH);
+                    this.outputLength += n;
+                    if (this.outputLength < this.output.length) {
+                        break;
+                    }
+                    this.output = Arrays.copyOf(this.output, 2 * this.output.length);
+                }
+            } finally {
+                deflater.end();
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Filter a row with the filter whose output bytes have the smallest sum of
+     * absolute values.
+     *
+     * @param row       The array holding the row.
+     * @param rowOffset The row's offset in `row`.
+     * @param up        The array holding the row before it.
+     * @param upOffset  The offset of the row before it in `up`.
+     * @param length    The length of a row.
+     * @param out       Receives the filter type followed by the filtered row.
+     * @param outOffset The offset in `out` of the filter type.
+     */
+    static void filterRow(byte[] row, int rowOffset, byte[] up, int upOffset, int length, byte[] out,
+            int outOffset) {
+        // The first pixel has no left neighbours, its bytes are filtered as if they
+        // were zeros
+        long none = 0, sub = 0, vertical = 0, average = 0, paeth = 0;
+        for (int i = 0; i < Math.min(BYTES_PER_PIXEL, length); i++) {
+            int x = row[rowOffset + i] & 0xFF;
+            int b = up[upOffset + i] & 0xFF;
+            none += Math.abs((byte) x);
+            sub += Math.abs((byte) x);
+            vertical += Math.abs((byte) (x - b));
+            average += Math.abs((byte) (x - (b >>> 1)));
+            paeth += Math.abs((byte) (x - b));
+        }
+        for (int i = BYTES_PER_PIXEL; i < length; i++) {
+            int x = row[rowOffset + i] & 0xFF;
+            int a = row[rowOffset + i - BYTES_PER_PIXEL] & 0xFF;
+            int b = up[upOffset + i] & 0xFF;
+            int c = up[upOffset + i - BYTES_PER_PIXEL] & 0xFF;
+            none += Math.abs((byte) x);
+            sub += Math.abs((byte) (x - a));
+            vertical += Math.abs((byte) (x - b));
+            average += Math.abs((byte) (x - ((a + b) >>> 1)));
+            paeth += Math.abs((byte) (x - paeth(a, b, c)));
+        }
+        int best = NONE;
+        long bestSum = none;
+        long[] sums = { none, sub, vertical, average, paeth };
+        for (int filter = 1; filter < sums.length; filter++) {
+            if (sums[filter] < bestSum) {
+                best = filter;
+                bestSum = sums[filter];
+            }
+        }
+
+        out[outOffset] = (byte) best;
+        int o = outOffset + 1;
+        switch (best) {
+        case SUB: {
+            System.arraycopy(row, rowOffset, out, o, Math.min(BYTES_PER_PIXEL, length));
+            for (int i = BYTES_PER_PIXEL; i < length; i++) {
+                out[o + i] = (byte) (row[rowOffset + i] - row[rowOffset + i - BYTES_PER_PIXEL]);
+            }
+            break;
+        }
+        case UP: {
+            for (int i = 0; i < length; i++) {
+                out[o + i] = (byte) (row[rowOffset + i] - up[upOffset + i]);
+            }
+            break;
+        }
+        case AVERAGE: {
+            for (int i = 0; i < length; i++) {
+                int a = i >= BYTES_PER_PIXEL ? row[rowOffset + i - BYTES_PER_PIXEL] & 0xFF : 0;
+                out[o + i] = (byte) (row[rowOffset + i] - ((a + (up[upOffset + i] & 0xFF)) >>> 1));
+            }
+            break;
+        }
+        case PAETH: {
+            for (int i = 0; i < length; i++) {
+                int a = i >= BYTES_PER_PIXEL ? row[rowOffset + i - BYTES_PER_PIXEL] & 0xFF : 0;
+                int c = i >= BYTES_PER_PIXEL ? up[upOffset + i - BYTES_PER_PIXEL] & 0xFF : 0;
+                out[o + i] = (byte) (row[rowOffset + i] - paeth(a, up[upOffset + i] & 0xFF, c));
+            }
+            break;
+        }
+        default: {
+            // case NONE:
+            System.arraycopy(row, rowOffset, out, o, length);
+            break;
+        }
+
+        }
+    }
+
+    /**
+     * @return The neighbour (left, above or above left) closest to their linear
+     *         prediction, a + b - c.
+     */
+    private static int paeth(int a, int b, int c) {
+        // The distances of the prediction from a, b and c
+        int pa = Math.abs(b - c);
+        int pb = Math.abs(a - c);
+        int pc = Math.abs(a + b - 2 * c);
+        return pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+    }
+
+    /**
+     * Combine the Adler-32 checksums of two consecutive pieces of data, like
+     * zlib's `adler32_combine`.
+     *
+     * @param adler1  The checksum of the first piece.
+     * @param adler2  The checksum of the second piece.
+     * @param length2 The length of the second piece.
+     * @return The checksum of both pieces.
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= 2 * ADLER_BASE) {
+            sum2 -= 2 * ADLER_BASE;
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return (sum2 << 16) | sum1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            if (this.pendingRows > 0) {
+                // The last rows, which didn't fill a block
+                this.compress(List.of(new Block(this.zeros, -this.pendingRows, this.pendingRows)));
+            }
+            // An empty final block, then the checksum
+            Deflater deflater = new Deflater(this.level, true);
+            try {
+                deflater.finish();
+                byte[] last = new byte[16];
+                int n = deflater.deflate(last);
+                this.append(last, n);
+            } finally {
+                deflater.end();
+            }
+            byte[] checksum = ByteBuffer.allocate(4).putInt((int) this.adler).array();
+            this.append(checksum, checksum.length);
+            if (this.compressedLength > 0) {
+                this.writeChunk("IDAT", this.compressed, this.compressedLength);
+            }
+            this.writeChunk("IEND", new byte[0], 0);
+        } finally {
+            if (this.pool != null) {
+                this.pool.shutdown();
+            }
+            this.channel.close();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package RayTracing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Saves an image in the binary PPM (P6) format, or as bare RGB data, writing
+ * the rows straight from the renderer's buffers to the file.
+ */
+public class PpmImageSink implements ImageSink {
+    private final FileChannel channel;
+    private final int width;
+
+    /**
+     * @param path   The image file.
+     * @param width  The width of the image, in pixels.
+     * @param height The height of the image, in pixels.
+     * @param header If false, the file holds only the RGB data, without the PPM
+     *               header.
+     */
+    public PpmImageSink(Path path, int width, int height, boolean header) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.width = width;
+        if (header) {
+            this.writeFully(ByteBuffer.wrap(String.format("P6\n%d %d\n255\n", width, height)
+                    .getBytes(StandardCharsets.US_ASCII)));
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+    }
+
+    @Override
+    public void write(byte[] rgbData, int rows) throws IOException {
+        this.writeFully(ByteBuffer.wrap(rgbData, 0, rows * this.width * 3));
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
@@ -0,0 +1,12 @@
+package RayTracing;
+
+/**
+ * Independent uniform samples, hashed from the seed, index and coordinate.
+ */
+public class RandomSampler implements Sampler {
+
+    @Override
+    public double sample(long seed, int index, int dimension) {
+        return Sampler.toUnit(Sampler.mix(Sampler.mix(seed, index), dimension));
+    }
+}
@@ -1,6 +1,8 @@
 package RayTracing;
 
+import java.util.Arrays;
 import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * A class representing a ray from a point in the scene.
@@ -12,8 +14,28 @@ public class Ray {
     public final Vector direction; // The ray's direction
 
     public Ray(Vector origin, Vector direction) {
+        this(origin, direction, false);
+    }
+
+    /**
+     * @param normalized If `direction` is known to be of length 1 already, so it
+     *                   isn't normalized again.
+     */
+    private Ray(Vector origin, Vector direction, boolean normalized) {
         this.origin = origin;
-        this.direction = direction.normalize();
+        this.direction = normalized ? direction : direction.normalize();
+    }
+
+    /**
+     * Create a ray whose direction is already normalized, such as the rays of
+     * `CameraRays`, without normalizing it again.
+     * 
+     * @param origin    The origin point of the ray.
+     * @param direction The ray's direction, of length 1.
+     * @return The ray.
+     */
+    public static Ray ofUnitDirection(Vector origin, Vector direction) {
+        return new Ray(origin, direction, true);
     }
 
     /**
@@ -25,16 +47,11 @@ public class Ray {
      *         the point of intersection.
      */
     public Optional<Triple<Surface, Vector, Vector>> closestCollision(Scene scene) {
-        return scene.sceneObjects.stream().map((Surface surface) -> new Pair<>(surface, surface.intersection(this)))
-                .filter((Pair<Surface, Optional<Pair<Vector, Vector>>> intersect) -> intersect.second().isPresent())
-                .map((Pair<Surface, Optional<Pair<Vector, Vector>>> intersect) -> new Triple<>(intersect.first(),
-                        intersect.second().get()))
-                .min((Triple<Surface, Vector, Vector> intersection1,
-                        Triple<Surface, Vector, Vector> intersection2) -> this.origin
-                                .compareDistances(intersection1.second(), intersection2.second()))
-                .map((Triple<Surface, Vector, Vector> intersection) -> (intersection.third().dot(this.direction) > 0)
-                        ? new Triple<>(intersection.first(), intersection.second(), intersection.third().neg())
-                        : intersection);
+        Hit hit = new Hit(this);
+        if (!scene.closestHit(this, 0, hit)) {
+            return Optional.empty();
+        }
+        return Optional.of(new Triple<>(hit.surface(), hit.point(), hit.normal()));
     }
 
     /**
@@ -62,13 +79,43 @@ public class Ray {
      * Traces the ray's path in the scene, calculating the color at its' first
      * collision.
      * 
-     * @param s              The relevant scene
-     * @param recursionDepth current recursion depth (call with 0)
+     * @param s The relevant scene
      * @return A color vector representing the color of the point the ray first
      *         hits.
      */
     public Vector trace(Scene s) {
-        Vector ret = this.trace(s, 0);
+        return this.trace(s, ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * Traces the ray's path in the scene, calculating the color at its' first
+     * collision.
+     * 
+     * @param s    The relevant scene
+     * @param seed Identifies the sampling sequences of the soft shadows along the
+     *             path. The sequences of every bounce are derived from it, so
+     *             tracing is deterministic given the seed.
+     * @return A color vector representing the color of the point the ray first
+     *         hits.
+     */
+    public Vector trace(Scene s, long seed) {
+        return this.trace(s, seed, null);
+    }
+
+    /**
+     * Traces the ray's path in the scene, calculating the color at its' first
+     * collision, which was already found (for example, by tracing the ray in a
+     * packet with `Scene.closestHits`).
+     * 
+     * @param s    The relevant scene
+     * @param seed Identifies the sampling sequences of the soft shadows along the
+     *             path
+     * @param hit  The ray's closest intersection in the scene, or null to find it
+     * @return A color vector representing the color of the point the ray first
+     *         hits.
+     */
+    public Vector trace(Scene s, long seed, Hit hit) {
+        Vector ret = this.trace(s, 0, seed, hit);
         if (ret.x > 1) {
             ret = new Vector(1, ret.y, ret.z);
         } else if (ret.x < 0) {
@@ -87,43 +134,161 @@ public class Ray {
         return ret;
     }
 
+    // Derive the seeds of the secondary rays, distinct from the lights' (indices
+    // 0 and up)
+    static final long TRANSPARENT_PATH = -1;
+    static final long REFLECTED_PATH = -2;
+    private static final long ROULETTE = -3; // Derives the seed of a ray's roulette draw
+
     /**
-     * The recursive calculation of a trace.
+     * The rays waiting to be traced, each with its depth, its seed and the weight
+     * of its color in the traced pixel. It's kept per thread and reused by every
+     * trace, so tracing a path allocates no stack.
+     */
+    private static class PendingRays {
+        Ray[] rays = new Ray[16];
+        int[] depths = new int[16];
+        long[] seeds = new long[16];
+        Vector[] weights = new Vector[16];
+        int size;
+        final Hit hit = new Hit(); // The closest intersection of the ray being traced
+
+        void push(Ray ray, int recursionDepth, long seed, Vector weight) {
+            if (this.size == this.rays.length) {
+                this.rays = Arrays.copyOf(this.rays, 2 * this.size);
+                this.depths = Arrays.copyOf(this.depths, 2 * this.size);
+                this.seeds = Arrays.copyOf(this.seeds, 2 * this.size);
+                this.weights = Arrays.copyOf(this.weights, 2 * this.size);
+            }
+            this.rays[this.size] = ray;
+            this.depths[this.size] = recursionDepth;
+            this.seeds[this.size] = seed;
+            this.weights[this.size] = weight;
+            this.size++;
+        }
+    }
+
+    private static final ThreadLocal<PendingRays> PENDING = ThreadLocal.withInitial(PendingRays::new);
+
+    /**
+     * The calculation of a trace. The color at a collision is linear in the
+     * colors of the transparent and reflected rays, so instead of recursing, the
+     * rays are traced from a stack, each carrying the product of the
+     * transparencies and reflection colors along its path (its weight in the
+     * result). Rays whose weight is no more than `scene.minWeight` are never
+     * traced, and past `scene.rouletteDepth`, rays are dropped at random in
+     * proportion to their weight and the weights of the survivors scaled up to
+     * compensate.
      * 
      * @param scene          The relevant scene
      * @param recursionDepth current recursion depth
+     * @param seed           Identifies the sampling sequences of the soft shadows
+     *                       at this bounce
+     * @param firstHit       The ray's closest intersection, if already found
      * @return A color vector representing the color of the point the ray first
      *         hits.
      */
-    private Vector trace(Scene scene, int recursionDepth) {
-        if (recursionDepth >= scene.recursionDepth) {
-            // Reached maximum recursion depth
-            return scene.bgColor;
-        }
-        Optional<Triple<Surface, Vector, Vector>> collision = this.closestCollision(scene);
-        if (!collision.isPresent()) {
-            // Ray doesn't collide with anything, just veer off into the MAX_DOUBLE void
-            return scene.bgColor;
-        }
-        Surface surface = collision.get().first();
-        Vector point = collision.get().second();
-        Vector normal = collision.get().third();
-
-        // Output = (Mdiff*Ldiff + Mspec*Lspec)(1-transparency) + bgColor*transperency +
-        // Mreflect*(reflectedColor)
-        // Start with the non-reflection values that we know:
-        Vector backgroundColor = scene.bgColor;
-        if (surface.material.transparency > 0) {
-            Ray transparentRay = new Ray(point.add(this.direction.mul(0.00000001)), this.direction);
-            backgroundColor = transparentRay.trace(scene, recursionDepth + 1);
+    private Vector trace(Scene scene, int recursionDepth, long seed, Hit firstHit) {
+        Vector color = new Vector(0, 0, 0);
+        PendingRays pending = PENDING.get();
+        pending.size = 0;
+        pending.push(this, recursionDepth, seed, new Vector(1, 1, 1));
+        while (pending.size > 0) {
+            int top = --pending.size;
+            Ray ray = pending.rays[top];
+            int depth = pending.depths[top];
+            long raySeed = pending.seeds[top];
+            Vector weight = pending.weights[top];
+            Hit hit = firstHit;
+            firstHit = null;
+            if (depth >= scene.recursionDepth) {
+                // Reached maximum recursion depth
+                color = color.add(weight.pointMult(scene.bgColor));
+                continue;
+            }
+            if (hit == null) {
+                hit = pending.hit;
+                hit.reset(ray, Double.POSITIVE_INFINITY);
+                scene.closestHit(ray, 0, hit);
+            }
+            if (!hit.isPresent()) {
+                // Ray doesn't collide with anything, just veer off into the MAX_DOUBLE void
+                color = color.add(weight.pointMult(scene.bgColor));
+                continue;
+            }
+            Material material = hit.material();
+            Vector point = hit.point();
+            Vector normal = hit.normal();
+
+            // Output = (Mdiff*Ldiff + Mspec*Lspec)(1-transparency) + bgColor*transperency +
+            // Mreflect*(reflectedColor)
+            // The shadow rays of every light are cast once, for both the diffuse and the
+            // specular light:
+            Pair<Vector, Vector> light = Light.shade(scene, material, point, normal, raySeed);
+            Vector baseOutput = material.diffuse.pointMult(light.first())
+                    .add(material.specular.pointMult(light.second())).mul(1 - material.transparency);
+            color = color.add(weight.pointMult(baseOutput));
+
+            // The background (transparency) and reflection parts are traced later, if they
+            // matter:
+            if (material.transparency > 0) {
+                Ray transparentRay = new Ray(point.add(ray.direction.mul(0.00000001)), ray.direction);
+                push(pending, scene, transparentRay, depth, raySeed, weight.mul(material.transparency),
+                        TRANSPARENT_PATH);
+            }
+            Ray reflectedRay = new Ray(point.add(normal.mul(0.00000001)), ray.direction.neg().reflect(normal));
+            push(pending, scene, reflectedRay, depth, raySeed, weight.pointMult(material.reflection), REFLECTED_PATH);
         }
+        return color;
+    }
 
-        Vector baseOutput = surface.material.diffuse.pointMult(Light.lightAtPoint(scene, surface, point, normal, false))
-                .add(surface.material.specular.pointMult(Light.lightAtPoint(scene, surface, point, normal, true)))
-                .mul(1 - surface.material.transparency).add(backgroundColor.mul(surface.material.transparency));
+    /**
+     * Schedule a secondary ray for tracing, unless its weight is too small to
+     * matter or it loses the roulette.
+     * 
+     * @param parentDepth The depth of the ray that spawned it
+     * @param parentSeed  The seed of the ray that spawned it
+     * @param weight      The weight of its color in the result
+     * @param path        Derives its seed from its parent's
+     */
+    private static void push(PendingRays pending, Scene scene, Ray ray, int parentDepth, long parentSeed, Vector weight,
+            long path) {
+        long seed = Sampler.mix(parentSeed, path);
+        int recursionDepth = parentDepth + 1;
+        Optional<Vector> tracedWeight = secondaryWeight(scene, weight, recursionDepth, seed);
+        if (tracedWeight.isPresent()) {
+            if (RenderStats.ENABLED) {
+                RenderStats.Counters counters = RenderStats.counters();
+                if (path == TRANSPARENT_PATH) {
+                    counters.transparencyRays++;
+                } else {
+                    counters.reflectionRays++;
+                }
+            }
+            pending.push(ray, recursionDepth, seed, tracedWeight.get());
+        }
+    }
 
-        Ray reflectedRay = new Ray(point.add(normal.mul(0.00000001)), this.direction.neg().reflect(normal));
-        // Add the Mreflect*(reflectedColor) part:
-        return baseOutput.add(surface.material.reflection.pointMult(reflectedRay.trace(scene, recursionDepth + 1)));
+    /**
+     * Decide if a secondary ray should be traced.
+     * 
+     * @param weight         The weight of the ray's color in the result
+     * @param recursionDepth The ray's depth
+     * @param seed           The ray's seed
+     * @return The weight to trace the ray with, or nothing if its weight is too
+     *         small to matter or it lost the roulette.
+     */
+    static Optional<Vector> secondaryWeight(Scene scene, Vector weight, int recursionDepth, long seed) {
+        double maxWeight = Math.max(weight.x, Math.max(weight.y, weight.z));
+        if (maxWeight <= scene.minWeight) {
+            return Optional.empty();
+        }
+        if (recursionDepth > scene.rouletteDepth && maxWeight < 1) {
+            if (Sampler.toUnit(Sampler.mix(seed, ROULETTE)) >= maxWeight) {
+                return Optional.empty();
+            }
+            weight = weight.mul(1 / maxWeight);
+        }
+        return Optional.of(weight);
     }
 }
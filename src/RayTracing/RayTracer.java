@@ -3,13 +3,16 @@ package RayTracing;
 import java.awt.Transparency;
 import java.awt.color.*;
 import java.awt.image.*;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.Deflater;
 
 import javax.imageio.ImageIO;
 
@@ -20,10 +23,67 @@ public class RayTracer {
 
 	public int imageWidth;
 	public int imageHeight;
+	public int threads; // The number of rendering threads
+	public long seed; // The seed of the soft shadows' jitter
+	public boolean adaptiveShadows; // Sample soft shadows adaptively
+	public Sampler sampler; // Jitters the shadow rays
+	public int shadowSamples; // If positive, the shadow rays per light, drawn from `sampler` over the whole light
+	public double minWeight; // Secondary rays weighing this much or less are not traced
+	public int rouletteDepth; // The depth past which secondary rays play Russian roulette
+	public boolean wavefront; // Trace the rays of every tile in batches, one bounce at a time
+	public boolean sortRays; // Group the secondary rays of the wavefront engine by direction
+	public boolean packets; // Trace the camera rays of blocks of pixels as packets
+	public boolean fastParse; // Parse the scene file with the parallel, memory mapped parser
+	public boolean quiet; // Don't print a message for every parsed line
+	public boolean saveBVH; // Save the acceleration structure in compiled scene files
+	public int pngLevel; // The compression level of PNG images
+	public String statsFileName; // Where to write the statistics of the render, as JSON, or null
+	public volatile boolean cancelled; // Stops the render in progress at the next band
+	public String remoteWorkers; // Render on these tile workers, host:port,host:port..., or null to render here
+	public int remoteTimeout; // Seconds to wait for a tile worker before giving its rows to another
+	public GBuffer gBuffer; // Caches the camera rays' hits across renders of the same geometry and camera, or null
+
+	private static final int BAND_TILES_PER_THREAD = 4; // The least number of tiles in a band, per thread
+
+	private CameraRays cameraRays; // The camera rays of the frame being rendered
+	private ThreadLocal<WavefrontTracer> wavefrontTracers; // The wavefront engine's buffers, per rendering thread
+	private Scene prepared; // The scene `cameraRays` and `wavefrontTracers` were set up for
+	private GBuffer primaryHits; // `gBuffer`, if it can be used for the prepared scene
+	private RenderStats stats; // The statistics of the frame being rendered, see `stats()`
 
 	/**
 	 * Runs the ray tracer. Takes scene file, output image file and image size as
-	 * input.
+	 * input, optionally followed by `--threads=N`, `--seed=S`,
+	 * `--sampler=random|halton|sobol`, `--shadow-samples=K`, `--adaptive-shadows`,
+	 * `--min-weight=E`, `--roulette-depth=D`, `--wavefront`, `--sort-rays`, `--no-packets`,
+	 * `--fast-parse`, `--quiet`, `--png-level=0..9`, `--stats=FILE`, `--remote=HOST:PORT,...`,
+	 * `--remote-timeout=SECONDS` and `--gbuffer=FILE`. The scene file may be a text scene file or a compiled scene file.
+	 *
+	 * `--shadow-samples=K` casts K shadow rays per light, from points the
+	 * sampler spreads over the whole light source, instead of one per cell of the
+	 * scene's grid of N by N cells (see `Scene.shadowSamples`). A low discrepancy
+	 * sampler covers the light evenly with far fewer rays than the grid.
+	 *
+	 * `--stats=FILE` writes the statistics of the render to a JSON file (see
+	 * `RenderStats`), and turns on the renderer's counters.
+	 *
+	 * `--gbuffer=FILE` keeps the camera rays' hits in a file (see `GBuffer`), so
+	 * rendering the scene again with only its lights or materials changed skips
+	 * tracing the camera rays. It's ignored, and the file isn't created, for
+	 * scenes whose hits can't be kept (see `keepsHits`).
+	 *
+	 * `--remote` renders the image on tile workers instead (see `TileWorker` and
+	 * `TileCoordinator`), which give the same image.
+	 *
+	 * With `compile` as the first argument, converts a text scene file to a
+	 * compiled scene file (see `SceneFile`) instead: `compile scene.txt
+	 * scene.bin`, optionally with `--no-bvh` to leave the acceleration structure
+	 * out.
+	 *
+	 * With `sequence` as the first argument, renders the frames of an animation
+	 * instead (see `Keyframes` and `SequenceRenderer`): `sequence scene.txt
+	 * keys.txt frame%04d.png [width height]`, optionally with
+	 * `--concurrent-frames=N` and `--rebuild-threshold=X`.
 	 */
 	public static void main(String[] args) {
 
@@ -34,24 +94,171 @@ public class RayTracer {
 			// Default values:
 			tracer.imageWidth = 500;
 			tracer.imageHeight = 500;
+			tracer.threads = Runtime.getRuntime().availableProcessors();
+			tracer.seed = 0;
+			tracer.sampler = new SobolSampler();
+			tracer.minWeight = 0;
+			tracer.rouletteDepth = Integer.MAX_VALUE;
+			tracer.packets = true;
+			tracer.saveBVH = true;
+			tracer.pngLevel = Deflater.DEFAULT_COMPRESSION;
+			tracer.remoteTimeout = 60;
+			int concurrentFrames = 1;
+			double rebuildThreshold = SequenceRenderer.DEFAULT_REBUILD_THRESHOLD;
+			String gBufferFileName = null;
+
+			// Options start with "--", the rest of the arguments are positional:
+			List<String> positional = new ArrayList<>();
+			for (String arg : args) {
+				if (arg.startsWith("--threads=")) {
+					tracer.threads = Integer.parseInt(arg.substring("--threads=".length()));
+				} else if (arg.startsWith("--seed=")) {
+					tracer.seed = Long.parseLong(arg.substring("--seed=".length()));
+				} else if (arg.startsWith("--sampler=")) {
+					try {
+						tracer.sampler = Sampler.forName(arg.substring("--sampler=".length()));
+					} catch (IllegalArgumentException e) {
+						throw new RayTracerException(e.getMessage());
+					}
+				} else if (arg.startsWith("--shadow-samples=")) {
+					tracer.shadowSamples = Integer.parseInt(arg.substring("--shadow-samples=".length()));
+					if (tracer.shadowSamples < 0)
+						throw new RayTracerException("The number of shadow samples can't be negative.");
+				} else if (arg.equals("--adaptive-shadows")) {
+					tracer.adaptiveShadows = true;
+				} else if (arg.startsWith("--min-weight=")) {
+					tracer.minWeight = Double.parseDouble(arg.substring("--min-weight=".length()));
+				} else if (arg.startsWith("--roulette-depth=")) {
+					tracer.rouletteDepth = Integer.parseInt(arg.substring("--roulette-depth=".length()));
+				} else if (arg.equals("--wavefront")) {
+					tracer.wavefront = true;
+				} else if (arg.equals("--sort-rays")) {
+					tracer.sortRays = true;
+				} else if (arg.equals("--no-packets")) {
+					tracer.packets = false;
+				} else if (arg.equals("--fast-parse")) {
+					tracer.fastParse = true;
+				} else if (arg.equals("--quiet")) {
+					tracer.quiet = true;
+				} else if (arg.equals("--no-bvh")) {
+					tracer.saveBVH = false;
+				} else if (arg.startsWith("--png-level=")) {
+					tracer.pngLevel = Integer.parseInt(arg.substring("--png-level=".length()));
+					if (tracer.pngLevel < 0 || tracer.pngLevel > 9)
+						throw new RayTracerException("The PNG compression level must be between 0 and 9.");
+				} else if (arg.startsWith("--stats=")) {
+					tracer.statsFileName = arg.substring("--stats=".length());
+					// Before anything initializes RenderStats, which reads it once:
+					System.setProperty("raytracer.stats", "true");
+				} else if (arg.startsWith("--remote=")) {
+					tracer.remoteWorkers = arg.substring("--remote=".length());
+				} else if (arg.startsWith("--remote-timeout=")) {
+					tracer.remoteTimeout = Integer.parseInt(arg.substring("--remote-timeout=".length()));
+				} else if (arg.startsWith("--gbuffer=")) {
+					gBufferFileName = arg.substring("--gbuffer=".length());
+				} else if (arg.startsWith("--concurrent-frames=")) {
+					concurrentFrames = Integer.parseInt(arg.substring("--concurrent-frames=".length()));
+				} else if (arg.startsWith("--rebuild-threshold=")) {
+					rebuildThreshold = Double.parseDouble(arg.substring("--rebuild-threshold=".length()));
+				} else if (arg.startsWith("--")) {
+					throw new RayTracerException("Unknown option: " + arg);
+				} else {
+					positional.add(arg);
+				}
+			}
 
-			if (args.length < 2)
+			if (!positional.isEmpty() && positional.get(0).equals("compile")) {
+				if (positional.size() < 3)
+					throw new RayTracerException(
+							"Not enough arguments provided. Please specify an input scene file and an output compiled scene file.");
+				tracer.compileScene(positional.get(1), positional.get(2));
+				return;
+			}
+
+			if (!positional.isEmpty() && positional.get(0).equals("sequence")) {
+				if (positional.size() < 4)
+					throw new RayTracerException(
+							"Not enough arguments provided. Please specify a scene file, a keyframes file and an output image file name pattern.");
+				if (positional.size() > 5) {
+					tracer.imageWidth = Integer.parseInt(positional.get(4));
+					tracer.imageHeight = Integer.parseInt(positional.get(5));
+				}
+				if (tracer.imageWidth < 1 || tracer.imageHeight < 1)
+					throw new RayTracerException("The image's size must be positive.");
+				if (tracer.threads < 1 || concurrentFrames < 1)
+					throw new RayTracerException("The number of threads and of concurrent frames must be positive.");
+				new SequenceRenderer(tracer, concurrentFrames, rebuildThreshold).render(positional.get(1),
+						positional.get(2), positional.get(3));
+				return;
+			}
+
+			if (positional.size() < 2)
 				throw new RayTracerException(
 						"Not enough arguments provided. Please specify an input scene file and an output image file for rendering.");
+			if (tracer.threads < 1)
+				throw new RayTracerException("The number of threads must be positive.");
+
+			String sceneFileName = positional.get(0);
+			String outputFileName = positional.get(1);
 
-			String sceneFileName = args[0];
-			String outputFileName = args[1];
+			if (positional.size() > 3) {
+				tracer.imageWidth = Integer.parseInt(positional.get(2));
+				tracer.imageHeight = Integer.parseInt(positional.get(3));
+			}
+			if (tracer.imageWidth < 1 || tracer.imageHeight < 1)
+				throw new RayTracerException("The image's size must be positive.");
 
-			if (args.length > 3) {
-				tracer.imageWidth = Integer.parseInt(args[2]);
-				tracer.imageHeight = Integer.parseInt(args[3]);
+			if (tracer.remoteWorkers != null) {
+				// The workers parse the scene themselves
+				new TileCoordinator(tracer).render(sceneFileName, outputFileName);
+				return;
 			}
 
+			tracer.stats().start();
+
 			// Parse scene file:
-			Scene scene = tracer.parseScene(sceneFileName);
+			Scene scene;
+			RenderStats.Phase parsePhase = tracer.stats().phase("parse");
+			try {
+				scene = tracer.parseScene(sceneFileName);
+			} finally {
+				parsePhase.close();
+			}
+			scene.adaptiveShadows = tracer.adaptiveShadows;
+			scene.sampler = tracer.sampler;
+			scene.shadowSamples = tracer.shadowSamples;
+			scene.minWeight = tracer.minWeight;
+			scene.rouletteDepth = tracer.rouletteDepth;
+			RenderStats.Phase buildPhase = tracer.stats().phase("build accel");
+			try {
+				scene.freeze();
+			} finally {
+				buildPhase.close();
+			}
+
+			if (gBufferFileName != null && !keepsHits(scene)) {
+				System.out.println("The camera rays' hits of this scene can't be kept, not using " + gBufferFileName);
+			} else if (gBufferFileName != null) {
+				tracer.gBuffer = GBuffer.open(Paths.get(gBufferFileName),
+						GBuffer.key(scene, tracer.imageWidth, tracer.imageHeight), tracer.imageWidth, tracer.imageHeight);
+				System.out.println((tracer.gBuffer.isComplete() ? "Reusing the camera rays' hits in " : "Saving the camera rays' hits to ")
+						+ gBufferFileName);
+			}
 
 			// Render scene:
-			tracer.renderScene(scene, outputFileName);
+			try {
+				tracer.renderScene(scene, outputFileName);
+			} finally {
+				if (tracer.gBuffer != null) {
+					tracer.gBuffer.close();
+				}
+			}
+
+			if (tracer.statsFileName != null) {
+				tracer.stats().end();
+				tracer.stats().write(Paths.get(tracer.statsFileName), tracer, sceneFileName, outputFileName);
+				System.out.println("Saved statistics " + tracer.statsFileName);
+			}
 
 			// } catch (IOException e) {
 			// System.out.println(e.getMessage());
@@ -64,175 +271,326 @@ public class RayTracer {
 	}
 
 	/**
-	 * Parses the scene file and creates the scene. Change this function so it
-	 * generates the required objects.
+	 * Parses the scene file and creates the scene, line by line or, with
+	 * `--fast-parse`, with the parallel parser. Compiled scene files are loaded
+	 * instead.
 	 */
 	public Scene parseScene(String sceneFileName) throws IOException, RayTracerException {
-		FileReader fr = new FileReader(sceneFileName);
-
-		BufferedReader r = new BufferedReader(fr);
-		String line = null;
-		int lineNum = 0;
-		System.out.println("Started parsing scene file " + sceneFileName);
-
-		Camera cam = null;
-		Scene scene = null;
-		List<Material> materials = new ArrayList<>();
-		while ((line = r.readLine()) != null) {
-			line = line.trim();
-			++lineNum;
-
-			if (line.isEmpty() || (line.charAt(0) == '#')) { // This line in the scene file is a comment
-				continue;
-			} else {
-				String code = line.substring(0, 3).toLowerCase();
-				// Split according to white space characters:
-				String[] params = line.substring(3).trim().toLowerCase().split("\\s+");
-
-				if (code.equals("cam")) {
-					/*
-					* Camera input format: 0:pos(x) 1:pos(y) 2:pos(z)
-					*						3:lookat(x) 4:lookat(y) 5:lookat(z)
-					*						6:up(x) 7:up(y) 8:up(z)
-					*						9:screenDistance 10:screenWidth
-					*						11:fisheye(optional) 12:fisheyeParam(optional)
-					*/
-					if (params.length >= 13) {
-						cam = new Camera(new Vector(Double.parseDouble(params[0]), Double.parseDouble(params[1]), Double.parseDouble(params[2])),
-									new Vector(Double.parseDouble(params[3]), Double.parseDouble(params[4]), Double.parseDouble(params[5])),
-									new Vector(Double.parseDouble(params[6]),Double.parseDouble(params[7]), Double.parseDouble(params[8])),
-									Double.parseDouble(params[9]), Double.parseDouble(params[10]), (double)this.imageHeight/this.imageWidth,
-									Boolean.parseBoolean(params[11]),
-									Double.parseDouble(params[12]));
-					} else if (params.length == 12) {
-						cam = new Camera(new Vector(Double.parseDouble(params[0]), Double.parseDouble(params[1]), Double.parseDouble(params[2])),
-									new Vector(Double.parseDouble(params[3]), Double.parseDouble(params[4]), Double.parseDouble(params[5])),
-									new Vector(Double.parseDouble(params[6]),Double.parseDouble(params[7]), Double.parseDouble(params[8])),
-									Double.parseDouble(params[9]), Double.parseDouble(params[10]), (double)this.imageHeight/this.imageWidth,
-									Boolean.parseBoolean(params[11]));
-					} else {
-						cam = new Camera(new Vector(Double.parseDouble(params[0]), Double.parseDouble(params[1]), Double.parseDouble(params[2])),
-									new Vector(Double.parseDouble(params[3]), Double.parseDouble(params[4]), Double.parseDouble(params[5])),
-									new Vector(Double.parseDouble(params[6]),Double.parseDouble(params[7]), Double.parseDouble(params[8])),
-									Double.parseDouble(params[9]), Double.parseDouble(params[10]), (double)this.imageHeight/this.imageWidth);
-					}
-					
-					System.out.println(String.format("Parsed camera parameters (line %d)", lineNum));
-				} else if (code.equals("set")) {
-					/*
-					* Scene input format: 0:bgColor(r) 1:bgColor(g) 2:bgColor(b) 3:shadowRays 4:recursionDepth
-					*/
-					scene = new Scene(new Vector(Double.parseDouble(params[0]), Double.parseDouble(params[1]),Double.parseDouble(params[2])),
-									Integer.parseInt(params[3]), Integer.parseInt(params[4]),
-									cam,
-									new ArrayList<Surface>(), new ArrayList<Light>());
-					System.out.println(String.format("Parsed general settings (line %d)", lineNum));
-				} else if (code.equals("mtl")) {
-					/*
-					* Material input format: 0:diffuse(r) 1:diffuse(g) 2:diffuse(b) 
-					*						3:specular(r) 4:specular(g) 5:specular(b)
-					*						6:reflection(r) 7:reflection(g) 8:reflection(b)
-					*						9:phong 10:transparency
-					*/
-						materials.add(new Material(new Vector(Double.parseDouble(params[0]), Double.parseDouble(params[1]), Double.parseDouble(params[2])),
-												new Vector(Double.parseDouble(params[3]), Double.parseDouble(params[4]), Double.parseDouble(params[5])),
-												Double.parseDouble(params[9]),
-												new Vector(Double.parseDouble(params[6]), Double.parseDouble(params[7]), Double.parseDouble(params[8])),
-												Double.parseDouble(params[10])));
-
-					System.out.println(String.format("Parsed material (line %d)", lineNum));
-				} else if (code.equals("sph")) {
-					/*
-					* Sphere input format: 0:pos(x) 1:pos(y) 2:pos(z) 3:radius 4:mat_index
-					*/
-					scene.addObject(new Sphere(new Vector(Double.parseDouble(params[0]), Double.parseDouble(params[1]), Double.parseDouble(params[2])),
-									Double.parseDouble(params[3]),
-									materials.get(Integer.parseInt(params[4])-1)));
-					System.out.println(String.format("Parsed sphere (line %d)", lineNum));
-				} else if (code.equals("pln")) {
-					/*
-					* Plane input format: 0:pos(x) 1:pos(y) 2:pos(z) 3:offset 4:mat_index
-					*/
-					scene.addObject(new Plane(new Vector(Double.parseDouble(params[0]), Double.parseDouble(params[1]), Double.parseDouble(params[2])),
-									Double.parseDouble(params[3]),
-									materials.get(Integer.parseInt(params[4])-1)));
-					System.out.println(String.format("Parsed plane (line %d)", lineNum));
-				} else if (code.equals("lgt")) {
-					/*
-					* Light input format: 0:pos(x) 1:pos(y) 2:pos(z)
-					*						3:r 4:g 5:b
-					*						6:specular 7:shadow 8: radius
-					*/
-					scene.addLight(new Light(new Vector(Double.parseDouble(params[0]), Double.parseDouble(params[1]), Double.parseDouble(params[2])),
-									new Vector(Double.parseDouble(params[3]), Double.parseDouble(params[4]), Double.parseDouble(params[5])),
-									Double.parseDouble(params[6]),
-									Double.parseDouble(params[7]),
-									Double.parseDouble(params[8])));
-					System.out.println(String.format("Parsed light (line %d)", lineNum));
-				} else if (code.equals("box")){
-					/*
-					* Box input format: 0:pos(x) 1:pos(y) 2:pos(z) 3:length 4:mat_index
-					*/
-					scene.addObject(new Box(new Vector(Double.parseDouble(params[0]), Double.parseDouble(params[1]), Double.parseDouble(params[2])),
-											Double.parseDouble(params[3]),
-											materials.get(Integer.parseInt(params[4])-1)));
-					System.out.println(String.format("Parsed box (line %d)", lineNum));
-				}else {
-					System.out.println(String.format("ERROR: Did not recognize object: %s (line %d)", code, lineNum));
-				}
-			}
+		if (SceneFile.isCompiled(sceneFileName)) {
+			return SceneFile.read(sceneFileName, (double)this.imageHeight/this.imageWidth);
 		}
+		SceneParser parser = new SceneParser((double)this.imageHeight/this.imageWidth, this.quiet);
+		if (this.fastParse) {
+			return parser.parseFast(sceneFileName, this.threads);
+		}
+		return parser.parse(sceneFileName);
+	}
+
 
-		// It is recommended that you check here that the scene is valid,
-		// for example camera settings and all necessary materials were defined.
-		r.close();
-		System.out.println("Finished parsing scene file " + sceneFileName);
-		return scene;
+	/**
+	 * Converts a scene file to a compiled scene file.
+	 */
+	public void compileScene(String sceneFileName, String outputFileName) throws IOException, RayTracerException {
+		long startTime = System.currentTimeMillis();
+		Scene scene = this.parseScene(sceneFileName);
+		scene.freeze();
+		SceneFile.write(scene, outputFileName, this.saveBVH);
+		long compileTime = System.currentTimeMillis() - startTime;
+		System.out.println("Compiled scene file " + outputFileName + " in " + compileTime + " milliseconds.");
 	}
 
 	/**
 	 * Renders the loaded scene and saves it to the specified file location.
+	 * Setting `cancelled` from another thread stops the render between bands,
+	 * with a `CancellationException`, leaving a partial image behind.
 	 */
-	public void renderScene(Scene s, String outputFileName) {
+	public void renderScene(Scene s, String outputFileName) throws IOException {
 		long startTime = System.currentTimeMillis();
 
-		// Create a byte array to hold the pixel data:
-		byte[] rgbData = new byte[this.imageWidth * this.imageHeight * 3];
-
-		// Put your ray tracing code here!
+		// The image is rendered a band of rows at a time, into one of two buffers, and
+		// every band is written out while the next one is rendered, so only two bands
+		// of the image are in memory at once. Bands are high enough to give every
+		// thread a few tiles.
 		//
-		// Write pixel color values in RGB format to rgbData:
-		// Pixel [x, y] red component is in rgbData[(y * this.image\Width + x) * 3]
-		// green component is in rgbData[(y * this.imageWidth + x) * 3 + 1]
-		// blue component is in rgbData[(y * this.imageWidth + x) * 3 + 2]
+		// Write pixel color values in RGB format to the band's rgbData:
+		// Pixel [x, y] red component is in rgbData[((y - firstRow) * this.imageWidth + x) * 3]
+		// green component is in rgbData[((y - firstRow) * this.imageWidth + x) * 3 + 1]
+		// blue component is in rgbData[((y - firstRow) * this.imageWidth + x) * 3 + 2]
 		//
 		// Each of the red, green and blue components should be a byte, i.e. 0-255
-		for (int row = 0; row < this.imageHeight; row++) {
-			for (int column = 0; column < this.imageWidth; column++) {
-
-				double xRatio = ((double)column)/this.imageWidth - 0.5;
-				double yRatio = ((double)row)/this.imageHeight - 0.5;
-				Vector pixelColor = new Vector(0, 0, 0);
-				Optional<Ray> pixelRay = s.camera.pixelRay(xRatio, yRatio);
-				if (pixelRay.isPresent()) {
-					pixelColor = pixelRay.get().trace(s);
+		int tilesPerRow = (this.imageWidth + Tile.DEFAULT_SIZE - 1)/Tile.DEFAULT_SIZE;
+		int bandTileRows = Math.max(1, (BAND_TILES_PER_THREAD*this.threads + tilesPerRow - 1)/tilesPerRow);
+		int bandHeight = Math.min(this.imageHeight, bandTileRows*Tile.DEFAULT_SIZE);
+		byte[][] buffers = { new byte[this.imageWidth * bandHeight * 3], new byte[this.imageWidth * bandHeight * 3] };
+
+		this.prepare(s);
+		ForkJoinPool pool = this.threads > 1 ? new ForkJoinPool(this.threads) : null;
+		RenderStats.Phase renderPhase = this.stats().phase("render");
+		ImageSink sink = ImageSink.open(outputFileName, this.imageWidth, this.imageHeight, this.threads, this.pngLevel);
+		try {
+			byte[] rendered = null; // The last band rendered, not written yet
+			int renderedRows = 0;
+			for (int firstRow = 0; firstRow < this.imageHeight; firstRow += bandHeight) {
+				if (this.cancelled) {
+					throw new CancellationException("The render was cancelled.");
+				}
+				byte[] rgbData = rendered == buffers[0] ? buffers[1] : buffers[0];
+				List<Tile> tiles = Tile.band(this.imageWidth, firstRow, Math.min(bandHeight, this.imageHeight - firstRow), Tile.DEFAULT_SIZE);
+				ForkJoinTask<Void> band = pool == null ? null : pool.submit(new RenderTask(this, s, tiles, rgbData, firstRow));
+				if (rendered != null) {
+					this.encode(sink, rendered, renderedRows);
 				}
-				rgbData[(row*this.imageWidth + column)*3] = (byte)(255*pixelColor.x);
-				rgbData[(row*this.imageWidth + column)*3 + 1] = (byte)(255*pixelColor.y);
-				rgbData[(row*this.imageWidth + column)*3 + 2] = (byte)(255*pixelColor.z);
-				// System.out.println("Put value (" + pixelColor.x + ", " + pixelColor.y + ", " + pixelColor.z + ") in (" + x + "," + y + ")");
+				if (band == null) {
+					for (Tile tile : tiles) {
+						this.renderTile(s, tile, rgbData, firstRow);
+					}
+				} else {
+					band.join();
+				}
+				rendered = rgbData;
+				renderedRows = Math.min(bandHeight, this.imageHeight - firstRow);
+			}
+			if (rendered != null) {
+				this.encode(sink, rendered, renderedRows);
+			}
+		} finally {
+			if (pool != null) {
+				pool.shutdown();
 			}
+			// Closing the sink finishes the image, even a partial one
+			RenderStats.Phase encodePhase = this.stats().phase("encode");
+			try {
+				sink.close();
+			} finally {
+				encodePhase.close();
+				renderPhase.close();
+			}
+		}
+		if (this.primaryHits != null && !this.primaryHits.isComplete()) {
+			this.primaryHits.markComplete();
 		}
 		long endTime = System.currentTimeMillis();
 		Long renderTime = endTime - startTime;
 
 		System.out.println("Finished rendering scene in " + renderTime.toString() + " milliseconds.");
+		System.out.println("Saved file " + outputFileName);
 
-		// This is already implemented, and should work without adding any code.
-		saveImage(this.imageWidth, rgbData, outputFileName);
+	}
 
-		System.out.println("Saved file " + outputFileName);
+	/**
+	 * @return If the camera rays' hits of a frozen scene can be kept in a
+	 *         `GBuffer`: only for scenes compiled into primitive arrays, and
+	 *         cameras that trace anything.
+	 */
+	static boolean keepsHits(Scene s) {
+		return s.compiled != null && s.compiled.isFlat() && s.recursionDepth > 0;
+	}
 
+	/**
+	 * Sets up the camera rays and the wavefront engine's buffers for rendering a
+	 * scene.
+	 */
+	private void prepare(Scene s) {
+		this.cameraRays = new CameraRays(s.camera, this.imageWidth, this.imageHeight);
+		this.primaryHits = this.gBuffer != null && keepsHits(s) ? this.gBuffer : null;
+		GBuffer primaryHits = this.primaryHits;
+		this.wavefrontTracers = ThreadLocal.withInitial(() -> new WavefrontTracer(s, this.cameraRays, this.sortRays, this.packets, primaryHits));
+		this.prepared = s;
+	}
+
+	/**
+	 * Renders a band of rows of the image, for rendering an image piece by piece
+	 * (see `TileWorker`). The rows are split into tiles just as `renderScene`
+	 * splits them, so they come out the same.
+	 * 
+	 * @param s        The rendered scene.
+	 * @param firstRow The band's first row, a multiple of the tile size.
+	 * @param rows     The number of rows in the band.
+	 * @param rgbData  Receives the RGB data of the band's rows.
+	 * @param pool     Renders the band's tiles, or null to render them on the
+	 *                 calling thread.
+	 */
+	public void renderRows(Scene s, int firstRow, int rows, byte[] rgbData, ForkJoinPool pool) {
+		if (this.prepared != s) {
+			this.prepare(s);
+		}
+		List<Tile> tiles = Tile.band(this.imageWidth, firstRow, rows, Tile.DEFAULT_SIZE);
+		if (pool == null) {
+			for (Tile tile : tiles) {
+				this.renderTile(s, tile, rgbData, firstRow);
+			}
+		} else {
+			pool.invoke(new RenderTask(this, s, tiles, rgbData, firstRow));
+		}
+	}
+
+	/**
+	 * Gets the statistics of the frame, created on first use, so that `--stats`
+	 * can turn the counters on before `RenderStats` is initialized.
+	 */
+	private RenderStats stats() {
+		if (this.stats == null) {
+			this.stats = new RenderStats();
+		}
+		return this.stats;
+	}
+
+	/**
+	 * Writes a band of rendered rows to the image, timed as the encode phase.
+	 */
+	private void encode(ImageSink sink, byte[] rgbData, int rows) throws IOException {
+		RenderStats.Phase encodePhase = this.stats().phase("encode");
+		try {
+			sink.write(rgbData, rows);
+		} finally {
+			encodePhase.close();
+		}
+	}
+
+	/**
+	 * Renders the pixels of a single tile into the image, timing it if the
+	 * statistics are enabled.
+	 * 
+	 * @param s        The rendered scene.
+	 * @param tile     The rendered part of the image.
+	 * @param rgbData  The RGB data of the image's rows from `firstRow` on.
+	 * @param firstRow The first row in `rgbData`.
+	 */
+	public void renderTile(Scene s, Tile tile, byte[] rgbData, int firstRow) {
+		if (!RenderStats.ENABLED) {
+			this.traceTile(s, tile, rgbData, firstRow);
+			return;
+		}
+		long start = System.nanoTime();
+		this.traceTile(s, tile, rgbData, firstRow);
+		RenderStats.counters().tile(tile, System.nanoTime() - start);
+	}
+
+	private void traceTile(Scene s, Tile tile, byte[] rgbData, int firstRow) {
+		if (this.wavefront) {
+			this.wavefrontTracers.get().renderTile(tile, this.imageWidth, this.imageHeight, this.seed, rgbData, firstRow);
+			return;
+		}
+		int firstPixel = firstRow*this.imageWidth;
+		GBuffer primaryHits = this.primaryHits;
+		boolean reuseHits = primaryHits != null && primaryHits.isComplete();
+		boolean findHits = this.packets || primaryHits != null; // Find the hits here, rather than in `Ray.trace`
+		// The camera rays of every block of pixels are generated (and, unless disabled,
+		// intersected as a packet) together:
+		int capacity = Tile.PACKET_SIZE*Tile.PACKET_SIZE;
+		double[] dx = new double[capacity], dy = new double[capacity], dz = new double[capacity];
+		int[] pixels = new int[capacity];
+		Ray[] rays = new Ray[capacity];
+		Hit[] hits = new Hit[capacity];
+		for (int i = 0; i < hits.length; i++) {
+			hits[i] = new Hit();
+		}
+		for (int y = tile.y; y < tile.y + tile.height; y += Tile.PACKET_SIZE) {
+			for (int x = tile.x; x < tile.x + tile.width; x += Tile.PACKET_SIZE) {
+				int width = Math.min(Tile.PACKET_SIZE, tile.x + tile.width - x);
+				int height = Math.min(Tile.PACKET_SIZE, tile.y + tile.height - y);
+				if (s.camera.fisheye) {
+					// Pixels outside the lens's image get no ray, and stay black
+					for (int row = y; row < y + height; row++) {
+						for (int column = x; column < x + width; column++) {
+							this.setPixel(rgbData, row*this.imageWidth + column - firstPixel, new Vector(0, 0, 0));
+						}
+					}
+				}
+				int count = this.cameraRays.generate(x, y, width, height, dx, dy, dz, pixels);
+				if (RenderStats.ENABLED) {
+					RenderStats.counters().primaryRays += count;
+				}
+				for (int i = 0; i < count; i++) {
+					rays[i] = Ray.ofUnitDirection(this.cameraRays.origin(), new Vector(dx[i], dy[i], dz[i]));
+					if (reuseHits) {
+						primaryHits.restore(pixels[i], rays[i], s.compiled, hits[i]);
+					} else {
+						hits[i].reset(rays[i], Double.POSITIVE_INFINITY);
+					}
+				}
+				if (!reuseHits) {
+					if (this.packets) {
+						s.closestHits(rays, count, 0, hits);
+					} else if (primaryHits != null) {
+						for (int i = 0; i < count; i++) {
+							s.closestHit(rays[i], 0, hits[i]);
+						}
+					}
+					if (primaryHits != null) {
+						for (int i = 0; i < count; i++) {
+							primaryHits.record(pixels[i], hits[i]);
+						}
+					}
+				}
+				for (int i = 0; i < count; i++) {
+					Hit hit = findHits ? hits[i] : null;
+					this.setPixel(rgbData, pixels[i] - firstPixel, rays[i].trace(s, pixelSeed(this.seed, pixels[i]), hit));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the color of a pixel into the image.
+	 * 
+	 * @param rgbData The RGB data of a band of the image.
+	 * @param pixel   The index of the pixel in the band.
+	 * @param color   The pixel's color, in [0, 1].
+	 */
+	private void setPixel(byte[] rgbData, int pixel, Vector color) {
+		rgbData[pixel*3] = (byte)(255*color.x);
+		rgbData[pixel*3 + 1] = (byte)(255*color.y);
+		rgbData[pixel*3 + 2] = (byte)(255*color.z);
+	}
+
+
+	/**
+	 * Derives the seed of a pixel's sampling sequences, so that every pixel gets
+	 * the same jitter no matter which thread renders it.
+	 * 
+	 * @param seed  The seed of the whole render.
+	 * @param pixel The index of the pixel in the image.
+	 * @return A well mixed (SplitMix64) seed for the pixel.
+	 */
+	public static long pixelSeed(long seed, long pixel) {
+		return Sampler.mix(seed, pixel);
+	}
+
+	/**
+	 * Renders a run of tiles, splitting it in halves so that idle threads of the
+	 * (work-stealing) pool can take over the second half.
+	 */
+	private static class RenderTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final RayTracer tracer;
+		private final Scene scene;
+		private final List<Tile> tiles;
+		private final byte[] rgbData;
+		private final int firstRow; // The first row in `rgbData`
+
+		RenderTask(RayTracer tracer, Scene scene, List<Tile> tiles, byte[] rgbData, int firstRow) {
+			this.tracer = tracer;
+			this.scene = scene;
+			this.tiles = tiles;
+			this.rgbData = rgbData;
+			this.firstRow = firstRow;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.tiles.size() <= 1) {
+				// A single tile, or none (an empty band)
+				for (Tile tile : this.tiles) {
+					this.tracer.renderTile(this.scene, tile, this.rgbData, this.firstRow);
+				}
+				return;
+			}
+			int middle = this.tiles.size() / 2;
+			invokeAll(new RenderTask(this.tracer, this.scene, this.tiles.subList(0, middle), this.rgbData, this.firstRow),
+					new RenderTask(this.tracer, this.scene, this.tiles.subList(middle, this.tiles.size()), this.rgbData, this.firstRow));
+		}
 	}
 
 	// FUNCTIONS TO SAVE IMAGES IN PNG FORMAT
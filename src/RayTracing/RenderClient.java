@@ -0,0 +1,181 @@
+package RayTracing;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A client of a `RenderServer` on this machine.
+ *
+ * Run it as `RenderClient [--port=N] COMMAND`, where the command is one of:
+ *
+ * - `submit scene output [width height] [--wait] [--key=value...]`: submits a
+ * job, with any other job parameters as options (`--priority=2`,
+ * `--camera="0 2 -8 0 0 0 0 1 0 1.2 1.5"`, `--wavefront` and so on), and with
+ * `--wait`, waits for it to finish.
+ * - `status ID [--wait]`, `cancel ID`, `jobs`, `scenes` and `shutdown`.
+ *
+ * Prints the server's answer, a JSON status.
+ */
+public class RenderClient {
+    private static final Pattern ID = Pattern.compile("\"id\": (\\d+)");
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private final String base; // The server's URL
+
+    /**
+     * @param port The server's port, on the loopback interface.
+     */
+    public RenderClient(int port) {
+        this.base = "http://127.0.0.1:" + port;
+    }
+
+    /**
+     * Submit a render job.
+     *
+     * @param params The job's parameters (see `RenderServer`).
+     * @return The job's id.
+     */
+    public long submit(Map<String, String> params) throws IOException, RayTracer.RayTracerException {
+        StringBuilder form = new StringBuilder();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            if (form.length() > 0) {
+                form.append('&');
+            }
+            form.append(URLEncoder.encode(param.getKey(), StandardCharsets.UTF_8)).append('=')
+                    .append(URLEncoder.encode(param.getValue(), StandardCharsets.UTF_8));
+        }
+        String status = this.send(HttpRequest.newBuilder(URI.create(this.base + "/jobs"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form.toString())));
+        Matcher matcher = ID.matcher(status);
+        if (!matcher.find())
+            throw new RayTracer.RayTracerException("Unexpected answer: " + status);
+        return Long.parseLong(matcher.group(1));
+    }
+
+    /**
+     * Get a job's status.
+     *
+     * @param id   The job's id.
+     * @param wait If true, wait for the job to finish first.
+     * @return The job's status, as JSON.
+     */
+    public String status(long id, boolean wait) throws IOException, RayTracer.RayTracerException {
+        return this.send(HttpRequest.newBuilder(URI.create(this.base + "/jobs/" + id + (wait ? "?wait=true" : "")))
+                .GET());
+    }
+
+    /**
+     * Cancel a job, and wait for it to stop.
+     *
+     * @param id The job's id.
+     * @return The job's status, as JSON.
+     */
+    public String cancel(long id) throws IOException, RayTracer.RayTracerException {
+        return this.send(HttpRequest.newBuilder(URI.create(this.base + "/jobs/" + id)).DELETE());
+    }
+
+    /**
+     * @return The statuses of the server's jobs, as JSON.
+     */
+    public String jobs() throws IOException, RayTracer.RayTracerException {
+        return this.send(HttpRequest.newBuilder(URI.create(this.base + "/jobs")).GET());
+    }
+
+    /**
+     * @return The state of the server's scene cache, as JSON.
+     */
+    public String scenes() throws IOException, RayTracer.RayTracerException {
+        return this.send(HttpRequest.newBuilder(URI.create(this.base + "/scenes")).GET());
+    }
+
+    /**
+     * Stop the server.
+     *
+     * @return The server's answer, as JSON.
+     */
+    public String shutdown() throws IOException, RayTracer.RayTracerException {
+        return this.send(HttpRequest.newBuilder(URI.create(this.base + "/shutdown"))
+                .POST(HttpRequest.BodyPublishers.noBody()));
+    }
+
+    private String send(HttpRequest.Builder request) throws IOException, RayTracer.RayTracerException {
+        HttpResponse<String> response;
+        try {
+            response = this.client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+        if (response.statusCode() != 200)
+            throw new RayTracer.RayTracerException(response.body().trim());
+        return response.body().trim();
+    }
+
+    public static void main(String[] args) {
+        try {
+            int port = RenderServer.DEFAULT_PORT;
+            boolean wait = false;
+            Map<String, String> params = new LinkedHashMap<>();
+            List<String> positional = new ArrayList<>();
+            for (String arg : args) {
+                if (arg.startsWith("--port=")) {
+                    port = Integer.parseInt(arg.substring("--port=".length()));
+                } else if (arg.equals("--wait")) {
+                    wait = true;
+                } else if (arg.startsWith("--")) {
+                    // A job parameter, a flag if it has no value
+                    int equals = arg.indexOf('=');
+                    params.put(equals < 0 ? arg.substring(2) : arg.substring(2, equals),
+                            equals < 0 ? "true" : arg.substring(equals + 1));
+                } else {
+                    positional.add(arg);
+                }
+            }
+            if (positional.isEmpty())
+                throw new RayTracer.RayTracerException(
+                        "Please specify a command: submit, status, cancel, jobs, scenes or shutdown.");
+
+            RenderClient client = new RenderClient(port);
+            String command = positional.get(0);
+            if (command.equals("submit")) {
+                if (positional.size() < 3)
+                    throw new RayTracer.RayTracerException("Please specify a scene file and an output image file.");
+                params.put("scene", positional.get(1));
+                params.put("output", positional.get(2));
+                if (positional.size() > 4) {
+                    params.put("width", positional.get(3));
+                    params.put("height", positional.get(4));
+                }
+                long id = client.submit(params);
+                System.out.println(client.status(id, wait));
+            } else if (command.equals("status") || command.equals("cancel")) {
+                if (positional.size() < 2)
+                    throw new RayTracer.RayTracerException("Please specify a job id.");
+                long id = Long.parseLong(positional.get(1));
+                System.out.println(command.equals("status") ? client.status(id, wait) : client.cancel(id));
+            } else if (command.equals("jobs")) {
+                System.out.println(client.jobs());
+            } else if (command.equals("scenes")) {
+                System.out.println(client.scenes());
+            } else if (command.equals("shutdown")) {
+                System.out.println(client.shutdown());
+            } else {
+                throw new RayTracer.RayTracerException("Unknown command: " + command);
+            }
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package RayTracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Flight Recorder event for a phase of rendering a frame: parsing the scene,
+ * building its acceleration structure, rendering and encoding the image (see
+ * `RenderStats.phase`). Recorded only while a recording with the event enabled
+ * is running, for example with `-XX:StartFlightRecording`.
+ */
+@Name("RayTracing.RenderPhase")
+@Label("Render Phase")
+@Category("Ray Tracer")
+@Description("A phase of rendering a frame")
+public class RenderPhaseEvent extends Event {
+    @Label("Phase")
+    public String phase;
+
+    /**
+     * @param phase The phase's name.
+     */
+    public RenderPhaseEvent(String phase) {
+        this.phase = phase;
+    }
+}
@@ -0,0 +1,549 @@
+package RayTracing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A long running render server, which keeps the JVM warm and the parsed scenes
+ * cached (see `SceneCache`) between renders. It listens on the loopback
+ * interface only, over HTTP:
+ *
+ * - `POST /jobs` submits a render job, with its parameters form encoded (in
+ * the body or the query): `scene` and `output` (files on the server's
+ * machine), and optionally `width` and `height`, `priority` (higher first,
+ * default 0), `camera` (the parameters of a scene file's `cam` line, replacing
+ * the scene's camera), `seed`, `sampler`, `shadow-samples`,
+ * `adaptive-shadows`, `min-weight`, `roulette-depth`, `wavefront` and
+ * `png-level`, as the command line's options, and `gbuffer=true` to keep the
+ * camera rays' hits in memory for later jobs of the same geometry and camera
+ * (see `GBuffer`), which only change lights or materials. Answers with the job's status, including its `id`.
+ * - `GET /jobs` lists the jobs, `GET /jobs/ID` gets a job's status, and with
+ * `?wait=true`, waits for the job to finish first.
+ * - `DELETE /jobs/ID` cancels a job, queued or running (see
+ * `RayTracer.cancelled`).
+ * - `GET /scenes` describes the scene cache.
+ * - `POST /shutdown` stops the server, cancelling the queued jobs.
+ *
+ * Run it as `RenderServer` with any of `--port=N` (8086 by default, 0 for any
+ * free port), `--cache-mb=M` (the scene cache's capacity), `--threads=N` (the
+ * rendering threads of every job) and `--workers=N` (the number of jobs
+ * rendered at once, 1 by default). `RenderClient` talks to it.
+ */
+public class RenderServer {
+    public static final int DEFAULT_PORT = 8086;
+    private static final int MAX_JOBS = 1000; // Finished jobs past this many are forgotten, oldest first
+    private static final int MAX_GBUFFERS = 4; // G-buffers past this many are dropped, least recently used first
+
+    /**
+     * The states of a job.
+     */
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    /**
+     * A render job.
+     */
+    private class Job {
+        final long id;
+        final long order; // Breaks ties between jobs of the same priority, first come first served
+        final Map<String, String> params;
+        final int priority;
+        final long submitted = System.nanoTime();
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        // Guarded by the job:
+        State state = State.QUEUED;
+        RayTracer tracer; // Renders the job while it runs
+        boolean started;
+        Boolean cached; // If the scene was cached, once it was loaded
+        long queuedNanos;
+        long renderNanos;
+        String error;
+
+        Job(long id, Map<String, String> params) throws RayTracer.RayTracerException {
+            this.id = id;
+            this.order = id;
+            this.params = params;
+            if (!params.containsKey("scene") || !params.containsKey("output"))
+                throw new RayTracer.RayTracerException("A job needs a scene and an output file.");
+            this.priority = Integer.parseInt(params.getOrDefault("priority", "0"));
+            // Fail early on bad parameters, rather than when the job runs:
+            this.configure(new RayTracer());
+            if (params.containsKey("camera")) {
+                this.camera(1);
+            }
+        }
+
+        /**
+         * Set up a ray tracer with the job's parameters.
+         */
+        void configure(RayTracer tracer) throws RayTracer.RayTracerException {
+            tracer.imageWidth = Integer.parseInt(this.params.getOrDefault("width", "500"));
+            tracer.imageHeight = Integer.parseInt(this.params.getOrDefault("height", "500"));
+            if (tracer.imageWidth < 1 || tracer.imageHeight < 1)
+                throw new RayTracer.RayTracerException("The image's size must be positive.");
+            tracer.threads = RenderServer.this.threads;
+            tracer.seed = Long.parseLong(this.params.getOrDefault("seed", "0"));
+            try {
+                tracer.sampler = Sampler.forName(this.params.getOrDefault("sampler", "sobol"));
+            } catch (IllegalArgumentException e) {
+                throw new RayTracer.RayTracerException(e.getMessage());
+            }
+            tracer.shadowSamples = Integer.parseInt(this.params.getOrDefault("shadow-samples", "0"));
+            if (tracer.shadowSamples < 0)
+                throw new RayTracer.RayTracerException("The number of shadow samples can't be negative.");
+            tracer.adaptiveShadows = Boolean.parseBoolean(this.params.getOrDefault("adaptive-shadows", "false"));
+            tracer.minWeight = Double.parseDouble(this.params.getOrDefault("min-weight", "0"));
+            tracer.rouletteDepth = Integer
+                    .parseInt(this.params.getOrDefault("roulette-depth", Integer.toString(Integer.MAX_VALUE)));
+            tracer.wavefront = Boolean.parseBoolean(this.params.getOrDefault("wavefront", "false"));
+            tracer.packets = true;
+            tracer.quiet = true;
+            tracer.pngLevel = Integer
+                    .parseInt(this.params.getOrDefault("png-level", Integer.toString(Deflater.DEFAULT_COMPRESSION)));
+            if (tracer.pngLevel < Deflater.DEFAULT_COMPRESSION || tracer.pngLevel > 9)
+                throw new RayTracer.RayTracerException("The PNG compression level must be between 0 and 9.");
+        }
+
+        /**
+         * Create the job's camera override.
+         */
+        Camera camera(double aspectRatio) throws RayTracer.RayTracerException {
+            String[] params = this.params.get("camera").trim().toLowerCase().split("\\s+");
+            if (params.length < 11)
+                throw new RayTracer.RayTracerException("A camera needs at least 11 parameters, as a cam line.");
+            return SceneParser.camera(params, aspectRatio);
+        }
+
+        void run() {
+            RayTracer tracer = new RayTracer();
+            synchronized (this) {
+                if (this.state != State.QUEUED) {
+                    return; // Cancelled before it was taken off the queue
+                }
+                this.state = State.RUNNING;
+                this.started = true;
+                this.tracer = tracer;
+                this.queuedNanos = System.nanoTime() - this.submitted;
+            }
+            long start = System.nanoTime();
+            State state;
+            String error = null;
+            try {
+                this.configure(tracer);
+                Pair<Scene, Boolean> scene = RenderServer.this.cache.get(this.params.get("scene"));
+                synchronized (this) {
+                    this.cached = scene.second();
+                }
+                double aspectRatio = (double) tracer.imageHeight / tracer.imageWidth;
+                Camera camera = this.params.containsKey("camera") ? this.camera(aspectRatio)
+                        : scene.first().camera.withAspectRatio(aspectRatio);
+                Scene view = scene.first().withCamera(camera);
+                view.adaptiveShadows = tracer.adaptiveShadows;
+                view.sampler = tracer.sampler;
+                view.shadowSamples = tracer.shadowSamples;
+                view.minWeight = tracer.minWeight;
+                view.rouletteDepth = tracer.rouletteDepth;
+                if (Boolean.parseBoolean(this.params.getOrDefault("gbuffer", "false"))) {
+                    tracer.gBuffer = RenderServer.this.gBuffer(view, tracer.imageWidth, tracer.imageHeight);
+                }
+                tracer.renderScene(view, this.params.get("output"));
+                state = State.DONE;
+            } catch (CancellationException e) {
+                state = State.CANCELLED;
+                try {
+                    Files.deleteIfExists(Paths.get(this.params.get("output")));
+                } catch (IOException ignored) {
+                    // Leave the partial image
+                }
+            } catch (RayTracer.RayTracerException e) {
+                state = State.FAILED;
+                error = e.getMessage();
+            } catch (Exception e) {
+                state = State.FAILED;
+                error = e.toString();
+            }
+            synchronized (this) {
+                this.state = state;
+                this.error = error;
+                this.tracer = null;
+                this.renderNanos = System.nanoTime() - start;
+            }
+            this.finished.countDown();
+            log("Job %d: %s in %d milliseconds", this.id, state, this.renderNanos / 1000000);
+        }
+
+        /**
+         * Cancel the job: take it off the queue, or stop it if it's running.
+         */
+        void cancel() {
+            synchronized (this) {
+                if (this.state == State.RUNNING) {
+                    this.tracer.cancelled = true;
+                    return;
+                }
+                if (this.state != State.QUEUED) {
+                    return;
+                }
+                this.state = State.CANCELLED;
+            }
+            RenderServer.this.queue.remove(this);
+            this.finished.countDown();
+        }
+
+        synchronized boolean isFinished() {
+            return this.state != State.QUEUED && this.state != State.RUNNING;
+        }
+
+        synchronized String toJson() {
+            StringBuilder json = new StringBuilder("{ ");
+            json.append("\"id\": ").append(this.id);
+            json.append(", \"state\": ").append(RenderStats.quote(this.state.name().toLowerCase()));
+            json.append(", \"priority\": ").append(this.priority);
+            json.append(", \"scene\": ").append(RenderStats.quote(this.params.get("scene")));
+            json.append(", \"output\": ").append(RenderStats.quote(this.params.get("output")));
+            if (this.cached != null) {
+                json.append(", \"cached\": ").append(this.cached);
+            }
+            if (this.started) {
+                json.append(", \"queuedMs\": ").append(this.queuedNanos / 1000000);
+            }
+            if (this.started && this.isFinished()) {
+                json.append(", \"renderMs\": ").append(this.renderNanos / 1000000);
+            }
+            if (this.error != null) {
+                json.append(", \"error\": ").append(RenderStats.quote(this.error));
+            }
+            return json.append(" }").toString();
+        }
+    }
+
+    private final int threads; // The rendering threads of every job
+    private final SceneCache cache;
+    private final LinkedHashMap<String, GBuffer> gBuffers = new LinkedHashMap<>(16, 0.75f, true); // Guarded by itself
+    private final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<>(16,
+            (a, b) -> a.priority != b.priority ? Integer.compare(b.priority, a.priority) : Long.compare(a.order, b.order));
+    private final Map<Long, Job> jobs = new LinkedHashMap<>(); // Guarded by itself
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final HttpServer server;
+    private final ExecutorService handlers = Executors.newCachedThreadPool();
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean running = true;
+
+    /**
+     * Start a server.
+     *
+     * @param port       The port to listen on, on the loopback interface, or 0 for
+     *                   any free port.
+     * @param cacheBytes The capacity of the scene cache, in bytes.
+     * @param threads    The rendering threads of every job.
+     * @param workers    The number of jobs rendered at once.
+     */
+    public RenderServer(int port, long cacheBytes, int threads, int workers) throws IOException {
+        this.threads = threads;
+        this.cache = new SceneCache(cacheBytes, threads);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext("/jobs", this::handleJobs);
+        this.server.createContext("/scenes", exchange -> this.handle(exchange, () -> {
+            this.requireMethod(exchange, "GET");
+            return this.cache.toJson();
+        }));
+        this.server.createContext("/shutdown", exchange -> this.handle(exchange, () -> {
+            this.requireMethod(exchange, "POST");
+            new Thread(this::stop, "render-server-shutdown").start();
+            return "{ \"state\": \"stopping\" }";
+        }));
+        this.server.setExecutor(this.handlers);
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(this::work, "render-worker-" + i);
+            worker.start();
+            this.workers.add(worker);
+        }
+        this.server.start();
+    }
+
+    /**
+     * @return The port the server listens on.
+     */
+    public int port() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Render jobs off the queue, highest priority first, until the server stops.
+     */
+    private void work() {
+        while (this.running) {
+            try {
+                // Not interrupted when stopping, since that would close the image files of
+                // running jobs, so it looks at `running` now and then
+                Job job = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                if (job != null) {
+                    job.run();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stop the server: stop accepting requests, cancel the queued jobs and wait
+     * for the running ones to finish.
+     */
+    public void stop() {
+        this.running = false;
+        this.server.stop(1);
+        for (Job job : this.queue.toArray(new Job[0])) {
+            job.cancel();
+        }
+        for (Thread worker : this.workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.handlers.shutdown();
+        log("Stopped");
+    }
+
+    /**
+     * Submit a job.
+     *
+     * @param params The job's parameters.
+     * @return The job's id.
+     */
+    public long submit(Map<String, String> params) throws RayTracer.RayTracerException {
+        if (!this.running)
+            throw new RayTracer.RayTracerException("The server is stopping.");
+        Job job = new Job(this.nextId.getAndIncrement(), params);
+        synchronized (this.jobs) {
+            this.jobs.put(job.id, job);
+            Iterator<Job> it = this.jobs.values().iterator();
+            while (this.jobs.size() > MAX_JOBS && it.hasNext()) {
+                if (it.next().isFinished()) {
+                    it.remove();
+                }
+            }
+        }
+        log("Job %d: queued %s, priority %d", job.id, params.get("scene"), job.priority);
+        this.queue.add(job);
+        // `stop` may have drained the queue between the check above and the add, and
+        // the workers may be gone, so the job must not be left queued
+        if (!this.running) {
+            job.cancel();
+            throw new RayTracer.RayTracerException("The server is stopping.");
+        }
+        return job.id;
+    }
+
+    private Job job(String id) throws RayTracer.RayTracerException {
+        Job job = null;
+        try {
+            synchronized (this.jobs) {
+                job = this.jobs.get(Long.parseLong(id));
+            }
+        } catch (NumberFormatException e) {
+            // Not found
+        }
+        if (job == null)
+            throw new NotFoundException("No job " + id);
+        return job;
+    }
+
+    private void handleJobs(HttpExchange exchange) {
+        this.handle(exchange, () -> {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            Map<String, String> params = this.params(exchange);
+            if (path.equals("/jobs") || path.equals("/jobs/")) {
+                if (method.equals("POST")) {
+                    try {
+                        return this.job(Long.toString(this.submit(params))).toJson();
+                    } catch (NumberFormatException e) {
+                        throw new RayTracer.RayTracerException("Bad number: " + e.getMessage());
+                    }
+                }
+                this.requireMethod(exchange, "GET");
+                List<String> all = new ArrayList<>();
+                synchronized (this.jobs) {
+                    for (Job job : this.jobs.values()) {
+                        all.add(job.toJson());
+                    }
+                }
+                return "[" + String.join(",\n", all) + "]";
+            }
+            Job job = this.job(path.substring("/jobs/".length()));
+            if (method.equals("DELETE")) {
+                job.cancel();
+                job.finished.await();
+                return job.toJson();
+            }
+            this.requireMethod(exchange, "GET");
+            if (Boolean.parseBoolean(params.get("wait"))) {
+                job.finished.await();
+            }
+            return job.toJson();
+        });
+    }
+
+    /**
+     * Thrown for requests of things that don't exist, answered with 404.
+     */
+    private static class NotFoundException extends RayTracer.RayTracerException {
+        private static final long serialVersionUID = 1L;
+
+        NotFoundException(String msg) {
+            super(msg);
+        }
+    }
+
+    /**
+     * Answers a request with JSON.
+     */
+    private interface Handler {
+        String handle() throws Exception;
+    }
+
+    /**
+     * Answer a request with the handler's JSON, 400 for bad requests and 404 for
+     * things that don't exist.
+     */
+    private void handle(HttpExchange exchange, Handler handler) {
+        int status;
+        String body;
+        try {
+            body = handler.handle();
+            status = 200;
+        } catch (NotFoundException e) {
+            status = 404;
+            body = "{ \"error\": " + RenderStats.quote(e.getMessage()) + " }";
+        } catch (RayTracer.RayTracerException | NumberFormatException e) {
+            status = 400;
+            body = "{ \"error\": " + RenderStats.quote(String.valueOf(e.getMessage())) + " }";
+        } catch (Exception e) {
+            status = 500;
+            body = "{ \"error\": " + RenderStats.quote(String.valueOf(e)) + " }";
+        }
+        try {
+            byte[] bytes = (body + "\n").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } catch (IOException e) {
+            // The client went away
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void requireMethod(HttpExchange exchange, String method) throws RayTracer.RayTracerException {
+        if (!exchange.getRequestMethod().equals(method))
+            throw new RayTracer.RayTracerException("Use " + method + " for " + exchange.getRequestURI().getPath());
+    }
+
+    /**
+     * Get a request's form encoded parameters, from its query and its body.
+     */
+    private Map<String, String> params(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new LinkedHashMap<>();
+        parseForm(exchange.getRequestURI().getRawQuery(), params);
+        parseForm(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8), params);
+        return params;
+    }
+
+    private static void parseForm(String form, Map<String, String> params) {
+        if (form == null || form.isEmpty()) {
+            return;
+        }
+        for (String pair : form.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "true" : pair.substring(equals + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Get the in-memory G-buffer of a view of a scene, creating it if there is
+     * none yet.
+     */
+    private GBuffer gBuffer(Scene view, int width, int height) throws IOException {
+        byte[] key = GBuffer.key(view, width, height);
+        String name = HexFormat.of().formatHex(key);
+        synchronized (this.gBuffers) {
+            GBuffer gBuffer = this.gBuffers.get(name);
+            if (gBuffer == null) {
+                gBuffer = GBuffer.inMemory(key, width, height);
+                this.gBuffers.put(name, gBuffer);
+                Iterator<String> it = this.gBuffers.keySet().iterator();
+                while (this.gBuffers.size() > MAX_GBUFFERS) {
+                    it.next();
+                    it.remove();
+                }
+            }
+            return gBuffer;
+        }
+    }
+
+    private static void log(String format, Object... args) {
+        System.out.println(String.format(format, args));
+    }
+
+    public static void main(String[] args) {
+        try {
+            int port = DEFAULT_PORT;
+            long cacheMegabytes = 512;
+            int threads = Runtime.getRuntime().availableProcessors();
+            int workers = 1;
+            for (String arg : args) {
+                if (arg.startsWith("--port=")) {
+                    port = Integer.parseInt(arg.substring("--port=".length()));
+                } else if (arg.startsWith("--cache-mb=")) {
+                    cacheMegabytes = Long.parseLong(arg.substring("--cache-mb=".length()));
+                } else if (arg.startsWith("--threads=")) {
+                    threads = Integer.parseInt(arg.substring("--threads=".length()));
+                } else if (arg.startsWith("--workers=")) {
+                    workers = Integer.parseInt(arg.substring("--workers=".length()));
+                } else {
+                    throw new RayTracer.RayTracerException("Unknown option: " + arg);
+                }
+            }
+            if (threads < 1 || workers < 1)
+                throw new RayTracer.RayTracerException("The numbers of threads and workers must be positive.");
+
+            RenderServer server = new RenderServer(port, cacheMegabytes << 20, threads, workers);
+            log("Render server listening on http://%s:%d", InetAddress.getLoopbackAddress().getHostAddress(),
+                    server.port());
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        }
+    }
+}
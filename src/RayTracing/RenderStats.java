@@ -0,0 +1,320 @@
+package RayTracing;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The statistics of a rendered frame: how long its phases took, how many rays
+ * of every kind were traced and how many intersection tests they took, how long
+ * the tiles took to render and how much heap was used, written out as a JSON
+ * report.
+ *
+ * The ray, intersection and tile counters sit on the hot paths of the
+ * renderer, so they are only compiled in when the JVM runs with the
+ * `raytracer.stats=true` system property (which `--stats` sets before anything
+ * is rendered). Every counting site is guarded by the constant `ENABLED`, and
+ * without the property the JIT drops the guarded code altogether. Every thread
+ * counts into its own `Counters`, without synchronization, and the counters of
+ * all the threads are merged at the end of the frame.
+ *
+ * The phases are timed either way, and every phase is also recorded as a
+ * `RenderPhaseEvent` for Flight Recorder.
+ */
+public class RenderStats {
+    /** If the hot path counters are compiled in; read once, when the class is initialized */
+    public static final boolean ENABLED = Boolean.getBoolean("raytracer.stats");
+
+    /**
+     * The counters of a single thread. Only the thread that owns them updates
+     * them.
+     */
+    public static class Counters {
+        private final Thread owner;
+
+        public long primaryRays; // Camera rays
+        public long shadowRays; // Occlusion queries between points and lights
+        public long reflectionRays; // Traced reflected rays
+        public long transparencyRays; // Traced rays through transparent surfaces
+        public long closestHits; // Closest intersection queries, one per ray
+        public long sphereTests; // Ray-sphere intersection tests
+        public long boxTests; // Ray-box intersection tests
+        public long planeTests; // Ray-plane intersection tests
+        public long otherTests; // Intersection tests of other surfaces
+        public long tiles; // Rendered tiles
+        public long tileNanos; // The total time of the rendered tiles
+        public long maxTileNanos; // The time of the slowest tile
+        public int slowestTileX = -1; // The position of the slowest tile
+        public int slowestTileY = -1;
+
+        private Counters(Thread owner) {
+            this.owner = owner;
+        }
+
+        /**
+         * Record the time a tile took to render.
+         *
+         * @param tile  The tile.
+         * @param nanos How long it took, in nanoseconds.
+         */
+        public void tile(Tile tile, long nanos) {
+            this.tiles++;
+            this.tileNanos += nanos;
+            if (nanos > this.maxTileNanos) {
+                this.maxTileNanos = nanos;
+                this.slowestTileX = tile.x;
+                this.slowestTileY = tile.y;
+            }
+        }
+
+        private void add(Counters other) {
+            this.primaryRays += other.primaryRays;
+            this.shadowRays += other.shadowRays;
+            this.reflectionRays += other.reflectionRays;
+            this.transparencyRays += other.transparencyRays;
+            this.closestHits += other.closestHits;
+            this.sphereTests += other.sphereTests;
+            this.boxTests += other.boxTests;
+            this.planeTests += other.planeTests;
+            this.otherTests += other.otherTests;
+            this.tiles += other.tiles;
+            this.tileNanos += other.tileNanos;
+            if (other.maxTileNanos > this.maxTileNanos) {
+                this.maxTileNanos = other.maxTileNanos;
+                this.slowestTileX = other.slowestTileX;
+                this.slowestTileY = other.slowestTileY;
+            }
+        }
+    }
+
+    // The counters of every thread that counted anything since the last reset
+    private static final Queue<Counters> THREADS = new ConcurrentLinkedQueue<>();
+    private static final ThreadLocal<Counters> COUNTERS = ThreadLocal.withInitial(() -> {
+        Counters counters = new Counters(Thread.currentThread());
+        THREADS.add(counters);
+        return counters;
+    });
+
+    /**
+     * Get the counters of the current thread. Only call it when `ENABLED`.
+     *
+     * @return The counters.
+     */
+    public static Counters counters() {
+        return COUNTERS.get();
+    }
+
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+    private Counters total; // The merged counters of the frame, once it ended
+
+    /**
+     * Start a new frame: zero the counters of all the threads and the peak heap
+     * usage. No thread may be rendering.
+     */
+    public void start() {
+        this.phaseNanos.clear();
+        this.total = null;
+        THREADS.removeIf(counters -> !counters.owner.isAlive());
+        for (Counters counters : THREADS) {
+            zero(counters);
+        }
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static void zero(Counters counters) {
+        counters.primaryRays = counters.shadowRays = counters.reflectionRays = counters.transparencyRays = 0;
+        counters.closestHits = counters.sphereTests = counters.boxTests = counters.planeTests = 0;
+        counters.otherTests = counters.tiles = counters.tileNanos = counters.maxTileNanos = 0;
+        counters.slowestTileX = counters.slowestTileY = -1;
+    }
+
+    /**
+     * End the frame: merge the counters of all the threads. No thread may be
+     * rendering.
+     */
+    public void end() {
+        Counters total = new Counters(null);
+        for (Iterator<Counters> it = THREADS.iterator(); it.hasNext();) {
+            Counters counters = it.next();
+            total.add(counters);
+            if (!counters.owner.isAlive()) {
+                // The threads of the frame's pool are gone, their counts are in the total
+                it.remove();
+            }
+        }
+        this.total = total;
+    }
+
+    /**
+     * Get the merged counters of the frame.
+     *
+     * @return The counters, or null before the frame ended or if they aren't
+     *         `ENABLED`.
+     */
+    public Counters total() {
+        return ENABLED ? this.total : null;
+    }
+
+    /**
+     * Start timing a phase of the frame. Closing the phase adds its time to the
+     * phase's total (phases such as encoding happen in several parts) and
+     * commits its Flight Recorder event.
+     *
+     * @param name The phase's name.
+     * @return The running phase.
+     */
+    public Phase phase(String name) {
+        return new Phase(name);
+    }
+
+    /**
+     * A running phase of the frame.
+     */
+    public class Phase implements AutoCloseable {
+        private final String name;
+        private final long start;
+        private final RenderPhaseEvent event;
+
+        private Phase(String name) {
+            this.name = name;
+            this.event = new RenderPhaseEvent(name);
+            this.event.begin();
+            this.start = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            phaseNanos.merge(this.name, System.nanoTime() - this.start, Long::sum);
+            this.event.commit();
+        }
+    }
+
+    /**
+     * Get the total time of a phase.
+     *
+     * @param name The phase's name.
+     * @return Its time in nanoseconds, or 0 if it never ran.
+     */
+    public long phaseNanos(String name) {
+        return this.phaseNanos.getOrDefault(name, 0L);
+    }
+
+    /**
+     * Get the most heap used since the frame started: the sum of the peak usage
+     * of the heap's memory pools.
+     *
+     * @return The peak heap usage, in bytes.
+     */
+    public static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * Format the frame's statistics as JSON.
+     *
+     * @param tracer The tracer that rendered the frame.
+     * @param scene  The scene file's name.
+     * @param output The image file's name.
+     * @return The JSON report.
+     */
+    public String toJson(RayTracer tracer, String scene, String output) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"scene\": ").append(quote(scene)).append(",\n");
+        json.append("  \"output\": ").append(quote(output)).append(",\n");
+        json.append("  \"width\": ").append(tracer.imageWidth).append(",\n");
+        json.append("  \"height\": ").append(tracer.imageHeight).append(",\n");
+        json.append("  \"threads\": ").append(tracer.threads).append(",\n");
+        json.append("  \"phasesMs\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Long> phase : this.phaseNanos.entrySet()) {
+            json.append(separator).append("    ").append(quote(phase.getKey())).append(": ")
+                    .append(millis(phase.getValue()));
+            separator = ",\n";
+        }
+        json.append("\n  },\n");
+        json.append("  \"peakHeapBytes\": ").append(peakHeap()).append(",\n");
+        Counters total = this.total();
+        json.append("  \"counters\": ").append(total != null);
+        if (total != null) {
+            json.append(",\n");
+            json.append("  \"rays\": {\n");
+            json.append("    \"primary\": ").append(total.primaryRays).append(",\n");
+            json.append("    \"shadow\": ").append(total.shadowRays).append(",\n");
+            json.append("    \"reflection\": ").append(total.reflectionRays).append(",\n");
+            json.append("    \"transparency\": ").append(total.transparencyRays).append("\n");
+            json.append("  },\n");
+            json.append("  \"closestHitQueries\": ").append(total.closestHits).append(",\n");
+            json.append("  \"intersectionTests\": {\n");
+            json.append("    \"sphere\": ").append(total.sphereTests).append(",\n");
+            json.append("    \"box\": ").append(total.boxTests).append(",\n");
+            json.append("    \"plane\": ").append(total.planeTests).append(",\n");
+            json.append("    \"other\": ").append(total.otherTests).append("\n");
+            json.append("  },\n");
+            json.append("  \"tiles\": {\n");
+            json.append("    \"count\": ").append(total.tiles).append(",\n");
+            json.append("    \"totalMs\": ").append(millis(total.tileNanos)).append(",\n");
+            json.append("    \"meanMs\": ").append(millis(total.tiles == 0 ? 0 : total.tileNanos / total.tiles))
+                    .append(",\n");
+            json.append("    \"maxMs\": ").append(millis(total.maxTileNanos)).append(",\n");
+            json.append("    \"slowest\": { \"x\": ").append(total.slowestTileX).append(", \"y\": ")
+                    .append(total.slowestTileY).append(" }\n");
+            json.append("  }");
+        }
+        json.append("\n}\n");
+        return json.toString();
+    }
+
+    /**
+     * Write the frame's statistics to a JSON file.
+     *
+     * @param path   The report file.
+     * @param tracer The tracer that rendered the frame.
+     * @param scene  The scene file's name.
+     * @param output The image file's name.
+     */
+    public void write(Path path, RayTracer tracer, String scene, String output) throws IOException {
+        Files.write(path, this.toJson(tracer, scene, output).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    /**
+     * Quote a string for JSON.
+     */
+    static String quote(String s) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
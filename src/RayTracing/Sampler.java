@@ -0,0 +1,67 @@
+package RayTracing;
+
+/**
+ * A deterministic source of the sample offsets of soft shadows. A sampler is
+ * stateless: a sample is a function of the sequence's seed, the sample's index
+ * and the coordinate, so samples don't depend on which thread computes them or
+ * in which order.
+ *
+ * Seeds are derived from the render's seed, the pixel, the ray's path from the
+ * camera and the light (see `mix`), so every light at every bounce of every
+ * pixel gets its own sequence.
+ */
+public interface Sampler {
+    /**
+     * Get a coordinate of a sample.
+     *
+     * @param seed      Identifies the sequence.
+     * @param index     The index of the sample in the sequence.
+     * @param dimension The coordinate: 0 or 1.
+     * @return A value in [0, 1).
+     */
+    double sample(long seed, int index, int dimension);
+
+    /**
+     * Get a sampler by name.
+     *
+     * @param name "random", "halton" or "sobol".
+     * @return The sampler.
+     */
+    static Sampler forName(String name) {
+        switch (name) {
+        case "random": {
+            return new RandomSampler();
+        }
+        case "halton": {
+            return new HaltonSampler();
+        }
+        case "sobol": {
+            return new SobolSampler();
+        }
+        default: {
+            throw new IllegalArgumentException("Unknown sampler: " + name);
+        }
+
+        }
+    }
+
+    /**
+     * Derive a seed from another seed and a value (SplitMix64 finalizer).
+     *
+     * @return A well mixed seed, different for every `value`.
+     */
+    static long mix(long seed, long value) {
+        long z = seed + (value + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @return A uniformly distributed value in [0, 1), derived from the top 53 bits
+     *         of `bits`.
+     */
+    static double toUnit(long bits) {
+        return (bits >>> 11) * 0x1.0p-53;
+    }
+}
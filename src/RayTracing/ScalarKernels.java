@@ -0,0 +1,40 @@
+package RayTracing;
+
+/**
+ * Intersection tests of one primitive at a time.
+ */
+public class ScalarKernels implements IntersectionKernels {
+
+    @Override
+    public int width() {
+        return 1;
+    }
+
+    @Override
+    public int closestSphere(CompiledScene scene, int start, int end, double ox, double oy, double oz, double dx,
+            double dy, double dz, double tMin, double tMax) {
+        int closest = -1;
+        for (int i = start; i < end; i++) {
+            double t = scene.sphereDistance(i, ox, oy, oz, dx, dy, dz, tMin);
+            if (t < tMax) {
+                tMax = t;
+                closest = i;
+            }
+        }
+        return closest;
+    }
+
+    @Override
+    public int closestBox(CompiledScene scene, int start, int end, double ox, double oy, double oz, double invX,
+            double invY, double invZ, double tMin, double tMax) {
+        int closest = -1;
+        for (int i = start; i < end; i++) {
+            double t = scene.boxDistance(i, ox, oy, oz, invX, invY, invZ, tMin);
+            if (t < tMax) {
+                tMax = t;
+                closest = i;
+            }
+        }
+        return closest;
+    }
+}
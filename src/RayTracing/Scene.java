@@ -15,6 +15,30 @@ public class Scene {
     public List<Surface> sceneObjects;
     public List<Light> lights;
 
+    // If true, soft shadows are sampled adaptively, with `shadowRays`^2 rays per
+    // light at most
+    public boolean adaptiveShadows;
+
+    public Sampler sampler = new SobolSampler(); // Jitters the shadow rays within their cells
+
+    // If positive, every light is sampled from this many points drawn from
+    // `sampler` over the whole light source, instead of from the cells of a
+    // `shadowRays` by `shadowRays` grid
+    public int shadowSamples = 0;
+
+    // Secondary rays contributing at most this much (per color channel) to a pixel
+    // are not traced
+    public double minWeight = 0;
+    // Past this depth, secondary rays are dropped at random in proportion to their
+    // contribution (Russian roulette)
+    public int rouletteDepth = Integer.MAX_VALUE;
+
+    public CompiledScene compiled; // The form of the surfaces used for rendering, built by `freeze`
+
+    // Per thread scratch records of the shadow rays' intersection tests, reused
+    // between calls
+    private static final ThreadLocal<Hit> SHADOW_HITS = ThreadLocal.withInitial(Hit::new);
+
     public Scene(Vector bgColor, int shadowRays, int recursionDepth, Camera camera,
             List<Surface> objects, List<Light> lights) {
         this.bgColor = bgColor;
@@ -25,6 +49,26 @@ public class Scene {
         this.lights = lights;
     }
 
+    /**
+     * Create a view of the scene through another camera. The view shares the
+     * scene's surfaces, lights and compiled form, so it is cheap, but has its own
+     * rendering settings, copied from the scene.
+     *
+     * @param camera The view's camera.
+     * @return The view.
+     */
+    public Scene withCamera(Camera camera) {
+        Scene view = new Scene(this.bgColor, this.shadowRays, this.recursionDepth, camera, this.sceneObjects,
+                this.lights);
+        view.adaptiveShadows = this.adaptiveShadows;
+        view.sampler = this.sampler;
+        view.shadowSamples = this.shadowSamples;
+        view.minWeight = this.minWeight;
+        view.rouletteDepth = this.rouletteDepth;
+        view.compiled = this.compiled;
+        return view;
+    }
+
     public void addObject(Surface s) {
         this.sceneObjects.add(s);
     }
@@ -33,4 +77,119 @@ public class Scene {
         this.lights.add(l);
     }
 
+    /**
+     * Make the scene's entity lists immutable, so the scene can be shared by the
+     * rendering threads, and compile its surfaces for rendering. Call once
+     * parsing is done; adding objects or lights afterwards fails. The surfaces of
+     * a scene loaded with them already compiled (see `SceneFile`) are kept as
+     * they are.
+     */
+    public void freeze() {
+        this.lights = List.copyOf(this.lights);
+        if (this.compiled == null) {
+            this.sceneObjects = List.copyOf(this.sceneObjects);
+            this.compiled = this.compile();
+        }
+    }
+
+    /**
+     * Flatten the scene's surfaces into primitive arrays and build the
+     * acceleration structure over them. The object graph is left as is.
+     * 
+     * @return The compiled surfaces.
+     */
+    public CompiledScene compile() {
+        return new CompiledScene(this.sceneObjects);
+    }
+
+    /**
+     * Find the intersection of a ray with the scene's surfaces that is closest to
+     * the ray's origin.
+     * 
+     * @param ray  The traced ray.
+     * @param tMin The smallest accepted distance from the ray's origin.
+     * @param hit  The closest intersection found so far (reset it before the
+     *             search); updated if a closer one is found.
+     * @return If an intersection was found.
+     */
+    public boolean closestHit(Ray ray, double tMin, Hit hit) {
+        if (RenderStats.ENABLED) {
+            RenderStats.counters().closestHits++;
+        }
+        if (this.compiled != null) {
+            return this.compiled.closestHit(ray, tMin, hit);
+        }
+        // The scene isn't frozen yet, test every surface
+        boolean found = false;
+        for (Surface surface : this.sceneObjects) {
+            found |= surface.intersect(ray, tMin, hit.t, hit);
+        }
+        return found;
+    }
+
+    /**
+     * Find the closest intersections of a packet of coherent rays, such as the
+     * camera rays of a block of neighbouring pixels. The same as `closestHit` for
+     * every ray, but faster for packets.
+     * 
+     * @param rays  The traced rays.
+     * @param count The number of rays in the packet, at the start of `rays`.
+     * @param tMin  The smallest accepted distance from the rays' origins.
+     * @param hits  The closest intersection of every ray found so far (reset them
+     *              before the search); updated if a closer one is found.
+     */
+    public void closestHits(Ray[] rays, int count, double tMin, Hit[] hits) {
+        if (this.compiled != null) {
+            if (RenderStats.ENABLED) {
+                RenderStats.counters().closestHits += count;
+            }
+            this.compiled.closestHits(rays, count, tMin, hits);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            this.closestHit(rays[i], tMin, hits[i]);
+        }
+    }
+
+    /**
+     * Check if anything lies between two points in the scene. Unlike
+     * `closestHit`, returns on the first blocking surface found.
+     * 
+     * @param origin The point the query starts from, usually on a surface.
+     * @param target The point the query ends at, usually on a light source.
+     * @return If there is a surface between `origin` and `target`.
+     */
+    public boolean occluded(Vector origin, Vector target) {
+        Vector direction = target.sub(origin);
+        // Step off the origin's surface, so it doesn't block itself:
+        Ray ray = new Ray(origin.add(direction.mul(0.00000001)), direction);
+        return this.occluded(ray, ray.origin.distance(target));
+    }
+
+    /**
+     * Check if a ray hits any surface before a given distance.
+     * 
+     * @param ray         The query ray.
+     * @param maxDistance Surfaces at this distance from the ray's origin or
+     *                    farther don't count.
+     * @return If there is a surface closer than `maxDistance` along the ray.
+     */
+    public boolean occluded(Ray ray, double maxDistance) {
+        if (RenderStats.ENABLED) {
+            RenderStats.counters().shadowRays++;
+        }
+        // The ray isn't kept in the record, so it can still be scalar replaced
+        Hit hit = SHADOW_HITS.get();
+        hit.reset(null, Double.POSITIVE_INFINITY);
+        if (this.compiled != null) {
+            return this.compiled.anyHit(ray, 0, maxDistance, hit);
+        }
+        // The scene isn't frozen yet, test every surface
+        for (Surface surface : this.sceneObjects) {
+            if (surface.intersect(ray, 0, maxDistance, hit)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
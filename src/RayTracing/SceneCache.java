@@ -0,0 +1,204 @@
+package RayTracing;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A cache of parsed and frozen scenes, so that rendering a scene again skips
+ * parsing it and building its acceleration structure. The cache is bounded by
+ * the estimated memory of its scenes (see `estimateSize`), and evicts the
+ * least recently used scenes first.
+ *
+ * Scenes are cached by the absolute path of their file, and are loaded again
+ * if the file changes. They are parsed for square images; render them through
+ * a camera for the image's aspect ratio (see `Scene.withCamera` and
+ * `Camera.withAspectRatio`).
+ *
+ * Scenes are loaded outside the cache's lock, so a slow load doesn't hold up
+ * requests for other scenes, and requests for a scene that is being loaded wait
+ * for that load rather than starting another.
+ */
+public class SceneCache {
+
+    /**
+     * A cached scene, with the state of its file when it was loaded.
+     */
+    private static class Entry {
+        final Scene scene;
+        final FileTime modified;
+        final long fileSize;
+        final long size; // The scene's estimated memory, in bytes
+
+        Entry(Scene scene, FileTime modified, long fileSize, long size) {
+            this.scene = scene;
+            this.modified = modified;
+            this.fileSize = fileSize;
+            this.size = size;
+        }
+    }
+
+    private final long capacity; // The most memory the cached scenes may take, in bytes
+    private final int threads; // The number of threads parsing a scene
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // In access order
+    private final Map<Path, CompletableFuture<Entry>> loading = new HashMap<>(); // The scenes being loaded
+    private long size; // The estimated memory of the cached scenes, in bytes
+    private long hits;
+    private long misses;
+
+    /**
+     * @param capacity The most memory the cached scenes may take, in bytes.
+     * @param threads  The number of threads parsing a scene.
+     */
+    public SceneCache(long capacity, int threads) {
+        this.capacity = capacity;
+        this.threads = threads;
+    }
+
+    /**
+     * Get a scene, loading it if it isn't cached or its file changed since it
+     * was. If the scene is already being loaded, waits for that load.
+     *
+     * @param fileName The scene file, text or compiled.
+     * @return The frozen scene, and if it was cached.
+     */
+    public Pair<Scene, Boolean> get(String fileName) throws IOException, RayTracer.RayTracerException {
+        Path path = Paths.get(fileName).toAbsolutePath().normalize();
+        FileTime modified = Files.getLastModifiedTime(path);
+        long fileSize = Files.size(path);
+        CompletableFuture<Entry> load;
+        boolean loader = false;
+        synchronized (this) {
+            Entry entry = this.entries.get(path);
+            if (entry != null && entry.modified.equals(modified) && entry.fileSize == fileSize) {
+                this.hits++;
+                return new Pair<>(entry.scene, true);
+            }
+            this.misses++;
+            load = this.loading.get(path);
+            if (load == null) {
+                if (entry != null) {
+                    this.remove(path);
+                }
+                load = new CompletableFuture<>();
+                this.loading.put(path, load);
+                loader = true;
+            }
+        }
+
+        if (loader) {
+            try {
+                Entry entry = this.load(path, modified, fileSize);
+                synchronized (this) {
+                    this.loading.remove(path);
+                    this.add(path, entry);
+                }
+                load.complete(entry);
+            } catch (Throwable e) {
+                synchronized (this) {
+                    this.loading.remove(path);
+                }
+                load.completeExceptionally(e);
+                throw e;
+            }
+        }
+        try {
+            return new Pair<>(load.join().scene, false);
+        } catch (CompletionException e) {
+            // The load of another request failed
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RayTracer.RayTracerException) {
+                throw (RayTracer.RayTracerException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Parse a scene file and freeze the scene.
+     */
+    private Entry load(Path path, FileTime modified, long fileSize) throws IOException, RayTracer.RayTracerException {
+        RayTracer parser = new RayTracer();
+        parser.imageWidth = 1;
+        parser.imageHeight = 1;
+        parser.threads = this.threads;
+        parser.fastParse = true;
+        parser.quiet = true;
+        Scene scene = parser.parseScene(path.toString());
+        scene.freeze();
+        return new Entry(scene, modified, fileSize, estimateSize(scene));
+    }
+
+    /**
+     * Cache a loaded scene, if it fits.
+     */
+    private void add(Path path, Entry entry) {
+        if (entry.size <= this.capacity) {
+            this.entries.put(path, entry);
+            this.size += entry.size;
+            // Evict the least recently used scenes, never the new one
+            Iterator<Map.Entry<Path, Entry>> it = this.entries.entrySet().iterator();
+            while (this.size > this.capacity) {
+                Map.Entry<Path, Entry> eldest = it.next();
+                this.size -= eldest.getValue().size;
+                it.remove();
+            }
+        }
+    }
+
+    private void remove(Path path) {
+        Entry entry = this.entries.remove(path);
+        if (entry != null) {
+            this.size -= entry.size;
+        }
+    }
+
+    /**
+     * Estimate the memory a frozen scene takes: its primitive arrays, its
+     * acceleration structure and, unless it was loaded from a compiled scene
+     * file, its surface objects.
+     *
+     * @param scene The scene.
+     * @return The estimate, in bytes.
+     */
+    public static long estimateSize(Scene scene) {
+        CompiledScene compiled = scene.compiled;
+        long primitives = compiled.sphereCount + compiled.boxCount + compiled.planeCount;
+        long size = 40L * compiled.sphereCount + 56L * compiled.boxCount + 40L * compiled.planeCount;
+        size += 32 * primitives; // The acceleration structure's nodes and leaf order
+        if (!(scene.sceneObjects instanceof SceneFile.Primitives)) {
+            size += 96L * scene.sceneObjects.size(); // A surface and its vectors
+        }
+        return size;
+    }
+
+    /**
+     * Format the cache's state as JSON: its capacity and size, its hits and
+     * misses, and its scenes, least recently used first.
+     *
+     * @return The JSON object.
+     */
+    public synchronized String toJson() {
+        List<String> scenes = new ArrayList<>();
+        for (Map.Entry<Path, Entry> entry : this.entries.entrySet()) {
+            scenes.add("{ \"file\": " + RenderStats.quote(entry.getKey().toString()) + ", \"sizeBytes\": "
+                    + entry.getValue().size + " }");
+        }
+        return "{ \"capacityBytes\": " + this.capacity + ", \"sizeBytes\": " + this.size + ", \"hits\": " + this.hits
+                + ", \"misses\": " + this.misses + ", \"scenes\": [" + String.join(", ", scenes) + "] }";
+    }
+}
@@ -0,0 +1,611 @@
+package RayTracing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compiled scene file: a compact binary form of a scene that loads without
+ * parsing text or building the acceleration structure, for scenes that are
+ * rendered many times.
+ *
+ * The file holds the scene's settings, its camera, the materials in use, the
+ * lights and the primitive arrays of `CompiledScene`, in the leaf order of the
+ * hierarchy and optionally followed by the hierarchy itself. Numbers are
+ * little endian, and every array starts at a multiple of 8 bytes:
+ *
+ * <pre>
+ * header:     "RTSC", version, flags (HAS_BVH), 0
+ * settings:   background color (3 doubles), shadow rays, recursion depth
+ * camera:     position, look-at point, up vector (9 doubles), screen
+ *             distance, screen width, fisheye parameter, fisheye (0 or 1), 0
+ * counts:     materials, lights, spheres, boxes, planes, surfaces
+ * materials:  diffuse, specular, phong, reflection, transparency (11 doubles)
+ * lights:     position, color, specular, shadow, radius (9 doubles)
+ * spheres:    center x, y, z, radius arrays, material indices
+ * boxes:      center x, y, z, edge length arrays, material indices
+ * planes:     normal x, y, z, offset arrays, material indices
+ * surfaces:   the primitive of every surface, in the scene file's order
+ * hierarchy:  spheres before every position, nodes (see `BVH.write`)
+ * </pre>
+ *
+ * The screen's height isn't saved; the aspect ratio of the rendered image is
+ * applied when the file is loaded.
+ */
+public class SceneFile {
+    private static final byte[] MAGIC = { 'R', 'T', 'S', 'C' };
+    private static final int VERSION = 1;
+    private static final int HAS_BVH = 1; // The hierarchy is saved after the primitives
+
+    /**
+     * Check if a file is a compiled scene file, by its first bytes.
+     *
+     * @param fileName The file's name.
+     * @return If the file starts like a compiled scene file.
+     */
+    public static boolean isCompiled(String fileName) throws IOException {
+        byte[] start = new byte[MAGIC.length];
+        try (InputStream in = Files.newInputStream(Paths.get(fileName))) {
+            return in.readNBytes(start, 0, start.length) == start.length && Arrays.equals(start, MAGIC);
+        }
+    }
+
+    /**
+     * Save a scene in a compiled scene file.
+     *
+     * @param scene    The scene, frozen.
+     * @param fileName The file's name.
+     * @param bvh      If true, the acceleration structure is saved too, and loads
+     *                 with the scene instead of being built again.
+     */
+    public static void write(Scene scene, String fileName, boolean bvh)
+            throws IOException, RayTracer.RayTracerException {
+        CompiledScene compiled = scene.compiled;
+        if (!compiled.isFlat()) {
+            throw new RayTracer.RayTracerException("The scene has surfaces that can't be compiled.");
+        }
+
+        try (Output out = new Output(Paths.get(fileName))) {
+            out.writeBytes(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(bvh ? HAS_BVH : 0);
+            out.writeInt(0);
+
+            out.writeVector(scene.bgColor);
+            out.writeInt(scene.shadowRays);
+            out.writeInt(scene.recursionDepth);
+
+            Camera camera = scene.camera;
+            out.writeVector(camera.position);
+            out.writeVector(camera.lookAt);
+            out.writeVector(camera.requestedUp);
+            out.writeDouble(camera.screenDist);
+            out.writeDouble(camera.screenWidth);
+            out.writeDouble(camera.fisheye_param);
+            out.writeInt(camera.fisheye ? 1 : 0);
+            out.writeInt(0);
+
+            out.writeInt(compiled.materials.length);
+            out.writeInt(scene.lights.size());
+            out.writeInt(compiled.sphereCount);
+            out.writeInt(compiled.boxCount);
+            out.writeInt(compiled.planeCount);
+            out.writeInt(scene.sceneObjects.size());
+
+            for (Material material : compiled.materials) {
+                out.writeVector(material.diffuse);
+                out.writeVector(material.specular);
+                out.writeDouble(material.phong);
+                out.writeVector(material.reflection);
+                out.writeDouble(material.transparency);
+            }
+            for (Light light : scene.lights) {
+                out.writeVector(light.position);
+                out.writeVector(light.color);
+                out.writeDouble(light.specularIntensity);
+                out.writeDouble(light.shadowIntensity);
+                out.writeDouble(light.radius);
+            }
+
+            out.writeDoubles(compiled.sphereCx, compiled.sphereCount);
+            out.writeDoubles(compiled.sphereCy, compiled.sphereCount);
+            out.writeDoubles(compiled.sphereCz, compiled.sphereCount);
+            out.writeDoubles(compiled.sphereR, compiled.sphereCount);
+            out.writeInts(compiled.sphereMaterial, compiled.sphereCount);
+
+            // Boxes are saved as given, so loading computes the same corners as `Box`
+            double[][] boxes = new double[4][compiled.boxCount];
+            for (int i = 0; i < compiled.boxCount; i++) {
+                Box box = (Box) compiled.surface(CompiledScene.primitive(i, CompiledScene.BOX));
+                boxes[0][i] = box.position.x;
+                boxes[1][i] = box.position.y;
+                boxes[2][i] = box.position.z;
+                boxes[3][i] = box.length;
+            }
+            for (double[] values : boxes) {
+                out.writeDoubles(values, compiled.boxCount);
+            }
+            out.writeInts(compiled.boxMaterial, compiled.boxCount);
+
+            out.writeDoubles(compiled.planeNx, compiled.planeCount);
+            out.writeDoubles(compiled.planeNy, compiled.planeCount);
+            out.writeDoubles(compiled.planeNz, compiled.planeCount);
+            out.writeDoubles(compiled.planeDistance, compiled.planeCount);
+            out.writeInts(compiled.planeMaterial, compiled.planeCount);
+
+            int[] primitives = new int[scene.sceneObjects.size()];
+            for (int i = 0; i < compiled.sphereCount; i++) {
+                int primitive = CompiledScene.primitive(i, CompiledScene.SPHERE);
+                primitives[compiled.source(primitive)] = primitive;
+            }
+            for (int i = 0; i < compiled.boxCount; i++) {
+                int primitive = CompiledScene.primitive(i, CompiledScene.BOX);
+                primitives[compiled.source(primitive)] = primitive;
+            }
+            for (int i = 0; i < compiled.planeCount; i++) {
+                int primitive = CompiledScene.primitive(i, CompiledScene.PLANE);
+                primitives[compiled.source(primitive)] = primitive;
+            }
+            out.writeInts(primitives, primitives.length);
+
+            if (bvh) {
+                out.writeInts(compiled.spheresBefore(), compiled.sphereCount + compiled.boxCount + 1);
+                compiled.bvh.write(out);
+            }
+        }
+    }
+
+    /**
+     * Load a scene from a compiled scene file. If the file holds the acceleration
+     * structure, the scene's surfaces are already compiled, and `Scene.freeze`
+     * only has to freeze its lights.
+     *
+     * @param fileName    The file's name.
+     * @param aspectRatio The aspect ratio (height / width) of the rendered image.
+     * @return The scene.
+     */
+    public static Scene read(String fileName, double aspectRatio) throws IOException, RayTracer.RayTracerException {
+        try (Input in = new Input(Paths.get(fileName))) {
+            byte[] magic = in.readBytes(MAGIC.length);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new RayTracer.RayTracerException(fileName + " is not a compiled scene file.");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new RayTracer.RayTracerException(
+                        String.format("Unsupported compiled scene file version %d in %s.", version, fileName));
+            }
+            int flags = in.readInt();
+            in.readInt();
+
+            Vector bgColor = in.readVector();
+            int shadowRays = in.readInt();
+            int recursionDepth = in.readInt();
+
+            Vector position = in.readVector();
+            Vector lookAt = in.readVector();
+            Vector up = in.readVector();
+            double screenDist = in.readDouble();
+            double screenWidth = in.readDouble();
+            double fisheyeParam = in.readDouble();
+            boolean fisheye = in.readInt() != 0;
+            in.readInt();
+            Camera camera = new Camera(position, lookAt, up, screenDist, screenWidth, aspectRatio, fisheye,
+                    fisheyeParam);
+
+            int materialCount = in.readInt();
+            int lightCount = in.readInt();
+            int sphereCount = in.readInt();
+            int boxCount = in.readInt();
+            int planeCount = in.readInt();
+            int surfaceCount = in.readInt();
+            // Every surface is a primitive, and the arrays that follow must fit in the file
+            long primitiveCount = (long) sphereCount + boxCount + planeCount;
+            if (materialCount < 0 || lightCount < 0 || sphereCount < 0 || boxCount < 0 || planeCount < 0
+                    || surfaceCount != primitiveCount
+                    || 11L * Double.BYTES * materialCount + 9L * Double.BYTES * lightCount
+                            + (4L * Double.BYTES + Integer.BYTES + Integer.BYTES) * primitiveCount > in.remaining()) {
+                throw in.corrupt();
+            }
+
+            Material[] materials = new Material[materialCount];
+            for (int i = 0; i < materialCount; i++) {
+                materials[i] = new Material(in.readVector(), in.readVector(), in.readDouble(), in.readVector(),
+                        in.readDouble());
+            }
+            List<Light> lights = new ArrayList<>(lightCount);
+            for (int i = 0; i < lightCount; i++) {
+                lights.add(new Light(in.readVector(), in.readVector(), in.readDouble(), in.readDouble(),
+                        in.readDouble()));
+            }
+
+            Primitives primitives = new Primitives(in, materials, sphereCount, boxCount, planeCount, surfaceCount);
+            if (!primitives.isValid()) {
+                throw in.corrupt();
+            }
+            Scene scene = new Scene(bgColor, shadowRays, recursionDepth, camera, primitives, lights);
+            if ((flags & HAS_BVH) != 0) {
+                int[] spheresBefore = in.readInts(sphereCount + boxCount + 1);
+                // Every position holds a sphere or a box
+                if (spheresBefore[0] != 0 || spheresBefore[sphereCount + boxCount] != sphereCount) {
+                    throw in.corrupt();
+                }
+                for (int i = 0; i < sphereCount + boxCount; i++) {
+                    int spheres = spheresBefore[i + 1] - spheresBefore[i];
+                    if (spheres != 0 && spheres != 1) {
+                        throw in.corrupt();
+                    }
+                }
+                scene.compiled = new CompiledScene(primitives, new BVH(in, sphereCount + boxCount), spheresBefore);
+            }
+            return scene;
+        }
+    }
+
+    /**
+     * The primitive arrays of a compiled scene file. Also a read-only list of the
+     * scene's surfaces, in the scene file's order, whose surfaces are created
+     * when they are accessed.
+     */
+    static class Primitives extends AbstractList<Surface> {
+        final Material[] materials;
+
+        final double[] sphereCx, sphereCy, sphereCz, sphereR;
+        final int[] sphereMaterial;
+
+        final double[] boxX, boxY, boxZ, boxLength;
+        final double[] boxMinX, boxMinY, boxMinZ, boxMaxX, boxMaxY, boxMaxZ;
+        final int[] boxMaterial;
+
+        final double[] planeNx, planeNy, planeNz, planeDistance;
+        final int[] planeMaterial;
+
+        private final int[] primitives; // The primitive of every surface
+
+        Primitives(Input in, Material[] materials, int sphereCount, int boxCount, int planeCount, int surfaceCount)
+                throws IOException {
+            this.materials = materials;
+
+            this.sphereCx = in.readDoubles(sphereCount);
+            this.sphereCy = in.readDoubles(sphereCount);
+            this.sphereCz = in.readDoubles(sphereCount);
+            this.sphereR = in.readDoubles(sphereCount);
+            this.sphereMaterial = in.readInts(sphereCount);
+
+            this.boxX = in.readDoubles(boxCount);
+            this.boxY = in.readDoubles(boxCount);
+            this.boxZ = in.readDoubles(boxCount);
+            this.boxLength = in.readDoubles(boxCount);
+            this.boxMaterial = in.readInts(boxCount);
+            this.boxMinX = new double[boxCount];
+            this.boxMinY = new double[boxCount];
+            this.boxMinZ = new double[boxCount];
+            this.boxMaxX = new double[boxCount];
+            this.boxMaxY = new double[boxCount];
+            this.boxMaxZ = new double[boxCount];
+            for (int i = 0; i < boxCount; i++) {
+                // The same calculation as `Box`
+                this.boxMinX[i] = this.boxX[i] - this.boxLength[i] / 2;
+                this.boxMinY[i] = this.boxY[i] - this.boxLength[i] / 2;
+                this.boxMinZ[i] = this.boxZ[i] - this.boxLength[i] / 2;
+                this.boxMaxX[i] = this.boxX[i] + this.boxLength[i] / 2;
+                this.boxMaxY[i] = this.boxY[i] + this.boxLength[i] / 2;
+                this.boxMaxZ[i] = this.boxZ[i] + this.boxLength[i] / 2;
+            }
+
+            this.planeNx = in.readDoubles(planeCount);
+            this.planeNy = in.readDoubles(planeCount);
+            this.planeNz = in.readDoubles(planeCount);
+            this.planeDistance = in.readDoubles(planeCount);
+            this.planeMaterial = in.readInts(planeCount);
+
+            this.primitives = in.readInts(surfaceCount);
+        }
+
+        /**
+         * Check that the materials and the surfaces' primitives read from the file
+         * refer to existing materials and primitives.
+         *
+         * @return If they all do.
+         */
+        boolean isValid() {
+            if (!this.validMaterials(this.sphereMaterial) || !this.validMaterials(this.boxMaterial)
+                    || !this.validMaterials(this.planeMaterial)) {
+                return false;
+            }
+            for (int primitive : this.primitives) {
+                int i = CompiledScene.index(primitive);
+                switch (CompiledScene.type(primitive)) {
+                case CompiledScene.SPHERE: {
+                    if (i >= this.sphereCx.length) {
+                        return false;
+                    }
+                    break;
+                }
+                case CompiledScene.BOX: {
+                    if (i >= this.boxX.length) {
+                        return false;
+                    }
+                    break;
+                }
+                case CompiledScene.PLANE: {
+                    if (i >= this.planeNx.length) {
+                        return false;
+                    }
+                    break;
+                }
+                default: {
+                    return false;
+                }
+                }
+            }
+            return true;
+        }
+
+        private boolean validMaterials(int[] indices) {
+            for (int material : indices) {
+                if (material < 0 || material >= this.materials.length) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return The primitive (see `CompiledScene`) of a surface.
+         */
+        int primitive(int surface) {
+            return this.primitives[surface];
+        }
+
+        @Override
+        public Surface get(int surface) {
+            int primitive = this.primitives[surface];
+            int i = CompiledScene.index(primitive);
+            switch (CompiledScene.type(primitive)) {
+            case CompiledScene.SPHERE: {
+                return new Sphere(new Vector(this.sphereCx[i], this.sphereCy[i], this.sphereCz[i]), this.sphereR[i],
+                        this.materials[this.sphereMaterial[i]]);
+            }
+            case CompiledScene.BOX: {
+                return new Box(new Vector(this.boxX[i], this.boxY[i], this.boxZ[i]), this.boxLength[i],
+                        this.materials[this.boxMaterial[i]]);
+            }
+            default: {
+                // case CompiledScene.PLANE:
+                return Plane.ofUnitNormal(new Vector(this.planeNx[i], this.planeNy[i], this.planeNz[i]),
+                        this.planeDistance[i], this.materials[this.planeMaterial[i]]);
+            }
+
+            }
+        }
+
+        @Override
+        public int size() {
+            return this.primitives.length;
+        }
+    }
+
+    /**
+     * Writes a compiled scene file through a buffer.
+     */
+    static class Output implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        private long position; // The number of bytes written so far
+
+        Output(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        private void reserve(int bytes) throws IOException {
+            if (this.buffer.remaining() < bytes) {
+                this.flush();
+            }
+            this.position += bytes;
+        }
+
+        private void flush() throws IOException {
+            this.buffer.flip();
+            while (this.buffer.hasRemaining()) {
+                this.channel.write(this.buffer);
+            }
+            this.buffer.clear();
+        }
+
+        // Pad to a multiple of 8 bytes, where the next array starts
+        private void align() throws IOException {
+            while (this.position % 8 != 0) {
+                this.reserve(1);
+                this.buffer.put((byte) 0);
+            }
+        }
+
+        void writeBytes(byte[] values) throws IOException {
+            this.reserve(values.length);
+            this.buffer.put(values);
+        }
+
+        void writeInt(int value) throws IOException {
+            this.reserve(Integer.BYTES);
+            this.buffer.putInt(value);
+        }
+
+        void writeDouble(double value) throws IOException {
+            this.reserve(Double.BYTES);
+            this.buffer.putDouble(value);
+        }
+
+        void writeVector(Vector vector) throws IOException {
+            this.writeDouble(vector.x);
+            this.writeDouble(vector.y);
+            this.writeDouble(vector.z);
+        }
+
+        void writeInts(int[] values, int count) throws IOException {
+            this.align();
+            for (int done = 0; done < count;) {
+                int n = Math.min(count - done, this.buffer.capacity() / Integer.BYTES);
+                this.reserve(n * Integer.BYTES);
+                this.buffer.asIntBuffer().put(values, done, n);
+                this.buffer.position(this.buffer.position() + n * Integer.BYTES);
+                done += n;
+            }
+            this.align();
+        }
+
+        void writeDoubles(double[] values, int count) throws IOException {
+            this.align();
+            for (int done = 0; done < count;) {
+                int n = Math.min(count - done, this.buffer.capacity() / Double.BYTES);
+                this.reserve(n * Double.BYTES);
+                this.buffer.asDoubleBuffer().put(values, done, n);
+                this.buffer.position(this.buffer.position() + n * Double.BYTES);
+                done += n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                this.flush();
+            } finally {
+                this.channel.close();
+            }
+        }
+    }
+
+    /**
+     * Reads a compiled scene file, memory mapped a window at a time (a mapping
+     * can't be larger than 2GB), copying arrays out of the mapping in bulk.
+     */
+    static class Input implements Closeable {
+        private static final long WINDOW_SIZE = 1L << 30;
+
+        private final Path path;
+        private final FileChannel channel;
+        private final long size;
+        private ByteBuffer window;
+        private long windowStart; // The position of `window` in the file
+
+        Input(Path path) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.size = this.channel.size();
+            this.map(0);
+        }
+
+        private void map(long start) throws IOException {
+            this.windowStart = start;
+            this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, start,
+                    Math.min(WINDOW_SIZE, this.size - start)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        // Make sure the next `bytes` bytes are in the window
+        private void require(int bytes) throws IOException {
+            if (this.window.remaining() < bytes) {
+                long position = this.windowStart + this.window.position();
+                if (this.size - position < bytes) {
+                    throw new IOException("Unexpected end of compiled scene file " + this.path);
+                }
+                this.map(position);
+            }
+        }
+
+        /**
+         * @return The number of bytes left in the file.
+         */
+        long remaining() {
+            return this.size - (this.windowStart + this.window.position());
+        }
+
+        /**
+         * @return The error reported for a file whose contents don't make sense,
+         *         such as counts that don't fit in it, or indices out of range.
+         */
+        RayTracer.RayTracerException corrupt() {
+            return new RayTracer.RayTracerException("Corrupt compiled scene file " + this.path + ".");
+        }
+
+        // Make sure an array of `count` values of `bytes` bytes each fits in the rest of the file
+        private void requireArray(int count, int bytes) throws IOException {
+            if (count < 0 || (long) count * bytes > this.remaining()) {
+                throw new IOException("Unexpected end of compiled scene file " + this.path);
+            }
+        }
+
+        private void align() throws IOException {
+            int padding = (int) ((8 - (this.windowStart + this.window.position()) % 8) % 8);
+            this.require(padding);
+            this.window.position(this.window.position() + padding);
+        }
+
+        byte[] readBytes(int count) throws IOException {
+            this.requireArray(count, 1);
+            byte[] values = new byte[count];
+            this.require(count);
+            this.window.get(values);
+            return values;
+        }
+
+        int readInt() throws IOException {
+            this.require(Integer.BYTES);
+            return this.window.getInt();
+        }
+
+        double readDouble() throws IOException {
+            this.require(Double.BYTES);
+            return this.window.getDouble();
+        }
+
+        Vector readVector() throws IOException {
+            return new Vector(this.readDouble(), this.readDouble(), this.readDouble());
+        }
+
+        int[] readInts(int count) throws IOException {
+            this.align();
+            this.requireArray(count, Integer.BYTES);
+            int[] values = new int[count];
+            for (int done = 0; done < count;) {
+                this.require(Integer.BYTES);
+                int n = Math.min(count - done, this.window.remaining() / Integer.BYTES);
+                this.window.asIntBuffer().get(values, done, n);
+                this.window.position(this.window.position() + n * Integer.BYTES);
+                done += n;
+            }
+            this.align();
+            return values;
+        }
+
+        double[] readDoubles(int count) throws IOException {
+            this.align();
+            this.requireArray(count, Double.BYTES);
+            double[] values = new double[count];
+            for (int done = 0; done < count;) {
+                this.require(Double.BYTES);
+                int n = Math.min(count - done, this.window.remaining() / Double.BYTES);
+                this.window.asDoubleBuffer().get(values, done, n);
+                this.window.position(this.window.position() + n * Double.BYTES);
+                done += n;
+            }
+            return values;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+}
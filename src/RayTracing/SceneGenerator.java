@@ -0,0 +1,170 @@
+package RayTracing;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+/**
+ * Generates random scene files of any size, for stress testing and
+ * benchmarking: spheres and boxes scattered in a cube around the origin,
+ * planes around them, lights above them and a mix of diffuse, reflective and
+ * transparent materials. The cube grows with the number of objects, so that
+ * their density, and so the depth complexity of the image, stays about the
+ * same. The same settings and seed always generate the same scene.
+ *
+ * Run it as `SceneGenerator scene.txt` with any of `--spheres=N`,
+ * `--boxes=N`, `--planes=N`, `--lights=N`, `--light-radius=R`,
+ * `--materials=N`, `--reflective=F`, `--transparent=F`, `--shadow-rays=N`,
+ * `--recursion-depth=N` and `--seed=S`.
+ */
+public class SceneGenerator {
+    public int spheres = 1000;
+    public int boxes = 0;
+    public int planes = 1; // The first is a floor under the objects
+    public int lights = 2;
+    public double lightRadius = 1; // The radius of the lights, for soft shadows
+    public int materials = 8;
+    public double reflective = 0.25; // The fraction of the materials that reflect
+    public double transparent = 0.125; // The fraction of the materials that are transparent
+    public int shadowRays = 1;
+    public int recursionDepth = 3;
+    public long seed = 0;
+
+    private static final double SPACING = 2; // The side of the cube of space per object
+
+    /**
+     * Get the half side of the cube the objects are scattered in.
+     *
+     * @return The cube's half side.
+     */
+    public double extent() {
+        return Math.max(2, Math.cbrt(this.spheres + this.boxes) * SPACING / 2);
+    }
+
+    /**
+     * Write the scene to a file.
+     *
+     * @param path The scene file.
+     */
+    public void write(Path path) throws IOException {
+        try (Writer out = Files.newBufferedWriter(path, StandardCharsets.US_ASCII)) {
+            this.write(out);
+        }
+    }
+
+    /**
+     * Write the scene, in the scene file format.
+     *
+     * @param out Receives the scene file's lines.
+     */
+    public void write(Writer out) throws IOException {
+        SplittableRandom random = new SplittableRandom(this.seed);
+        double extent = this.extent();
+
+        line(out, "# Generated scene: %d spheres, %d boxes, %d planes, %d lights of radius %s, seed %d",
+                this.spheres, this.boxes, this.planes, this.lights, this.lightRadius, this.seed);
+        line(out, "cam 0 %f %f   0 0 0   0 1 0   1.2 1.5", 0.8 * extent, -3 * extent - 5);
+        line(out, "set 0.1 0.1 0.15   %d   %d", this.shadowRays, this.recursionDepth);
+
+        // The reflective materials first, then the transparent ones, then the diffuse ones
+        int reflective = (int) Math.round(this.materials * this.reflective);
+        int transparent = Math.min(this.materials - reflective, (int) Math.round(this.materials * this.transparent));
+        for (int i = 0; i < this.materials; i++) {
+            double reflection = i < reflective ? 0.2 + 0.6 * random.nextDouble() : 0;
+            double transparency = i >= reflective && i < reflective + transparent ? 0.3 + 0.4 * random.nextDouble()
+                    : 0;
+            line(out, "mtl %f %f %f   0.4 0.4 0.4   %f %f %f   %d   %f", random.nextDouble(), random.nextDouble(),
+                    random.nextDouble(), reflection, reflection, reflection, 5 + random.nextInt(46), transparency);
+        }
+
+        for (int i = 0; i < this.spheres; i++) {
+            line(out, "sph %f %f %f %f %d", coordinate(random, extent), coordinate(random, extent),
+                    coordinate(random, extent), 0.2 + 0.5 * random.nextDouble(), 1 + random.nextInt(this.materials));
+        }
+        for (int i = 0; i < this.boxes; i++) {
+            line(out, "box %f %f %f %f %d", coordinate(random, extent), coordinate(random, extent),
+                    coordinate(random, extent), 0.3 + 0.8 * random.nextDouble(), 1 + random.nextInt(this.materials));
+        }
+        for (int i = 0; i < this.planes; i++) {
+            if (i == 0) {
+                line(out, "pln 0 1 0 %f %d", -extent - 1, 1 + random.nextInt(this.materials));
+                continue;
+            }
+            // Behind the objects, tilted towards the camera, so they never block its view
+            Vector normal = new Vector(random.nextDouble() - 0.5, random.nextDouble() - 0.5, -1).normalize();
+            line(out, "pln %f %f %f %f %d", normal.x, normal.y, normal.z, -2 * extent - 2,
+                    1 + random.nextInt(this.materials));
+        }
+
+        for (int i = 0; i < this.lights; i++) {
+            // On a ring above the objects
+            double angle = 2 * Math.PI * (i + random.nextDouble()) / this.lights;
+            double distance = 2 * extent + 5;
+            line(out, "lgt %f %f %f   %f %f %f   1   0.8   %f", distance * Math.cos(angle),
+                    distance * (0.5 + 0.5 * random.nextDouble()), distance * Math.sin(angle),
+                    0.5 + 0.5 * random.nextDouble(), 0.5 + 0.5 * random.nextDouble(), 0.5 + 0.5 * random.nextDouble(),
+                    this.lightRadius);
+        }
+    }
+
+    private static double coordinate(SplittableRandom random, double extent) {
+        return (2 * random.nextDouble() - 1) * extent;
+    }
+
+    private static void line(Writer out, String format, Object... args) throws IOException {
+        out.write(String.format(Locale.ROOT, format, args));
+        out.write('\n');
+    }
+
+    public static void main(String[] args) {
+        try {
+            SceneGenerator generator = new SceneGenerator();
+            String fileName = null;
+            for (String arg : args) {
+                if (arg.startsWith("--spheres=")) {
+                    generator.spheres = Integer.parseInt(arg.substring("--spheres=".length()));
+                } else if (arg.startsWith("--boxes=")) {
+                    generator.boxes = Integer.parseInt(arg.substring("--boxes=".length()));
+                } else if (arg.startsWith("--planes=")) {
+                    generator.planes = Integer.parseInt(arg.substring("--planes=".length()));
+                } else if (arg.startsWith("--lights=")) {
+                    generator.lights = Integer.parseInt(arg.substring("--lights=".length()));
+                } else if (arg.startsWith("--light-radius=")) {
+                    generator.lightRadius = Double.parseDouble(arg.substring("--light-radius=".length()));
+                } else if (arg.startsWith("--materials=")) {
+                    generator.materials = Integer.parseInt(arg.substring("--materials=".length()));
+                } else if (arg.startsWith("--reflective=")) {
+                    generator.reflective = Double.parseDouble(arg.substring("--reflective=".length()));
+                } else if (arg.startsWith("--transparent=")) {
+                    generator.transparent = Double.parseDouble(arg.substring("--transparent=".length()));
+                } else if (arg.startsWith("--shadow-rays=")) {
+                    generator.shadowRays = Integer.parseInt(arg.substring("--shadow-rays=".length()));
+                } else if (arg.startsWith("--recursion-depth=")) {
+                    generator.recursionDepth = Integer.parseInt(arg.substring("--recursion-depth=".length()));
+                } else if (arg.startsWith("--seed=")) {
+                    generator.seed = Long.parseLong(arg.substring("--seed=".length()));
+                } else if (arg.startsWith("--")) {
+                    throw new RayTracer.RayTracerException("Unknown option: " + arg);
+                } else {
+                    fileName = arg;
+                }
+            }
+            if (fileName == null)
+                throw new RayTracer.RayTracerException("Please specify an output scene file.");
+            if (generator.materials < 1)
+                throw new RayTracer.RayTracerException("A scene needs at least one material.");
+            if (generator.spheres < 0 || generator.boxes < 0 || generator.planes < 0 || generator.lights < 0)
+                throw new RayTracer.RayTracerException("The numbers of objects and lights can't be negative.");
+
+            generator.write(Paths.get(fileName));
+            System.out.println("Generated scene file " + fileName);
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        }
+    }
+}
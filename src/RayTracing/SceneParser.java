@@ -0,0 +1,574 @@
+package RayTracing;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Parses scene files.
+ *
+ * Scene file lines are applied in order: every line may refer to the camera,
+ * the settings and the materials defined by the lines before it. Besides the
+ * line by line parser, there is a fast parser for large generated scenes (see
+ * `parseFast`), which gives the same scene.
+ */
+public class SceneParser {
+    private static final long MIN_CHUNK_SIZE = 1 << 20; // Smaller files aren't split, in bytes
+    private static final long MAX_CHUNK_SIZE = 1 << 30; // A chunk is mapped into memory as a whole, in bytes
+
+    private final double aspectRatio; // The aspect ratio of the rendered image
+    private final boolean quiet; // If true, a message isn't printed for every line
+
+    // The entities defined by the lines parsed so far
+    private Camera camera;
+    private Scene scene;
+    private final List<Material> materials = new ArrayList<>();
+
+    /**
+     * @param aspectRatio The aspect ratio (height / width) of the rendered image.
+     * @param quiet       If true, a message isn't printed for every line.
+     */
+    public SceneParser(double aspectRatio, boolean quiet) {
+        this.aspectRatio = aspectRatio;
+        this.quiet = quiet;
+    }
+
+    /**
+     * Parse a scene file, line by line.
+     *
+     * @param sceneFileName The scene file.
+     * @return The scene.
+     */
+    public Scene parse(String sceneFileName) throws IOException, RayTracer.RayTracerException {
+        FileReader fr = new FileReader(sceneFileName);
+
+        BufferedReader r = new BufferedReader(fr);
+        String line = null;
+        int lineNum = 0;
+        System.out.println("Started parsing scene file " + sceneFileName);
+
+        while ((line = r.readLine()) != null) {
+            ++lineNum;
+            this.parseLine(line, lineNum);
+        }
+
+        // It is recommended that you check here that the scene is valid,
+        // for example camera settings and all necessary materials were defined.
+        r.close();
+        System.out.println("Finished parsing scene file " + sceneFileName);
+        return this.scene;
+    }
+
+    /**
+     * Apply a line of a scene file.
+     *
+     * @param line    The line, without the line terminator.
+     * @param lineNum The line's number in the file, for messages.
+     */
+    void parseLine(String line, int lineNum) throws RayTracer.RayTracerException {
+        line = line.trim();
+
+        if (line.isEmpty() || (line.charAt(0) == '#')) { // This line in the scene file is a comment
+            return;
+        }
+        String code = line.substring(0, 3).toLowerCase();
+        // Split according to white space characters:
+        String[] params = line.substring(3).trim().toLowerCase().split("\\s+");
+
+        if (code.equals("cam")) {
+            this.camera = camera(params, this.aspectRatio);
+            this.log("Parsed camera parameters (line %d)", lineNum);
+        } else if (code.equals("set")) {
+            /*
+             * Scene input format: 0:bgColor(r) 1:bgColor(g) 2:bgColor(b) 3:shadowRays
+             * 4:recursionDepth
+             */
+            this.scene = new Scene(
+                    new Vector(Double.parseDouble(params[0]), Double.parseDouble(params[1]),
+                            Double.parseDouble(params[2])),
+                    Integer.parseInt(params[3]), Integer.parseInt(params[4]), this.camera, new ArrayList<Surface>(),
+                    new ArrayList<Light>());
+            this.log("Parsed general settings (line %d)", lineNum);
+        } else if (code.equals("mtl")) {
+            /*
+             * Material input format: 0:diffuse(r) 1:diffuse(g) 2:diffuse(b)
+             * 3:specular(r) 4:specular(g) 5:specular(b)
+             * 6:reflection(r) 7:reflection(g) 8:reflection(b)
+             * 9:phong 10:transparency
+             */
+            this.materials.add(new Material(
+                    new Vector(Double.parseDouble(params[0]), Double.parseDouble(params[1]),
+                            Double.parseDouble(params[2])),
+                    new Vector(Double.parseDouble(params[3]), Double.parseDouble(params[4]),
+                            Double.parseDouble(params[5])),
+                    Double.parseDouble(params[9]),
+                    new Vector(Double.parseDouble(params[6]), Double.parseDouble(params[7]),
+                            Double.parseDouble(params[8])),
+                    Double.parseDouble(params[10])));
+            this.log("Parsed material (line %d)", lineNum);
+        } else if (code.equals("sph")) {
+            /*
+             * Sphere input format: 0:pos(x) 1:pos(y) 2:pos(z) 3:radius 4:mat_index
+             */
+            this.addSphere(Double.parseDouble(params[0]), Double.parseDouble(params[1]), Double.parseDouble(params[2]),
+                    Double.parseDouble(params[3]), Integer.parseInt(params[4]), lineNum);
+        } else if (code.equals("pln")) {
+            /*
+             * Plane input format: 0:pos(x) 1:pos(y) 2:pos(z) 3:offset 4:mat_index
+             */
+            this.addPlane(Double.parseDouble(params[0]), Double.parseDouble(params[1]), Double.parseDouble(params[2]),
+                    Double.parseDouble(params[3]), Integer.parseInt(params[4]), lineNum);
+        } else if (code.equals("lgt")) {
+            /*
+             * Light input format: 0:pos(x) 1:pos(y) 2:pos(z)
+             * 3:r 4:g 5:b
+             * 6:specular 7:shadow 8: radius
+             */
+            this.scene.addLight(new Light(
+                    new Vector(Double.parseDouble(params[0]), Double.parseDouble(params[1]),
+                            Double.parseDouble(params[2])),
+                    new Vector(Double.parseDouble(params[3]), Double.parseDouble(params[4]),
+                            Double.parseDouble(params[5])),
+                    Double.parseDouble(params[6]), Double.parseDouble(params[7]), Double.parseDouble(params[8])));
+            this.log("Parsed light (line %d)", lineNum);
+        } else if (code.equals("box")) {
+            /*
+             * Box input format: 0:pos(x) 1:pos(y) 2:pos(z) 3:length 4:mat_index
+             */
+            this.addBox(Double.parseDouble(params[0]), Double.parseDouble(params[1]), Double.parseDouble(params[2]),
+                    Double.parseDouble(params[3]), Integer.parseInt(params[4]), lineNum);
+        } else {
+            System.out.println(String.format("ERROR: Did not recognize object: %s (line %d)", code, lineNum));
+        }
+    }
+
+    /**
+     * Create a camera from the parameters of a `cam` line.
+     *
+     * Camera input format: 0:pos(x) 1:pos(y) 2:pos(z)
+     * 3:lookat(x) 4:lookat(y) 5:lookat(z)
+     * 6:up(x) 7:up(y) 8:up(z)
+     * 9:screenDistance 10:screenWidth
+     * 11:fisheye(optional) 12:fisheyeParam(optional)
+     *
+     * @param params      The line's parameters, after the `cam` code.
+     * @param aspectRatio The aspect ratio (height / width) of the rendered image.
+     * @return The camera.
+     */
+    public static Camera camera(String[] params, double aspectRatio) {
+        return new Camera(
+                new Vector(Double.parseDouble(params[0]), Double.parseDouble(params[1]),
+                        Double.parseDouble(params[2])),
+                new Vector(Double.parseDouble(params[3]), Double.parseDouble(params[4]),
+                        Double.parseDouble(params[5])),
+                new Vector(Double.parseDouble(params[6]), Double.parseDouble(params[7]),
+                        Double.parseDouble(params[8])),
+                Double.parseDouble(params[9]), Double.parseDouble(params[10]), aspectRatio,
+                params.length >= 12 && Boolean.parseBoolean(params[11]),
+                params.length >= 13 ? Double.parseDouble(params[12]) : 0.5);
+    }
+
+    private void addSphere(double x, double y, double z, double radius, int material, int lineNum) {
+        this.scene.addObject(new Sphere(new Vector(x, y, z), radius, this.materials.get(material - 1)));
+        this.log("Parsed sphere (line %d)", lineNum);
+    }
+
+    private void addPlane(double x, double y, double z, double offset, int material, int lineNum) {
+        this.scene.addObject(new Plane(new Vector(x, y, z), offset, this.materials.get(material - 1)));
+        this.log("Parsed plane (line %d)", lineNum);
+    }
+
+    private void addBox(double x, double y, double z, double length, int material, int lineNum) {
+        this.scene.addObject(new Box(new Vector(x, y, z), length, this.materials.get(material - 1)));
+        this.log("Parsed box (line %d)", lineNum);
+    }
+
+    private void log(String format, int lineNum) {
+        if (!this.quiet) {
+            System.out.println(String.format(format, lineNum));
+        }
+    }
+
+    /**
+     * Parse a scene file, for large files. The file is mapped into memory, split
+     * into chunks of whole lines and the chunks are tokenized in parallel. The
+     * numbers of sphere, box and plane lines are parsed straight from the bytes,
+     * without creating strings; all other lines are kept as strings. The lines
+     * are then applied in order, so the result is the same as `parse`'s.
+     *
+     * @param sceneFileName The scene file.
+     * @param threads       The number of chunks parsed at once.
+     * @return The scene.
+     */
+    public Scene parseFast(String sceneFileName, int threads) throws IOException, RayTracer.RayTracerException {
+        System.out.println("Started parsing scene file " + sceneFileName);
+        try (FileChannel channel = FileChannel.open(Paths.get(sceneFileName), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, size / (4 * threads) + 1));
+            List<Long> starts = new ArrayList<>();
+            for (long start = 0; start < size; start = nextLine(channel, start + chunkSize, size)) {
+                starts.add(start);
+            }
+            starts.add(size);
+
+            List<Chunk> chunks = new ArrayList<>();
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                List<Future<Chunk>> futures = new ArrayList<>();
+                for (int i = 0; i + 1 < starts.size(); i++) {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, starts.get(i),
+                            starts.get(i + 1) - starts.get(i));
+                    futures.add(pool.submit(() -> Chunk.parse(buffer)));
+                }
+                for (Future<Chunk> future : futures) {
+                    chunks.add(future.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+
+            int firstLine = 0;
+            for (Chunk chunk : chunks) {
+                chunk.apply(this, firstLine);
+                firstLine += chunk.lineCount;
+            }
+        }
+        System.out.println("Finished parsing scene file " + sceneFileName);
+        return this.scene;
+    }
+
+    /**
+     * @return The position following the first line feed at or after `position`,
+     *         or `size` if there is none.
+     */
+    private static long nextLine(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * The lines of a part of a scene file. The numbers of sphere, box and plane
+     * lines are kept in arrays, other lines as strings.
+     */
+    private static class Chunk {
+        // The kinds of lines
+        private static final byte SPHERE = 0;
+        private static final byte BOX = 1;
+        private static final byte PLANE = 2;
+        private static final byte OTHER = 3; // A line applied by `parseLine`
+
+        private int count; // The number of kept (non empty) lines
+        private byte[] kinds = new byte[64];
+        private int[] lines = new int[64]; // The number of the line within the chunk
+        private double[] values = new double[4 * 64]; // The four numbers of every object line
+        private int[] materials = new int[64]; // The material index of object lines, the index in `others` for others
+        private final List<String> others = new ArrayList<>();
+        private int lineCount; // The number of lines in the chunk
+
+        // Scratch for the parameters of the current line
+        private final double[] numbers = new double[4];
+        private int material;
+
+        /**
+         * Tokenize the lines in a buffer, which holds whole lines.
+         */
+        static Chunk parse(ByteBuffer buffer) {
+            Chunk chunk = new Chunk();
+            int end = buffer.limit();
+            int start = 0;
+            while (start < end) {
+                // Lines end with a line feed, a carriage return or both, like in `BufferedReader`
+                int lineEnd = start;
+                while (lineEnd < end && buffer.get(lineEnd) != '\n' && buffer.get(lineEnd) != '\r') {
+                    lineEnd++;
+                }
+                chunk.lineCount++;
+                chunk.parseLine(buffer, start, lineEnd, chunk.lineCount);
+                start = lineEnd + 1;
+                if (lineEnd < end && buffer.get(lineEnd) == '\r' && start < end && buffer.get(start) == '\n') {
+                    start++;
+                }
+            }
+            return chunk;
+        }
+
+        private void parseLine(ByteBuffer buffer, int start, int end, int lineNum) {
+            // Trim, like `String.trim`
+            while (start < end && (buffer.get(start) & 0xFF) <= ' ') {
+                start++;
+            }
+            while (end > start && (buffer.get(end - 1) & 0xFF) <= ' ') {
+                end--;
+            }
+            if (start == end || buffer.get(start) == '#') {
+                return;
+            }
+            byte kind = end - start > 3 ? objectKind(buffer, start) : OTHER;
+            if (kind != OTHER && this.parseObject(buffer, start + 3, end)) {
+                this.add(kind, lineNum, this.material);
+                return;
+            }
+            // Not a plain object line, leave it to `parseLine`
+            byte[] bytes = new byte[end - start];
+            buffer.get(start, bytes);
+            this.add(OTHER, lineNum, this.others.size());
+            this.others.add(new String(bytes, Charset.defaultCharset()));
+        }
+
+        /**
+         * @return The kind of object of a line, from its first three characters.
+         */
+        private static byte objectKind(ByteBuffer buffer, int start) {
+            // Lowercase ASCII letters (and make other characters not match)
+            int a = buffer.get(start) | 0x20, b = buffer.get(start + 1) | 0x20, c = buffer.get(start + 2) | 0x20;
+            if (a == 's' && b == 'p' && c == 'h') {
+                return SPHERE;
+            } else if (a == 'b' && b == 'o' && c == 'x') {
+                return BOX;
+            } else if (a == 'p' && b == 'l' && c == 'n') {
+                return PLANE;
+            }
+            return OTHER;
+        }
+
+        /**
+         * Parse the parameters of an object line (four numbers and a material
+         * index) into `numbers` and `material`.
+         *
+         * @return False if the line contains anything but printable ASCII
+         *         characters and white space, or has less than five parameters,
+         *         and should be parsed as a string.
+         */
+        private boolean parseObject(ByteBuffer buffer, int start, int end) {
+            for (int i = start; i < end; i++) {
+                int c = buffer.get(i);
+                if ((c < ' ' && !isWhitespace(c)) || c >= 0x7F) {
+                    return false;
+                }
+            }
+            int position = start;
+            for (int i = 0; i < 4; i++) {
+                while (position < end && isWhitespace(buffer.get(position))) {
+                    position++;
+                }
+                int tokenEnd = position;
+                while (tokenEnd < end && !isWhitespace(buffer.get(tokenEnd))) {
+                    tokenEnd++;
+                }
+                if (position == tokenEnd) {
+                    return false;
+                }
+                this.numbers[i] = parseDouble(buffer, position, tokenEnd);
+                position = tokenEnd;
+            }
+            while (position < end && isWhitespace(buffer.get(position))) {
+                position++;
+            }
+            int tokenEnd = position;
+            while (tokenEnd < end && !isWhitespace(buffer.get(tokenEnd))) {
+                tokenEnd++;
+            }
+            if (position == tokenEnd) {
+                return false;
+            }
+            this.material = parseInt(buffer, position, tokenEnd);
+            return true;
+        }
+
+        private void add(byte kind, int lineNum, int material) {
+            if (this.count == this.kinds.length) {
+                int capacity = 2 * this.count;
+                this.kinds = Arrays.copyOf(this.kinds, capacity);
+                this.lines = Arrays.copyOf(this.lines, capacity);
+                this.values = Arrays.copyOf(this.values, 4 * capacity);
+                this.materials = Arrays.copyOf(this.materials, capacity);
+            }
+            this.kinds[this.count] = kind;
+            this.lines[this.count] = lineNum;
+            this.materials[this.count] = material;
+            if (kind != OTHER) {
+                System.arraycopy(this.numbers, 0, this.values, 4 * this.count, 4);
+            }
+            this.count++;
+        }
+
+        /**
+         * Apply the chunk's lines, in order.
+         *
+         * @param firstLine The number of lines in the file before the chunk.
+         */
+        void apply(SceneParser parser, int firstLine) throws RayTracer.RayTracerException {
+            for (int i = 0; i < this.count; i++) {
+                int lineNum = firstLine + this.lines[i];
+                double[] v = this.values;
+                int offset = 4 * i;
+                switch (this.kinds[i]) {
+                case SPHERE: {
+                    parser.addSphere(v[offset], v[offset + 1], v[offset + 2], v[offset + 3], this.materials[i],
+                            lineNum);
+                    break;
+                }
+                case BOX: {
+                    parser.addBox(v[offset], v[offset + 1], v[offset + 2], v[offset + 3], this.materials[i], lineNum);
+                    break;
+                }
+                case PLANE: {
+                    parser.addPlane(v[offset], v[offset + 1], v[offset + 2], v[offset + 3], this.materials[i],
+                            lineNum);
+                    break;
+                }
+                default: {
+                    parser.parseLine(this.others.get(this.materials[i]), lineNum);
+                }
+
+                }
+            }
+        }
+
+        /**
+         * @return If a character is white space, as matched by the regular
+         *         expression `\s`.
+         */
+        private static boolean isWhitespace(int c) {
+            return c == ' ' || (c >= '\t' && c <= '\r');
+        }
+    }
+
+    // Powers of ten that are exact doubles
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    /**
+     * Parse a decimal number. Numbers of up to 15 significant digits, whose
+     * exponent is small enough for the power of ten to be exact, are computed with
+     * a single (correctly rounded) multiplication or division. Other numbers are
+     * left to `Double.parseDouble`, which also reports malformed numbers.
+     *
+     * @return The number, the same as `Double.parseDouble` would return.
+     */
+    static double parseDouble(ByteBuffer buffer, int start, int end) {
+        int position = start;
+        boolean negative = false;
+        if (position < end && (buffer.get(position) == '-' || buffer.get(position) == '+')) {
+            negative = buffer.get(position) == '-';
+            position++;
+        }
+        long mantissa = 0;
+        int digits = 0; // Significant digits in `mantissa`
+        int exponent = 0;
+        boolean anyDigit = false;
+        boolean fast = true;
+        while (position < end && buffer.get(position) >= '0' && buffer.get(position) <= '9') {
+            anyDigit = true;
+            if (mantissa != 0 || buffer.get(position) != '0') {
+                if (++digits > 15) {
+                    fast = false;
+                }
+                mantissa = 10 * mantissa + (buffer.get(position) - '0');
+            }
+            position++;
+        }
+        if (position < end && buffer.get(position) == '.') {
+            position++;
+            while (position < end && buffer.get(position) >= '0' && buffer.get(position) <= '9') {
+                anyDigit = true;
+                if (mantissa != 0 || buffer.get(position) != '0') {
+                    if (++digits > 15) {
+                        fast = false;
+                    }
+                    mantissa = 10 * mantissa + (buffer.get(position) - '0');
+                }
+                exponent--;
+                position++;
+            }
+        }
+        if (anyDigit && position < end && (buffer.get(position) | 0x20) == 'e') {
+            position++;
+            boolean negativeExponent = false;
+            if (position < end && (buffer.get(position) == '-' || buffer.get(position) == '+')) {
+                negativeExponent = buffer.get(position) == '-';
+                position++;
+            }
+            int explicit = 0;
+            boolean anyExponentDigit = false;
+            while (position < end && buffer.get(position) >= '0' && buffer.get(position) <= '9') {
+                anyExponentDigit = true;
+                explicit = Math.min(10 * explicit + (buffer.get(position) - '0'), 100000);
+                position++;
+            }
+            fast &= anyExponentDigit;
+            exponent += negativeExponent ? -explicit : explicit;
+        }
+        if (fast && anyDigit && position == end && Math.abs(exponent) <= 22) {
+            double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+            return negative ? -value : value;
+        }
+        return Double.parseDouble(token(buffer, start, end));
+    }
+
+    /**
+     * Parse a decimal integer, failing like `Integer.parseInt` on malformed ones.
+     */
+    static int parseInt(ByteBuffer buffer, int start, int end) {
+        int position = start;
+        boolean negative = false;
+        if (position < end && (buffer.get(position) == '-' || buffer.get(position) == '+')) {
+            negative = buffer.get(position) == '-';
+            position++;
+        }
+        long value = 0;
+        if (position == end || end - position > 9) {
+            return Integer.parseInt(token(buffer, start, end));
+        }
+        for (; position < end; position++) {
+            int digit = buffer.get(position) - '0';
+            if (digit < 0 || digit > 9) {
+                return Integer.parseInt(token(buffer, start, end));
+            }
+            value = 10 * value + digit;
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    /**
+     * @return A token as a (lowercase) string, like the tokens of `parseLine`.
+     */
+    private static String token(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new String(bytes, Charset.defaultCharset()).toLowerCase();
+    }
+}
@@ -0,0 +1,269 @@
+package RayTracing;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Renders the frames of an animated scene (see `Keyframes`), with the scene
+ * loaded once for all of them.
+ *
+ * Between frames, moved spheres and boxes are moved in the compiled scene in
+ * place, and the acceleration structure is refitted to them rather than built
+ * again. Refitting keeps the tree's structure, which fits the primitives worse
+ * as they move, so the tree is built again once its SAH cost (see `BVH.cost`)
+ * grows past `rebuildThreshold` times its cost when it was last built.
+ *
+ * Frames that only differ in the camera and lights share the scene's geometry,
+ * so up to `concurrentFrames` of them are rendered at once, each with its share
+ * of the threads. That keeps the threads busy through the parts of a frame that
+ * don't run in parallel, such as the end of its image's compression. Frames
+ * wait for the frames before them to finish before moving the geometry.
+ */
+public class SequenceRenderer {
+    public static final double DEFAULT_REBUILD_THRESHOLD = 1.5;
+
+    private final RayTracer tracer;
+    private final int concurrentFrames;
+    private final double rebuildThreshold;
+
+    private Scene scene;
+    private List<Surface> surfaces; // The scene's surfaces where they are now
+    private int[] sphereSurfaces; // The index in `surfaces` of every sphere, in the scene file's order
+    private int[] boxSurfaces;
+    private int[] primitives; // The compiled primitive of every surface
+    private double builtCost; // The SAH cost of the acceleration structure when it was built
+    private int refits;
+    private int rebuilds;
+
+    /**
+     * @param tracer           The settings of the frames' renders.
+     * @param concurrentFrames The most frames rendered at once.
+     * @param rebuildThreshold How much the acceleration structure's SAH cost may
+     *                         grow by refitting before it is built again, e.g.
+     *                         1.5 for 50%.
+     */
+    public SequenceRenderer(RayTracer tracer, int concurrentFrames, double rebuildThreshold) {
+        this.tracer = tracer;
+        this.concurrentFrames = concurrentFrames;
+        this.rebuildThreshold = rebuildThreshold;
+    }
+
+    /**
+     * Render the frames of an animation.
+     *
+     * @param sceneFileName     The scene file, text or compiled.
+     * @param keyframesFileName The keyframes file.
+     * @param outputPattern     The frames' image files, as a format of the frame
+     *                          number, e.g. `frame%04d.png`.
+     */
+    public void render(String sceneFileName, String keyframesFileName, String outputPattern)
+            throws IOException, RayTracer.RayTracerException {
+        long startTime = System.currentTimeMillis();
+        if (!outputPattern.contains("%"))
+            throw new RayTracer.RayTracerException(
+                    "The output file name must contain the frame number's format, e.g. frame%04d.png.");
+        Keyframes keyframes = Keyframes.parse(keyframesFileName);
+        this.load(sceneFileName, keyframes);
+        double aspectRatio = (double) this.tracer.imageHeight / this.tracer.imageWidth;
+
+        ExecutorService frames = Executors.newFixedThreadPool(this.concurrentFrames);
+        ArrayDeque<Future<?>> rendering = new ArrayDeque<>();
+        try {
+            Map<Integer, Vector> spheres = null;
+            Map<Integer, Vector> boxes = null;
+            for (int frame = 0; frame < keyframes.frames; frame++) {
+                Map<Integer, Vector> frameSpheres = keyframes.spheres(frame);
+                Map<Integer, Vector> frameBoxes = keyframes.boxes(frame);
+                if (!samePositions(spheres, frameSpheres) || !samePositions(boxes, frameBoxes)) {
+                    // The frames being rendered use the geometry as it is
+                    while (!rendering.isEmpty()) {
+                        finish(rendering.poll());
+                    }
+                    this.move(frameSpheres, frameBoxes);
+                    spheres = frameSpheres;
+                    boxes = frameBoxes;
+                }
+
+                Scene view = this.scene.withCamera(keyframes.camera(this.scene.camera, frame, aspectRatio));
+                List<Light> lights = new ArrayList<>(this.scene.lights);
+                for (Map.Entry<Integer, Vector> light : keyframes.lights(frame).entrySet()) {
+                    Light l = lights.get(light.getKey());
+                    lights.set(light.getKey(),
+                            new Light(light.getValue(), l.color, l.specularIntensity, l.shadowIntensity, l.radius));
+                }
+                view.lights = List.copyOf(lights);
+
+                if (rendering.size() == this.concurrentFrames) {
+                    finish(rendering.poll());
+                }
+                String outputFileName = String.format(outputPattern, frame);
+                RayTracer frameTracer = this.frameTracer();
+                rendering.add(frames.submit(() -> {
+                    frameTracer.renderScene(view, outputFileName);
+                    return null;
+                }));
+            }
+            while (!rendering.isEmpty()) {
+                finish(rendering.poll());
+            }
+        } finally {
+            frames.shutdownNow();
+        }
+
+        long renderTime = System.currentTimeMillis() - startTime;
+        System.out.println("Finished rendering " + keyframes.frames + " frames in " + renderTime
+                + " milliseconds, with " + this.refits + " refits and " + this.rebuilds
+                + " rebuilds of the acceleration structure.");
+    }
+
+    /**
+     * Load the scene, and check that the keyframes refer to its entities.
+     */
+    private void load(String sceneFileName, Keyframes keyframes) throws IOException, RayTracer.RayTracerException {
+        this.scene = this.tracer.parseScene(sceneFileName);
+        this.scene.adaptiveShadows = this.tracer.adaptiveShadows;
+        this.scene.sampler = this.tracer.sampler;
+        this.scene.shadowSamples = this.tracer.shadowSamples;
+        this.scene.minWeight = this.tracer.minWeight;
+        this.scene.rouletteDepth = this.tracer.rouletteDepth;
+        this.scene.freeze();
+
+        this.surfaces = new ArrayList<>(this.scene.sceneObjects);
+        List<Integer> spheres = new ArrayList<>();
+        List<Integer> boxes = new ArrayList<>();
+        for (int i = 0; i < this.surfaces.size(); i++) {
+            if (this.surfaces.get(i) instanceof Sphere) {
+                spheres.add(i);
+            } else if (this.surfaces.get(i) instanceof Box) {
+                boxes.add(i);
+            }
+        }
+        this.sphereSurfaces = spheres.stream().mapToInt(Integer::intValue).toArray();
+        this.boxSurfaces = boxes.stream().mapToInt(Integer::intValue).toArray();
+        check(keyframes.spheres(0), this.sphereSurfaces.length, "sphere");
+        check(keyframes.boxes(0), this.boxSurfaces.length, "box");
+        check(keyframes.lights(0), this.scene.lights.size(), "light");
+
+        this.compiled(this.scene.compiled);
+    }
+
+    private static void check(Map<Integer, Vector> positions, int count, String entity)
+            throws RayTracer.RayTracerException {
+        for (int index : positions.keySet()) {
+            if (index >= count)
+                throw new RayTracer.RayTracerException(
+                        "The keyframes move " + entity + " " + (index + 1) + ", but the scene has " + count + ".");
+        }
+    }
+
+    /**
+     * Use a compiled form of the surfaces, built from them as they are now.
+     */
+    private void compiled(CompiledScene compiled) {
+        this.scene.compiled = compiled;
+        this.primitives = new int[this.surfaces.size()];
+        for (int i = 0; i < compiled.sphereCount; i++) {
+            int primitive = CompiledScene.primitive(i, CompiledScene.SPHERE);
+            this.primitives[compiled.source(primitive)] = primitive;
+        }
+        for (int i = 0; i < compiled.boxCount; i++) {
+            int primitive = CompiledScene.primitive(i, CompiledScene.BOX);
+            this.primitives[compiled.source(primitive)] = primitive;
+        }
+        this.builtCost = compiled.bvh.cost();
+    }
+
+    /**
+     * Move the animated spheres and boxes, and refit the acceleration structure
+     * to them, or build it again if refitting degraded it too much.
+     */
+    private void move(Map<Integer, Vector> spheres, Map<Integer, Vector> boxes) {
+        if (spheres.isEmpty() && boxes.isEmpty()) {
+            return;
+        }
+        CompiledScene compiled = this.scene.compiled;
+        for (Map.Entry<Integer, Vector> sphere : spheres.entrySet()) {
+            int surface = this.sphereSurfaces[sphere.getKey()];
+            Sphere s = (Sphere) this.surfaces.get(surface);
+            Sphere moved = new Sphere(sphere.getValue(), s.radius, s.material);
+            this.surfaces.set(surface, moved);
+            compiled.move(this.primitives[surface], moved);
+        }
+        for (Map.Entry<Integer, Vector> box : boxes.entrySet()) {
+            int surface = this.boxSurfaces[box.getKey()];
+            Box b = (Box) this.surfaces.get(surface);
+            Box moved = new Box(box.getValue(), b.length, b.material);
+            this.surfaces.set(surface, moved);
+            compiled.move(this.primitives[surface], moved);
+        }
+        this.refits++;
+        if (compiled.refit() > this.rebuildThreshold * this.builtCost) {
+            this.compiled(new CompiledScene(List.copyOf(this.surfaces)));
+            this.rebuilds++;
+        }
+    }
+
+    /**
+     * @return If two maps of positions hold exactly the same positions.
+     */
+    private static boolean samePositions(Map<Integer, Vector> a, Map<Integer, Vector> b) {
+        if (a == null || !a.keySet().equals(b.keySet())) {
+            return false;
+        }
+        for (Map.Entry<Integer, Vector> entry : a.entrySet()) {
+            Vector u = entry.getValue();
+            Vector v = b.get(entry.getKey());
+            if (u.x != v.x || u.y != v.y || u.z != v.z) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return A renderer of a frame, with the render's settings and a share of
+     *         its threads.
+     */
+    private RayTracer frameTracer() {
+        RayTracer frameTracer = new RayTracer();
+        frameTracer.imageWidth = this.tracer.imageWidth;
+        frameTracer.imageHeight = this.tracer.imageHeight;
+        frameTracer.threads = Math.max(1, this.tracer.threads / this.concurrentFrames);
+        frameTracer.seed = this.tracer.seed;
+        frameTracer.adaptiveShadows = this.tracer.adaptiveShadows;
+        frameTracer.sampler = this.tracer.sampler;
+        frameTracer.shadowSamples = this.tracer.shadowSamples;
+        frameTracer.minWeight = this.tracer.minWeight;
+        frameTracer.rouletteDepth = this.tracer.rouletteDepth;
+        frameTracer.wavefront = this.tracer.wavefront;
+        frameTracer.sortRays = this.tracer.sortRays;
+        frameTracer.packets = this.tracer.packets;
+        frameTracer.quiet = this.tracer.quiet;
+        frameTracer.pngLevel = this.tracer.pngLevel;
+        return frameTracer;
+    }
+
+    /**
+     * Wait for a frame to be rendered.
+     */
+    private static void finish(Future<?> frame) throws IOException {
+        try {
+            frame.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
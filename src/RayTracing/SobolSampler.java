@@ -0,0 +1,29 @@
+package RayTracing;
+
+/**
+ * The first two dimensions of the Sobol' sequence, randomized per sequence by a
+ * random digital shift (XOR with a random 32 bit value), which keeps its
+ * stratification.
+ */
+public class SobolSampler implements Sampler {
+
+    @Override
+    public double sample(long seed, int index, int dimension) {
+        int bits = dimension == 0 ? Integer.reverse(index) : sobol2(index);
+        bits ^= (int) Sampler.mix(seed, dimension);
+        return (bits & 0xFFFFFFFFL) * 0x1.0p-32;
+    }
+
+    /**
+     * @return The second dimension of the Sobol' sequence, as 32 fraction bits.
+     */
+    private static int sobol2(int index) {
+        int bits = 0;
+        for (int v = 1 << 31; index != 0; index >>>= 1, v ^= v >>> 1) {
+            if ((index & 1) != 0) {
+                bits ^= v;
+            }
+        }
+        return bits;
+    }
+}
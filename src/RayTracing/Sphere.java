@@ -1,7 +1,5 @@
 package RayTracing;
 
-import java.util.Optional;
-
 public class Sphere extends Surface {
     Vector center;
     double radius;
@@ -13,34 +11,36 @@ public class Sphere extends Surface {
     }
 
     @Override
-    public Optional<Pair<Vector, Vector>> intersection(Ray ray) {
+    public boolean intersect(Ray ray, double tMin, double tMax, Hit hit) {
 
         // Calculates the intersection of a ray and a sphere as seen in class
 
-        Vector diff = this.center.sub(ray.origin);
-        double projection = diff.dot(ray.direction);
-
-        // if (projection < 0) {
-        // return Optional.empty();
-        // }
+        double diffX = this.center.x - ray.origin.x;
+        double diffY = this.center.y - ray.origin.y;
+        double diffZ = this.center.z - ray.origin.z;
+        double projection = diffX * ray.direction.x + diffY * ray.direction.y + diffZ * ray.direction.z;
 
-        double squaredDistance = diff.dot(diff) - projection * projection;
+        double squaredDistance = diffX * diffX + diffY * diffY + diffZ * diffZ - projection * projection;
 
         double squaredLength = this.radius * this.radius - squaredDistance;
         if (squaredLength < 0) {
-            return Optional.empty();
+            return false;
         }
 
         double length = Math.sqrt(squaredLength);
         double offset = projection - length;
-        if (offset < 0) {
+        if (offset < tMin) {
             offset = projection + length;
-            if (offset < 0) {
-                return Optional.empty();
-            }
         }
-        Vector intersectionPoint = ray.point(offset);
+        if (offset < tMin || offset >= tMax) {
+            return false;
+        }
+        hit.record(this, offset, 0);
+        return true;
+    }
 
-        return Optional.of(new Pair<Vector, Vector>(intersectionPoint, intersectionPoint.sub(this.center).normalize()));
+    @Override
+    public Vector normal(Hit hit) {
+        return hit.point().sub(this.center).normalize();
     }
 }
@@ -19,6 +19,32 @@ public abstract class Surface {
      * @return A pair of the point of intersection of this and `ray` and the normal
      *         to the surface, if such an intersection exists.
      */
+    public Optional<Pair<Vector, Vector>> intersection(Ray ray) {
+        Hit hit = new Hit(ray);
+        if (!this.intersect(ray, 0, Double.POSITIVE_INFINITY, hit)) {
+            return Optional.empty();
+        }
+        return Optional.of(new Pair<Vector, Vector>(hit.point(), this.normal(hit)));
+    }
+
+    /**
+     * Find the closest intersection of a ray and the surface in a range of
+     * distances along the ray. Only the distance is calculated.
+     * 
+     * @param ray  The ray.
+     * @param tMin The smallest accepted distance from the ray's origin.
+     * @param tMax Intersections at this distance or farther are ignored.
+     * @param hit  If an intersection is found, it is recorded here.
+     * @return If an intersection with `tMin` <= t < `tMax` was found.
+     */
+    public abstract boolean intersect(Ray ray, double tMin, double tMax, Hit hit);
 
-    public abstract Optional<Pair<Vector, Vector>> intersection(Ray ray);
+    /**
+     * Calculate the normal of the surface at an intersection found by
+     * `intersect`.
+     * 
+     * @param hit The intersection.
+     * @return The normal to the surface at `hit.point()`.
+     */
+    public abstract Vector normal(Hit hit);
 }
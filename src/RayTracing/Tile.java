@@ -0,0 +1,71 @@
+package RayTracing;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A rectangular block of pixels in the rendered image.
+ */
+public class Tile {
+    public static final int DEFAULT_SIZE = 32; // The default width and height of a tile, in pixels
+    public static final int PACKET_SIZE = 8; // The width and height of a block of pixels whose camera rays are traced together
+
+    public final int x; // The column of the tile's top left pixel
+    public final int y; // The row of the tile's top left pixel
+    public final int width;
+    public final int height;
+
+    public Tile(int x, int y, int width, int height) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Split a band of rows of an image into tiles, ordered along a Morton
+     * (Z-order) curve so that tiles rendered close together in time also cover
+     * neighbouring parts of the scene.
+     *
+     * @param imageWidth The width of the image, in pixels.
+     * @param y          The band's first row.
+     * @param height     The band's height, in pixels.
+     * @param size       The width and height of a tile. Tiles on the right edge of
+     *                   the image and on the bottom of the band are clipped.
+     * @return The tiles covering the band, in Morton order.
+     */
+    public static List<Tile> band(int imageWidth, int y, int height, int size) {
+        List<Tile> tiles = new ArrayList<>();
+        for (int row = y; row < y + height; row += size) {
+            for (int x = 0; x < imageWidth; x += size) {
+                tiles.add(new Tile(x, row, Math.min(size, imageWidth - x), Math.min(size, y + height - row)));
+            }
+        }
+        tiles.sort(Comparator.comparingLong((Tile tile) -> mortonCode(tile.x / size, (tile.y - y) / size)));
+        return tiles;
+    }
+
+    /**
+     * Interleave the bits of two tile coordinates.
+     *
+     * @return The position of the tile (`column`, `row`) along the Morton curve.
+     */
+    public static long mortonCode(int column, int row) {
+        return spreadBits(column) | (spreadBits(row) << 1);
+    }
+
+    /**
+     * Spread the lower 32 bits of a value so that there is a zero bit between
+     * every two of them.
+     */
+    private static long spreadBits(int value) {
+        long bits = value & 0xFFFFFFFFL;
+        bits = (bits | (bits << 16)) & 0x0000FFFF0000FFFFL;
+        bits = (bits | (bits << 8)) & 0x00FF00FF00FF00FFL;
+        bits = (bits | (bits << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        bits = (bits | (bits << 2)) & 0x3333333333333333L;
+        bits = (bits | (bits << 1)) & 0x5555555555555555L;
+        return bits;
+    }
+}
@@ -0,0 +1,392 @@
+package RayTracing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Renders an image on tile workers (see `TileWorker`), as `--remote` does.
+ *
+ * The image is split into units, bands of `UNIT_TILE_ROWS` rows of tiles, and
+ * every worker gets one unit at a time, on its own connection, so that faster
+ * workers take more units. Units are given out in order, and no further than a
+ * few units per worker ahead of the first unit not written yet, so the image is
+ * written out as it is rendered, with only that window of it in memory.
+ *
+ * A unit is lost when its worker fails, or doesn't answer in
+ * `RayTracer.remoteTimeout` seconds; it is given to another worker, and the
+ * worker connected again, until it fails `MAX_FAILURES` times in a row. Once
+ * there are no units left to give out, a worker that asks for one gets a copy
+ * of the first unit still being rendered, and the first copy rendered is
+ * written, so a slow worker doesn't hold up the end of the image. If all the
+ * workers fail, the coordinator renders the rest of the image itself.
+ *
+ * Workers render the same tiles with the same seeds as `renderScene`, so the
+ * image is the same as a render in a single process.
+ */
+public class TileCoordinator {
+    static final int UNIT_TILE_ROWS = 2; // The rows of tiles in a unit
+    static final int MAX_FAILURES = 3; // A worker's failures in a row before it is given up
+    private static final int WINDOW_PER_WORKER = 4; // How many units ahead of the image a worker may be given
+
+    private final RayTracer tracer;
+    private final int unitRows;
+    private final int units;
+
+    // Guarded by `this`:
+    private final TreeSet<Integer> pending = new TreeSet<>(); // The units not given out
+    private final int[] holders; // The number of workers rendering each unit
+    private final byte[][] rendered; // The rendered units not written yet
+    private int nextToWrite; // The first unit not written yet
+    private int liveLinks; // The workers not given up
+    private boolean finished;
+
+    /**
+     * @param tracer The render's settings, with its workers in `remoteWorkers`.
+     */
+    public TileCoordinator(RayTracer tracer) {
+        this.tracer = tracer;
+        this.unitRows = UNIT_TILE_ROWS * Tile.DEFAULT_SIZE;
+        this.units = (tracer.imageHeight + this.unitRows - 1) / this.unitRows;
+        this.holders = new int[this.units];
+        this.rendered = new byte[this.units][];
+        for (int unit = 0; unit < this.units; unit++) {
+            this.pending.add(unit);
+        }
+    }
+
+    /**
+     * A connection to a worker, which renders units until there are none left
+     * or the worker fails too many times.
+     */
+    private class Link extends Thread {
+        final InetSocketAddress address;
+        final byte[] hash;
+        final Path sceneFile;
+        int units; // The units the worker rendered
+
+        Link(InetSocketAddress address, byte[] hash, Path sceneFile) {
+            super("tile-link-" + address);
+            this.address = address;
+            this.hash = hash;
+            this.sceneFile = sceneFile;
+            this.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            int failures = 0;
+            while (failures < MAX_FAILURES && !TileCoordinator.this.isFinished()) {
+                int unit = -1;
+                try (Socket socket = new Socket()) {
+                    int timeout = TileCoordinator.this.tracer.remoteTimeout * 1000;
+                    socket.connect(this.address, timeout);
+                    socket.setSoTimeout(timeout);
+                    socket.setTcpNoDelay(true);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+                    DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+                    if (!this.handshake(in, out)) {
+                        failures = MAX_FAILURES;
+                        break;
+                    }
+                    failures = 0;
+
+                    int width = TileCoordinator.this.tracer.imageWidth;
+                    while ((unit = TileCoordinator.this.take()) >= 0) {
+                        int firstRow = unit * TileCoordinator.this.unitRows;
+                        int rows = TileCoordinator.this.rows(unit);
+                        out.writeInt(firstRow);
+                        out.writeInt(rows);
+                        out.flush();
+                        if (in.readInt() != firstRow || in.readInt() != rows)
+                            throw new IOException("Unexpected band");
+                        byte[] rgbData = new byte[rows * width * 3];
+                        in.readFully(rgbData);
+                        TileCoordinator.this.complete(unit, rgbData);
+                        unit = -1;
+                        this.units++;
+                    }
+                    out.writeInt(TileWorker.END);
+                    out.flush();
+                } catch (IOException e) {
+                    failures++;
+                    System.out.println("Tile worker " + this.address + " failed: " + e);
+                    if (unit >= 0) {
+                        TileCoordinator.this.release(unit);
+                    }
+                }
+            }
+            TileCoordinator.this.linkDone();
+        }
+
+        /**
+         * Name the scene to the worker, send it if the worker doesn't have it,
+         * and then the render's settings.
+         *
+         * @return If the worker is ready to render.
+         */
+        private boolean handshake(DataInputStream in, DataOutputStream out) throws IOException {
+            RayTracer tracer = TileCoordinator.this.tracer;
+            out.writeInt(TileWorker.MAGIC);
+            out.writeInt(TileWorker.VERSION);
+            out.write(this.hash);
+            out.flush();
+            if (!in.readBoolean()) {
+                long length = Files.size(this.sceneFile);
+                out.writeLong(length);
+                try (InputStream file = Files.newInputStream(this.sceneFile)) {
+                    TileWorker.copy(file, out, length);
+                }
+            }
+            out.writeInt(tracer.imageWidth);
+            out.writeInt(tracer.imageHeight);
+            out.writeLong(tracer.seed);
+            out.writeUTF(samplerName(tracer.sampler));
+            out.writeInt(tracer.shadowSamples);
+            out.writeBoolean(tracer.adaptiveShadows);
+            out.writeDouble(tracer.minWeight);
+            out.writeInt(tracer.rouletteDepth);
+            out.writeBoolean(tracer.wavefront);
+            out.writeBoolean(tracer.sortRays);
+            out.writeBoolean(tracer.packets);
+            out.flush();
+            if (!in.readBoolean()) {
+                System.out.println("Tile worker " + this.address + " can't render the scene: " + in.readUTF());
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Render the image on the workers, and save it.
+     *
+     * @param sceneFileName  The scene file, text or compiled.
+     * @param outputFileName The image file.
+     */
+    public void render(String sceneFileName, String outputFileName) throws IOException, RayTracer.RayTracerException {
+        long startTime = System.currentTimeMillis();
+        Path sceneFile = Paths.get(sceneFileName);
+        byte[] hash = hash(sceneFile);
+
+        List<Link> links = new ArrayList<>();
+        for (String worker : this.tracer.remoteWorkers.split(",")) {
+            links.add(new Link(parseAddress(worker.trim()), hash, sceneFile));
+        }
+        this.liveLinks = links.size();
+        for (Link link : links) {
+            link.start();
+        }
+
+        try (ImageSink sink = ImageSink.open(outputFileName, this.tracer.imageWidth, this.tracer.imageHeight,
+                this.tracer.threads, this.tracer.pngLevel)) {
+            byte[] rgbData;
+            while ((rgbData = this.next()) != null) {
+                sink.write(rgbData, this.rows(this.nextToWrite - 1));
+            }
+            if (this.nextToWrite < this.units) {
+                System.out.println("All the tile workers failed, rendering the rest of the image here.");
+                this.renderLocally(sceneFileName, sink);
+            }
+        } finally {
+            synchronized (this) {
+                this.finished = true;
+                this.notifyAll();
+            }
+        }
+        for (Link link : links) {
+            try {
+                link.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        long renderTime = System.currentTimeMillis() - startTime;
+
+        if (!this.tracer.quiet) {
+            for (Link link : links) {
+                System.out.println("Tile worker " + link.address + " rendered " + link.units + " of " + this.units
+                        + " units.");
+            }
+        }
+        System.out.println("Finished rendering scene in " + renderTime + " milliseconds.");
+        System.out.println("Saved file " + outputFileName);
+    }
+
+    /**
+     * Render the units not written yet in this process.
+     */
+    private void renderLocally(String sceneFileName, ImageSink sink) throws IOException, RayTracer.RayTracerException {
+        Scene scene = this.tracer.parseScene(sceneFileName);
+        scene.adaptiveShadows = this.tracer.adaptiveShadows;
+        scene.sampler = this.tracer.sampler;
+        scene.shadowSamples = this.tracer.shadowSamples;
+        scene.minWeight = this.tracer.minWeight;
+        scene.rouletteDepth = this.tracer.rouletteDepth;
+        scene.freeze();
+        ForkJoinPool pool = this.tracer.threads > 1 ? new ForkJoinPool(this.tracer.threads) : null;
+        try {
+            byte[] rgbData = new byte[this.unitRows * this.tracer.imageWidth * 3];
+            for (int unit = this.nextToWrite; unit < this.units; unit++) {
+                // A worker may have rendered it before failing
+                byte[] done = this.rendered[unit];
+                if (done == null) {
+                    this.tracer.renderRows(scene, unit * this.unitRows, this.rows(unit), rgbData, pool);
+                    done = rgbData;
+                }
+                sink.write(done, this.rows(unit));
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * @return The number of rows in a unit.
+     */
+    private int rows(int unit) {
+        return Math.min(this.unitRows, this.tracer.imageHeight - unit * this.unitRows);
+    }
+
+    /**
+     * Wait for the next unit of the image to be rendered.
+     *
+     * @return The unit's RGB data, or null if the image is complete or all the
+     *         workers were given up.
+     */
+    private synchronized byte[] next() {
+        while (this.nextToWrite < this.units && this.rendered[this.nextToWrite] == null && this.liveLinks > 0) {
+            this.await();
+        }
+        if (this.nextToWrite == this.units || this.rendered[this.nextToWrite] == null) {
+            return null;
+        }
+        byte[] rgbData = this.rendered[this.nextToWrite];
+        this.rendered[this.nextToWrite++] = null;
+        this.notifyAll(); // The window moved
+        return rgbData;
+    }
+
+    /**
+     * Wait for a unit to render: the first unit not given out, if it is in the
+     * window, or else a copy of the first unit only one worker is rendering.
+     *
+     * @return The unit, or -1 if the image is complete.
+     */
+    private synchronized int take() {
+        while (!this.finished) {
+            int window = this.nextToWrite + WINDOW_PER_WORKER * this.liveLinks;
+            if (!this.pending.isEmpty() && this.pending.first() < window) {
+                int unit = this.pending.pollFirst();
+                this.holders[unit]++;
+                return unit;
+            }
+            for (int unit = this.nextToWrite; unit < Math.min(window, this.units); unit++) {
+                if (this.rendered[unit] == null && this.holders[unit] == 1) {
+                    this.holders[unit]++;
+                    return unit;
+                }
+            }
+            this.await();
+        }
+        return -1;
+    }
+
+    /**
+     * Take a rendered unit, unless another worker rendered it first.
+     */
+    private synchronized void complete(int unit, byte[] rgbData) {
+        this.holders[unit]--;
+        if (unit >= this.nextToWrite && this.rendered[unit] == null) {
+            this.rendered[unit] = rgbData;
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Give up a unit a worker failed to render, to be given out again unless
+     * another worker is rendering it or rendered it.
+     */
+    private synchronized void release(int unit) {
+        this.holders[unit]--;
+        if (unit >= this.nextToWrite && this.rendered[unit] == null && this.holders[unit] == 0) {
+            this.pending.add(unit);
+        }
+        this.notifyAll();
+    }
+
+    private synchronized void linkDone() {
+        this.liveLinks--;
+        this.notifyAll();
+    }
+
+    private synchronized boolean isFinished() {
+        return this.finished;
+    }
+
+    private void await() {
+        try {
+            this.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", e);
+        }
+    }
+
+    /**
+     * @return The SHA-256 hash of a file, which names the scene to the workers.
+     */
+    static byte[] hash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return digest.digest();
+    }
+
+    /**
+     * @return The name `Sampler.forName` knows a sampler by.
+     */
+    static String samplerName(Sampler sampler) {
+        if (sampler instanceof RandomSampler) {
+            return "random";
+        } else if (sampler instanceof HaltonSampler) {
+            return "halton";
+        }
+        return "sobol";
+    }
+
+    private static InetSocketAddress parseAddress(String worker) throws RayTracer.RayTracerException {
+        int colon = worker.lastIndexOf(':');
+        try {
+            return colon < 0 ? new InetSocketAddress(worker, TileWorker.DEFAULT_PORT)
+                    : new InetSocketAddress(worker.substring(0, colon), Integer.parseInt(worker.substring(colon + 1)));
+        } catch (IllegalArgumentException e) {
+            throw new RayTracer.RayTracerException("Bad tile worker address: " + worker);
+        }
+    }
+}
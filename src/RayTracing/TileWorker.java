@@ -0,0 +1,281 @@
+package RayTracing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A worker process of distributed rendering, which renders bands of rows of an
+ * image for a `TileCoordinator`, over TCP.
+ *
+ * The coordinator names its scene by the SHA-256 hash of the scene file, and
+ * sends the file itself only if the worker doesn't have it yet. Received scene
+ * files are kept in a store directory, by hash, and the parsed scenes in a
+ * `SceneCache`, so rendering the same scene again costs neither shipping it
+ * nor parsing it.
+ *
+ * The protocol, in `DataOutputStream` encoding:
+ *
+ * 1. The coordinator sends `MAGIC`, `VERSION` and the scene's hash (32 bytes);
+ * the worker answers if it has the scene (a boolean). If it doesn't, the
+ * coordinator sends the scene file's length (a long) and contents, which the
+ * worker only keeps if they match the hash.
+ * 2. The coordinator sends the render's settings: the image's width and height,
+ * the seed, the sampler's name, the shadow samples, adaptive shadows, the minimal weight, the
+ * roulette depth, wavefront, ray sorting and packets. The worker answers if it
+ * is ready (a boolean), followed by an error message if it isn't.
+ * 3. The coordinator sends bands, as their first row and number of rows, and
+ * the worker answers every band with its first row, its number of rows and its
+ * RGB data. A first row of -1 ends the render.
+ *
+ * Run it as `TileWorker` with any of `--port=N` (8087 by default),
+ * `--bind=ADDRESS` (the loopback interface by default), `--threads=N`,
+ * `--cache-mb=M` (the parsed scenes' cache) and `--store=DIR` (where received
+ * scene files are kept).
+ */
+public class TileWorker {
+    public static final int DEFAULT_PORT = 8087;
+    static final int MAGIC = 0x52545457; // "RTTW"
+    static final int VERSION = 1;
+    static final int END = -1; // Ends a render, in place of a band's first row
+
+    private final ServerSocket server;
+    private final Path store;
+    private final SceneCache cache;
+    private final int threads;
+    private final ForkJoinPool pool; // Renders the bands of all the connections
+
+    /**
+     * Start a worker.
+     *
+     * @param address    The address to listen on.
+     * @param port       The port to listen on, or 0 for any free port.
+     * @param store      The directory of received scene files.
+     * @param threads    The number of rendering threads.
+     * @param cacheBytes The capacity of the parsed scenes' cache, in bytes.
+     */
+    public TileWorker(InetAddress address, int port, Path store, int threads, long cacheBytes) throws IOException {
+        this.server = new ServerSocket(port, 50, address);
+        this.store = Files.createDirectories(store);
+        this.cache = new SceneCache(cacheBytes, threads);
+        this.threads = threads;
+        this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * @return The port the worker listens on.
+     */
+    public int port() {
+        return this.server.getLocalPort();
+    }
+
+    /**
+     * Serve coordinators, each on its own thread, until the worker is closed.
+     */
+    public void serve() {
+        while (!this.server.isClosed()) {
+            try {
+                Socket socket = this.server.accept();
+                Thread connection = new Thread(() -> this.serve(socket), "tile-worker-" + socket.getPort());
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                // Closed, or a failed connection
+            }
+        }
+    }
+
+    /**
+     * Stop accepting coordinators.
+     */
+    public void close() throws IOException {
+        this.server.close();
+        if (this.pool != null) {
+            this.pool.shutdown();
+        }
+    }
+
+    private void serve(Socket socket) {
+        String peer = socket.getRemoteSocketAddress().toString();
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+
+            // The scene
+            byte[] hash = new byte[32];
+            in.readFully(hash);
+            Path scene = this.store.resolve(HexFormat.of().formatHex(hash) + ".scene");
+            boolean have = Files.exists(scene);
+            out.writeBoolean(have);
+            out.flush();
+            if (!have) {
+                this.receive(in, in.readLong(), hash, scene);
+                log("Received scene %s from %s", scene.getFileName(), peer);
+            }
+
+            // The settings
+            RayTracer tracer = new RayTracer();
+            tracer.imageWidth = in.readInt();
+            tracer.imageHeight = in.readInt();
+            tracer.threads = this.threads;
+            tracer.seed = in.readLong();
+            String sampler = in.readUTF();
+            tracer.shadowSamples = in.readInt();
+            tracer.adaptiveShadows = in.readBoolean();
+            tracer.minWeight = in.readDouble();
+            tracer.rouletteDepth = in.readInt();
+            tracer.wavefront = in.readBoolean();
+            tracer.sortRays = in.readBoolean();
+            tracer.packets = in.readBoolean();
+            Scene view;
+            try {
+                if (tracer.imageWidth < 1 || tracer.imageHeight < 1)
+                    throw new RayTracer.RayTracerException("The image's size must be positive.");
+                // A band is at most the whole image, and must fit in one array
+                if ((long) tracer.imageWidth * tracer.imageHeight * 3 > Integer.MAX_VALUE)
+                    throw new RayTracer.RayTracerException("The image is too large.");
+                tracer.sampler = Sampler.forName(sampler);
+                Scene loaded = this.cache.get(scene.toString()).first();
+                view = loaded.withCamera(loaded.camera.withAspectRatio((double) tracer.imageHeight / tracer.imageWidth));
+                view.adaptiveShadows = tracer.adaptiveShadows;
+                view.sampler = tracer.sampler;
+                view.shadowSamples = tracer.shadowSamples;
+                view.minWeight = tracer.minWeight;
+                view.rouletteDepth = tracer.rouletteDepth;
+            } catch (IllegalArgumentException | RayTracer.RayTracerException | IOException e) {
+                out.writeBoolean(false);
+                out.writeUTF(String.valueOf(e.getMessage()));
+                out.flush();
+                return;
+            }
+            out.writeBoolean(true);
+            out.flush();
+
+            // The bands
+            byte[] rgbData = new byte[0];
+            int bands = 0;
+            for (int firstRow = in.readInt(); firstRow != END; firstRow = in.readInt()) {
+                int rows = in.readInt();
+                if (firstRow < 0 || rows < 1 || firstRow + rows > tracer.imageHeight) {
+                    return;
+                }
+                int length = rows * tracer.imageWidth * 3;
+                if (rgbData.length < length) {
+                    rgbData = new byte[length];
+                }
+                tracer.renderRows(view, firstRow, rows, rgbData, this.pool);
+                out.writeInt(firstRow);
+                out.writeInt(rows);
+                out.write(rgbData, 0, length);
+                out.flush();
+                bands++;
+            }
+            log("Rendered %d bands for %s", bands, peer);
+        } catch (EOFException e) {
+            // The coordinator went away
+        } catch (IOException e) {
+            log("Connection from %s failed: %s", peer, e);
+        }
+    }
+
+    /**
+     * Receive a scene file, into a temporary file first, so that a broken
+     * transfer never leaves a partial scene in the store. The file is only
+     * stored if it matches its hash.
+     */
+    private void receive(DataInputStream in, long length, byte[] hash, Path scene) throws IOException {
+        if (length < 0)
+            throw new IOException("Bad scene file length: " + length);
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        Path temporary = Files.createTempFile(this.store, "receiving", ".tmp");
+        try {
+            try (OutputStream file = new DigestOutputStream(Files.newOutputStream(temporary), digest)) {
+                copy(in, file, length);
+            }
+            if (!MessageDigest.isEqual(digest.digest(), hash))
+                throw new IOException("The received scene file doesn't match its hash");
+            Files.move(temporary, scene, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Copy exactly `length` bytes from a stream to another.
+     */
+    static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        while (length > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (n < 0) {
+                throw new EOFException();
+            }
+            out.write(buffer, 0, n);
+            length -= n;
+        }
+    }
+
+    private static void log(String format, Object... args) {
+        System.out.println(String.format(format, args));
+    }
+
+    public static void main(String[] args) {
+        try {
+            int port = DEFAULT_PORT;
+            InetAddress address = InetAddress.getLoopbackAddress();
+            int threads = Runtime.getRuntime().availableProcessors();
+            long cacheMegabytes = 512;
+            Path store = Paths.get(System.getProperty("java.io.tmpdir"), "raytracer-scenes");
+            for (String arg : args) {
+                if (arg.startsWith("--port=")) {
+                    port = Integer.parseInt(arg.substring("--port=".length()));
+                } else if (arg.startsWith("--bind=")) {
+                    address = InetAddress.getByName(arg.substring("--bind=".length()));
+                } else if (arg.startsWith("--threads=")) {
+                    threads = Integer.parseInt(arg.substring("--threads=".length()));
+                } else if (arg.startsWith("--cache-mb=")) {
+                    cacheMegabytes = Long.parseLong(arg.substring("--cache-mb=".length()));
+                } else if (arg.startsWith("--store=")) {
+                    store = Paths.get(arg.substring("--store=".length()));
+                } else {
+                    throw new RayTracer.RayTracerException("Unknown option: " + arg);
+                }
+            }
+            if (threads < 1)
+                throw new RayTracer.RayTracerException("The number of threads must be positive.");
+
+            TileWorker worker = new TileWorker(address, port, store, threads, cacheMegabytes << 20);
+            log("Tile worker listening on %s", new InetSocketAddress(address, worker.port()));
+            worker.serve();
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        }
+    }
+}
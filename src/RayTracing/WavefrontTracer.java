@@ -0,0 +1,613 @@
+package RayTracing;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * An alternative to tracing the pixels of a tile one path at a time (see
+ * `Ray.trace`): the rays of a whole tile are traced in stages, one bounce at a
+ * time. Every stage runs over a batch of rays held in parallel arrays:
+ *
+ * 1. The closest hits of all the rays of the bounce are found (of the camera
+ *    rays, in packets of neighbouring pixels).
+ * 2. The shadow rays of all the hits are cast, one light at a time.
+ * 3. The hits are shaded, adding their contribution to their pixels.
+ * 4. The transparent and reflected rays of the hits are collected into the
+ *    batch of the next bounce, optionally grouped by direction.
+ *
+ * Rays get the same seeds and weights as in `Ray.trace`, so the output only
+ * differs by the order the contributions to a pixel are summed in.
+ *
+ * With a G-buffer (see `GBuffer`), the camera rays' hits are recorded into it
+ * in the first stage, or, once it is complete, restored from it instead.
+ *
+ * A tracer holds the buffers of one tile at a time, so every rendering thread
+ * needs its own. Unlike `Ray.trace`, which holds one path at a time, a bounce
+ * may hold up to twice the rays of the previous one, so scenes with many
+ * transparent and reflective surfaces need more memory.
+ */
+public class WavefrontTracer {
+    private final Scene scene;
+    private final boolean sortRays; // Group the secondary rays of a bounce by direction
+    private final boolean packets; // Trace the camera rays in packets
+    private final GBuffer gBuffer; // Caches the camera rays' hits, or null
+    private boolean recording; // The hits of the current bounce are recorded into `gBuffer`
+    private final Hit hit = new Hit();
+    private final Hit[] packet = new Hit[Tile.PACKET_SIZE * Tile.PACKET_SIZE]; // The hits of a packet of camera rays
+    private final Ray[] packetRays = new Ray[this.packet.length];
+
+    // The camera rays of a block of pixels
+    private final CameraRays cameraRays;
+    private final double[] directionsX = new double[Tile.PACKET_SIZE * Tile.PACKET_SIZE];
+    private final double[] directionsY = new double[Tile.PACKET_SIZE * Tile.PACKET_SIZE];
+    private final double[] directionsZ = new double[Tile.PACKET_SIZE * Tile.PACKET_SIZE];
+    private final int[] blockPixels = new int[Tile.PACKET_SIZE * Tile.PACKET_SIZE];
+    private int[] imagePixels = new int[0]; // The index in the image of the pixel of every camera ray
+
+    // The rays of the current bounce
+    private int count;
+    private Ray[] rays;
+    private int[] pixels; // The index of the ray's pixel within the tile
+    private int[] depths;
+    private long[] seeds;
+    private double[] weightsR, weightsG, weightsB; // The weight of the ray's color in its pixel
+
+    // The rays of the next bounce
+    private int nextCount;
+    private Ray[] nextRays;
+    private int[] nextPixels;
+    private int[] nextDepths;
+    private long[] nextSeeds;
+    private double[] nextWeightsR, nextWeightsG, nextWeightsB;
+
+    // The hits of the rays of the current bounce
+    private Material[] materials; // null if the ray missed
+    private Vector[] points;
+    private Vector[] normals;
+    private double[] intensities; // The intensity of light `l` at hit `i` is at `i * lights + l`
+
+    // The shadow rays of the current light
+    private int shadowCount;
+    private int[] shadowHits; // The hit the shadow ray was cast from
+    private Vector[] shadowTargets; // The point on the light the shadow ray was cast at
+    private boolean[] shadowLit;
+
+    // The accumulated colors of the tile's pixels
+    private double[] red, green, blue;
+
+    /**
+     * @param scene      The rendered scene.
+     * @param cameraRays The camera rays of the frame.
+     * @param sortRays   If true, the secondary rays of every bounce are grouped
+     *                   by the octant of their direction, so neighbouring rays
+     *                   visit similar parts of the scene.
+     * @param packets    If true, the camera rays of blocks of pixels are traced
+     *                   as packets.
+     */
+    public WavefrontTracer(Scene scene, CameraRays cameraRays, boolean sortRays, boolean packets) {
+        this(scene, cameraRays, sortRays, packets, null);
+    }
+
+    /**
+     * @param scene      The rendered scene.
+     * @param cameraRays The camera rays of the frame.
+     * @param sortRays   If true, the secondary rays of every bounce are grouped
+     *                   by the octant of their direction.
+     * @param packets    If true, the camera rays of blocks of pixels are traced
+     *                   as packets.
+     * @param gBuffer    Caches the camera rays' hits, or null. The scene must be
+     *                   compiled into primitive arrays only, and have a
+     *                   positive recursion depth.
+     */
+    public WavefrontTracer(Scene scene, CameraRays cameraRays, boolean sortRays, boolean packets, GBuffer gBuffer) {
+        this.scene = scene;
+        this.cameraRays = cameraRays;
+        this.sortRays = sortRays;
+        this.packets = packets;
+        this.gBuffer = gBuffer;
+        for (int i = 0; i < this.packet.length; i++) {
+            this.packet[i] = new Hit();
+        }
+        // The buffers are allocated for the first tile, and grow as needed
+        this.rays = new Ray[0];
+        this.nextRays = new Ray[0];
+        this.materials = new Material[0];
+        this.intensities = new double[0];
+        this.shadowHits = new int[0];
+        this.shadowTargets = new Vector[0];
+        this.shadowLit = new boolean[0];
+        this.red = new double[0];
+        this.green = new double[0];
+        this.blue = new double[0];
+    }
+
+    /**
+     * Render the pixels of a tile into the image.
+     *
+     * @param tile        The rendered part of the image.
+     * @param imageWidth  The width of the image, in pixels.
+     * @param imageHeight The height of the image, in pixels.
+     * @param seed        The seed of the whole render.
+     * @param rgbData     The RGB data of the image's rows from `firstRow` on.
+     * @param firstRow    The first row in `rgbData`.
+     */
+    public void renderTile(Tile tile, int imageWidth, int imageHeight, long seed, byte[] rgbData, int firstRow) {
+        int size = tile.width * tile.height;
+        if (this.red.length < size) {
+            this.red = new double[size];
+            this.green = new double[size];
+            this.blue = new double[size];
+        }
+        Arrays.fill(this.red, 0, size, 0);
+        Arrays.fill(this.green, 0, size, 0);
+        Arrays.fill(this.blue, 0, size, 0);
+
+        // The primary rays:
+        this.growCurrent(size);
+        if (this.gBuffer != null && this.imagePixels.length < size) {
+            this.imagePixels = new int[size];
+        }
+        this.count = 0;
+        // Generated block by block, so that consecutive rays form packets
+        for (int y = tile.y; y < tile.y + tile.height; y += Tile.PACKET_SIZE) {
+            for (int x = tile.x; x < tile.x + tile.width; x += Tile.PACKET_SIZE) {
+                int count = this.cameraRays.generate(x, y, Math.min(Tile.PACKET_SIZE, tile.x + tile.width - x),
+                        Math.min(Tile.PACKET_SIZE, tile.y + tile.height - y), this.directionsX, this.directionsY,
+                        this.directionsZ, this.blockPixels);
+                for (int k = 0; k < count; k++) {
+                    int i = this.count++;
+                    this.rays[i] = Ray.ofUnitDirection(this.cameraRays.origin(),
+                            new Vector(this.directionsX[k], this.directionsY[k], this.directionsZ[k]));
+                    int row = this.blockPixels[k] / imageWidth;
+                    int column = this.blockPixels[k] % imageWidth;
+                    this.pixels[i] = (row - tile.y) * tile.width + (column - tile.x);
+                    if (this.gBuffer != null) {
+                        this.imagePixels[i] = this.blockPixels[k];
+                    }
+                    this.depths[i] = 0;
+                    this.seeds[i] = RayTracer.pixelSeed(seed, this.blockPixels[k]);
+                    this.weightsR[i] = 1;
+                    this.weightsG[i] = 1;
+                    this.weightsB[i] = 1;
+                }
+            }
+        }
+        if (RenderStats.ENABLED) {
+            RenderStats.counters().primaryRays += this.count;
+        }
+
+        boolean primary = true;
+        while (this.count > 0) {
+            this.recording = primary && this.gBuffer != null && !this.gBuffer.isComplete();
+            if (primary && this.gBuffer != null && this.gBuffer.isComplete()) {
+                this.restoreHits();
+            } else if (primary && this.packets) {
+                this.intersectPackets();
+            } else {
+                this.intersect();
+            }
+            this.recording = false;
+            primary = false;
+            this.castShadows();
+            this.shade();
+            this.spawn();
+            this.swap();
+        }
+
+        for (int pixel = 0; pixel < size; pixel++) {
+            int row = tile.y + pixel / tile.width;
+            int column = tile.x + pixel % tile.width;
+            int offset = ((row - firstRow) * imageWidth + column) * 3;
+            rgbData[offset] = (byte) (255 * clamp(this.red[pixel]));
+            rgbData[offset + 1] = (byte) (255 * clamp(this.green[pixel]));
+            rgbData[offset + 2] = (byte) (255 * clamp(this.blue[pixel]));
+        }
+    }
+
+    /**
+     * Find the closest hits of the rays of the bounce. Rays that miss, or are
+     * past the scene's recursion depth, contribute the background color.
+     */
+    private void intersect() {
+        this.growHits(this.count);
+        for (int i = 0; i < this.count; i++) {
+            this.materials[i] = null;
+            if (this.depths[i] >= this.scene.recursionDepth) {
+                // Reached maximum recursion depth
+                this.addBackground(i);
+                continue;
+            }
+            this.hit.reset(this.rays[i], Double.POSITIVE_INFINITY);
+            boolean found = this.scene.closestHit(this.rays[i], 0, this.hit);
+            if (this.recording) {
+                this.gBuffer.record(this.imagePixels[i], this.hit);
+            }
+            if (!found) {
+                this.addBackground(i);
+                continue;
+            }
+            this.materials[i] = this.hit.material();
+            this.points[i] = this.hit.point();
+            this.normals[i] = this.hit.normal();
+        }
+    }
+
+    /**
+     * Restore the closest hits of the camera rays from the G-buffer, instead of
+     * finding them. Rays that missed contribute the background color.
+     */
+    private void restoreHits() {
+        this.growHits(this.count);
+        for (int i = 0; i < this.count; i++) {
+            this.gBuffer.restore(this.imagePixels[i], this.rays[i], this.scene.compiled, this.hit);
+            if (!this.hit.isPresent()) {
+                this.materials[i] = null;
+                this.addBackground(i);
+                continue;
+            }
+            this.materials[i] = this.hit.material();
+            this.points[i] = this.hit.point();
+            this.normals[i] = this.hit.normal();
+        }
+    }
+
+    /**
+     * Find the closest hits of the camera rays, in packets of consecutive rays
+     * (see `Scene.closestHits`). Rays that miss contribute the background color.
+     */
+    private void intersectPackets() {
+        this.growHits(this.count);
+        if (this.scene.recursionDepth <= 0) {
+            this.intersect();
+            return;
+        }
+        for (int start = 0; start < this.count; start += this.packet.length) {
+            int size = Math.min(this.packet.length, this.count - start);
+            for (int k = 0; k < size; k++) {
+                this.packetRays[k] = this.rays[start + k];
+                this.packet[k].reset(this.packetRays[k], Double.POSITIVE_INFINITY);
+            }
+            this.scene.closestHits(this.packetRays, size, 0, this.packet);
+            for (int k = 0; k < size; k++) {
+                int i = start + k;
+                Hit hit = this.packet[k];
+                if (this.recording) {
+                    this.gBuffer.record(this.imagePixels[i], hit);
+                }
+                if (!hit.isPresent()) {
+                    this.materials[i] = null;
+                    this.addBackground(i);
+                    continue;
+                }
+                this.materials[i] = hit.material();
+                this.points[i] = hit.point();
+                this.normals[i] = hit.normal();
+            }
+        }
+    }
+
+    /**
+     * Add the background color, weighted, to the pixel of a ray.
+     */
+    private void addBackground(int i) {
+        Vector bgColor = this.scene.bgColor;
+        this.red[this.pixels[i]] += this.weightsR[i] * bgColor.x;
+        this.green[this.pixels[i]] += this.weightsG[i] * bgColor.y;
+        this.blue[this.pixels[i]] += this.weightsB[i] * bgColor.z;
+    }
+
+    /**
+     * Calculate the intensity of every light at every hit of the bounce. The
+     * shadow rays of every light are collected from all the hits and cast
+     * together.
+     *
+     * With adaptive shadows, this is done in two phases: the rays from the
+     * corners and the center of the grid are cast for all the hits, and only the
+     * hits where they disagree (in the penumbra) are refined, one at a time, by
+     * `Light.refineProbed`, which reuses the probes. Lights sampled from the
+     * sampler's sequence (see `Scene.shadowSamples`) are probed the same way,
+     * from the sequence's first samples, and the rest of the penumbra's samples
+     * are collected from all the hits and cast together.
+     */
+    private void castShadows() {
+        int lights = this.scene.lights.size();
+        int n = this.scene.shadowRays;
+        int samples = this.scene.shadowSamples;
+        if (this.intensities.length < this.count * lights) {
+            this.intensities = new double[this.count * lights];
+        }
+        int rays = samples > 0 ? samples : n * n; // The shadow rays of a hit, when all are cast
+        boolean adaptive = samples > 0 ? Light.probesFirst(this.scene) : this.scene.adaptiveShadows && n >= 3;
+        int last = n - 1;
+        int[] probeI = { last / 2, 0, 0, last, last };
+        int[] probeJ = { last / 2, 0, last, 0, last };
+        for (int l = 0; l < lights; l++) {
+            Light light = this.scene.lights.get(l);
+            this.shadowCount = 0;
+            for (int i = 0; i < this.count; i++) {
+                if (this.materials[i] == null) {
+                    continue;
+                }
+                long seed = Sampler.mix(this.seeds[i], l);
+                Pair<Vector, Vector> axes = light.gridAxes(this.points[i]);
+                if (samples > 0) {
+                    for (int k = 0; k < (adaptive ? Light.PROBE_SAMPLES : samples); k++) {
+                        this.addShadowRay(i, light.samplePoint(this.scene, axes.first(), axes.second(), k, seed));
+                    }
+                } else if (adaptive) {
+                    for (int probe = 0; probe < probeI.length; probe++) {
+                        this.addShadowRay(i, light.cellPoint(this.scene, axes.first(), axes.second(), probeI[probe],
+                                probeJ[probe], seed));
+                    }
+                } else {
+                    for (int ci = 0; ci < n; ci++) {
+                        for (int cj = 0; cj < n; cj++) {
+                            this.addShadowRay(i, light.cellPoint(this.scene, axes.first(), axes.second(), ci, cj, seed));
+                        }
+                    }
+                }
+            }
+
+            this.castShadowRays(0);
+
+            // The rays of every hit are consecutive:
+            int raysPerHit = !adaptive ? rays : samples > 0 ? Light.PROBE_SAMPLES : probeI.length;
+            int probed = this.shadowCount; // The rest of the penumbra's samples are collected after these
+            for (int k = 0; k < probed; k += raysPerHit) {
+                int i = this.shadowHits[k];
+                int lit = 0;
+                for (int r = k; r < k + raysPerHit; r++) {
+                    lit += this.shadowLit[r] ? 1 : 0;
+                }
+                double intensity;
+                if (!adaptive) {
+                    intensity = light.intensity(lit, rays);
+                } else if (lit == 0 || lit == raysPerHit) {
+                    intensity = light.intensity(lit == 0 ? 0 : rays, rays);
+                } else if (samples > 0) {
+                    // Until the rest of its samples are cast, the hit's intensity holds the number
+                    // of probes that light it
+                    long seed = Sampler.mix(this.seeds[i], l);
+                    Pair<Vector, Vector> axes = light.gridAxes(this.points[i]);
+                    for (int s = Light.PROBE_SAMPLES; s < samples; s++) {
+                        this.addShadowRay(i, light.samplePoint(this.scene, axes.first(), axes.second(), s, seed));
+                    }
+                    intensity = lit;
+                } else {
+                    // The grid's quarters are refined one at a time, from the probes already cast
+                    Pair<Vector, Vector> axes = light.gridAxes(this.points[i]);
+                    intensity = light.intensity(light.refineProbed(this.points[i], this.scene, axes.first(),
+                            axes.second(), Sampler.mix(this.seeds[i], l), this.shadowLit, k), rays);
+                }
+                this.intensities[i * lights + l] = intensity;
+            }
+
+            // The penumbra's samples past the probes, cast together too:
+            this.castShadowRays(probed);
+            for (int k = probed; k < this.shadowCount; k += samples - Light.PROBE_SAMPLES) {
+                int i = this.shadowHits[k];
+                double lit = this.intensities[i * lights + l];
+                for (int r = k; r < k + samples - Light.PROBE_SAMPLES; r++) {
+                    lit += this.shadowLit[r] ? 1 : 0;
+                }
+                this.intensities[i * lights + l] = light.intensity(lit, samples);
+            }
+        }
+    }
+
+    /**
+     * Cast the collected shadow rays from the `first` one on.
+     */
+    private void castShadowRays(int first) {
+        for (int k = first; k < this.shadowCount; k++) {
+            this.shadowLit[k] = !this.scene.occluded(this.points[this.shadowHits[k]], this.shadowTargets[k]);
+        }
+    }
+
+    /**
+     * Collect a shadow ray from a hit to a point on the current light.
+     */
+    private void addShadowRay(int hit, Vector target) {
+        if (this.shadowCount == this.shadowHits.length) {
+            int capacity = Math.max(64, 2 * this.shadowCount);
+            this.shadowHits = Arrays.copyOf(this.shadowHits, capacity);
+            this.shadowTargets = Arrays.copyOf(this.shadowTargets, capacity);
+            this.shadowLit = Arrays.copyOf(this.shadowLit, capacity);
+        }
+        this.shadowHits[this.shadowCount] = hit;
+        this.shadowTargets[this.shadowCount] = target;
+        this.shadowCount++;
+    }
+
+    /**
+     * Add the direct light at every hit of the bounce, weighted, to the hit's
+     * pixel.
+     */
+    private void shade() {
+        int lights = this.scene.lights.size();
+        for (int i = 0; i < this.count; i++) {
+            Material material = this.materials[i];
+            if (material == null) {
+                continue;
+            }
+            Pair<Vector, Vector> light = Light.shade(this.scene, material, this.points[i], this.normals[i],
+                    this.intensities, i * lights);
+            Vector baseOutput = material.diffuse.pointMult(light.first())
+                    .add(material.specular.pointMult(light.second())).mul(1 - material.transparency);
+            this.red[this.pixels[i]] += this.weightsR[i] * baseOutput.x;
+            this.green[this.pixels[i]] += this.weightsG[i] * baseOutput.y;
+            this.blue[this.pixels[i]] += this.weightsB[i] * baseOutput.z;
+        }
+    }
+
+    /**
+     * Collect the transparent and reflected rays of the hits of the bounce into
+     * the next bounce.
+     */
+    private void spawn() {
+        // Every hit spawns two rays at most
+        this.growNext(2 * this.count);
+        this.nextCount = 0;
+        for (int i = 0; i < this.count; i++) {
+            Material material = this.materials[i];
+            if (material == null) {
+                continue;
+            }
+            Ray ray = this.rays[i];
+            Vector point = this.points[i];
+            Vector normal = this.normals[i];
+            Vector weight = new Vector(this.weightsR[i], this.weightsG[i], this.weightsB[i]);
+            if (material.transparency > 0) {
+                Ray transparentRay = new Ray(point.add(ray.direction.mul(0.00000001)), ray.direction);
+                this.addNextRay(i, transparentRay, weight.mul(material.transparency), Ray.TRANSPARENT_PATH);
+            }
+            Ray reflectedRay = new Ray(point.add(normal.mul(0.00000001)), ray.direction.neg().reflect(normal));
+            this.addNextRay(i, reflectedRay, weight.pointMult(material.reflection), Ray.REFLECTED_PATH);
+        }
+    }
+
+    /**
+     * Collect a secondary ray of a hit into the next bounce, unless it shouldn't
+     * be traced (see `Ray.secondaryWeight`).
+     */
+    private void addNextRay(int parent, Ray ray, Vector weight, long path) {
+        long seed = Sampler.mix(this.seeds[parent], path);
+        int depth = this.depths[parent] + 1;
+        Optional<Vector> tracedWeight = Ray.secondaryWeight(this.scene, weight, depth, seed);
+        if (tracedWeight.isEmpty()) {
+            return;
+        }
+        if (RenderStats.ENABLED) {
+            RenderStats.Counters counters = RenderStats.counters();
+            if (path == Ray.TRANSPARENT_PATH) {
+                counters.transparencyRays++;
+            } else {
+                counters.reflectionRays++;
+            }
+        }
+        int i = this.nextCount++;
+        this.nextRays[i] = ray;
+        this.nextPixels[i] = this.pixels[parent];
+        this.nextDepths[i] = depth;
+        this.nextSeeds[i] = seed;
+        this.nextWeightsR[i] = tracedWeight.get().x;
+        this.nextWeightsG[i] = tracedWeight.get().y;
+        this.nextWeightsB[i] = tracedWeight.get().z;
+    }
+
+    /**
+     * Make the next bounce the current one, optionally grouping its rays by the
+     * octant of their direction (a counting sort, stable within an octant).
+     */
+    private void swap() {
+        if (this.sortRays && this.nextCount > 1) {
+            this.growCurrent(this.nextCount);
+            int[] starts = new int[9];
+            for (int i = 0; i < this.nextCount; i++) {
+                starts[octant(this.nextRays[i].direction) + 1]++;
+            }
+            for (int o = 0; o < 8; o++) {
+                starts[o + 1] += starts[o];
+            }
+            for (int i = 0; i < this.nextCount; i++) {
+                int j = starts[octant(this.nextRays[i].direction)]++;
+                this.rays[j] = this.nextRays[i];
+                this.pixels[j] = this.nextPixels[i];
+                this.depths[j] = this.nextDepths[i];
+                this.seeds[j] = this.nextSeeds[i];
+                this.weightsR[j] = this.nextWeightsR[i];
+                this.weightsG[j] = this.nextWeightsG[i];
+                this.weightsB[j] = this.nextWeightsB[i];
+            }
+            this.count = this.nextCount;
+            return;
+        }
+        Ray[] rays = this.rays;
+        this.rays = this.nextRays;
+        this.nextRays = rays;
+        int[] pixels = this.pixels;
+        this.pixels = this.nextPixels;
+        this.nextPixels = pixels;
+        int[] depths = this.depths;
+        this.depths = this.nextDepths;
+        this.nextDepths = depths;
+        long[] seeds = this.seeds;
+        this.seeds = this.nextSeeds;
+        this.nextSeeds = seeds;
+        double[] weights = this.weightsR;
+        this.weightsR = this.nextWeightsR;
+        this.nextWeightsR = weights;
+        weights = this.weightsG;
+        this.weightsG = this.nextWeightsG;
+        this.nextWeightsG = weights;
+        weights = this.weightsB;
+        this.weightsB = this.nextWeightsB;
+        this.nextWeightsB = weights;
+        this.count = this.nextCount;
+    }
+
+    /**
+     * @return The octant of a direction, from the signs of its coordinates.
+     */
+    private static int octant(Vector direction) {
+        return (direction.x < 0 ? 1 : 0) | (direction.y < 0 ? 2 : 0) | (direction.z < 0 ? 4 : 0);
+    }
+
+    /**
+     * Make sure the buffers of the current bounce (and its hits) can hold
+     * `capacity` rays.
+     */
+    private void growCurrent(int capacity) {
+        if (this.rays.length >= capacity) {
+            return;
+        }
+        this.rays = new Ray[capacity];
+        this.pixels = new int[capacity];
+        this.depths = new int[capacity];
+        this.seeds = new long[capacity];
+        this.weightsR = new double[capacity];
+        this.weightsG = new double[capacity];
+        this.weightsB = new double[capacity];
+    }
+
+    /**
+     * Make sure the buffers of the next bounce can hold `capacity` rays.
+     */
+    private void growNext(int capacity) {
+        if (this.nextRays.length >= capacity) {
+            return;
+        }
+        this.nextRays = new Ray[capacity];
+        this.nextPixels = new int[capacity];
+        this.nextDepths = new int[capacity];
+        this.nextSeeds = new long[capacity];
+        this.nextWeightsR = new double[capacity];
+        this.nextWeightsG = new double[capacity];
+        this.nextWeightsB = new double[capacity];
+    }
+
+    /**
+     * Make sure the buffers of the hits of the current bounce can hold `capacity`
+     * hits.
+     */
+    private void growHits(int capacity) {
+        if (this.materials.length >= capacity) {
+            return;
+        }
+        this.materials = new Material[capacity];
+        this.points = new Vector[capacity];
+        this.normals = new Vector[capacity];
+    }
+
+    /**
+     * @return `value` clamped to [0, 1], as colors are by `Ray.trace`.
+     */
+    private static double clamp(double value) {
+        if (value > 1) {
+            return 1;
+        } else if (value < 0) {
+            return 0;
+        }
+        return value;
+    }
+}